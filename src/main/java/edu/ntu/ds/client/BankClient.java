@@ -7,6 +7,7 @@ import edu.ntu.ds.protocol.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -136,7 +137,7 @@ public class BankClient {
         System.out.println("  withdraw <currency> <amount>       - Withdraw (e.g., withdraw SGD 50)");
         System.out.println("  balance                            - Query current account balance");
         System.out.println("  transfer <toAccount> <amount>      - Transfer from current account");
-        System.out.println("  register <ttlSeconds>              - Register for callback notifications");
+        System.out.println("  register <ttl> [accountNo...]      - Register for callbacks (all accounts if none listed)");
         System.out.println("  unregister                         - Unregister from callbacks");
         System.out.println("  semantics <ALO|AMO>                - Set invocation semantics");
         System.out.println("  status                             - Show current session status");
@@ -415,13 +416,15 @@ public class BankClient {
     
     private void handleRegisterCallback(String args) throws IOException {
         if (args.isEmpty()) {
-            System.out.println("Usage: register <ttlSeconds>");
+            System.out.println("Usage: register <ttlSeconds> [accountNo...]");
             return;
         }
         
+        String[] parts = args.trim().split("\\s+");
+        String[] watchAccounts = Arrays.copyOfRange(parts, 1, parts.length);
         int ttl;
         try {
-            ttl = Integer.parseInt(args.trim());
+            ttl = Integer.parseInt(parts[0]);
             if (ttl <= 0) {
                 throw new NumberFormatException();
             }
@@ -430,7 +433,7 @@ public class BankClient {
             return;
         }
         
-        Message request = client.createRegisterCallbackRequest(ttl);
+        Message request = client.createRegisterCallbackRequest(ttl, watchAccounts);
         
         // Start callback listener
         client.startCallbackListener(callback -> {
@@ -452,7 +455,8 @@ public class BankClient {
         }
         
         if (reply.getHeader().getStatus() == StatusCode.OK) {
-            System.out.println("Registered for callbacks (TTL: " + ttl + " seconds)");
+            System.out.println("Registered for callbacks (TTL: " + ttl + " seconds, accounts: " +
+                (watchAccounts.length > 0 ? String.join(", ", watchAccounts) : "all") + ")");
         } else {
             System.out.println("Failed: " + reply.getHeader().getStatus().getDescription());
         }
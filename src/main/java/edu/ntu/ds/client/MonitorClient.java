@@ -5,15 +5,17 @@ import edu.ntu.ds.network.UdpClient;
 import edu.ntu.ds.protocol.*;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Random;
 
 /**
  * Monitor Client - Listens for callback notifications only.
  * 
  * This client registers for callbacks and prints all ACCOUNT_UPDATE notifications
- * it receives. Useful for demonstrating the callback mechanism.
+ * it receives. Useful for demonstrating the callback mechanism. Given a list of
+ * account numbers it only subscribes to updates of those accounts.
  * 
- * Usage: java MonitorClient <serverHost> <serverPort> [clientId] [ttlSeconds] [listenSeconds]
+ * Usage: java MonitorClient <serverHost> <serverPort> [clientId] [ttlSeconds] [listenSeconds] [accountNo,...]
  */
 public class MonitorClient {
     
@@ -28,6 +30,7 @@ public class MonitorClient {
         int clientId;
         int ttlSeconds = 300;      // Default: 5 minutes TTL
         int listenSeconds = 300;   // Default: 5 minutes listening
+        String[] watchAccounts = new String[0];  // Default: every account
         
         try {
             serverPort = Integer.parseInt(args[1]);
@@ -70,8 +73,12 @@ public class MonitorClient {
             }
         }
         
+        if (args.length >= 6) {
+            watchAccounts = args[5].split(",");
+        }
+        
         try {
-            runMonitor(serverHost, serverPort, clientId, ttlSeconds, listenSeconds);
+            runMonitor(serverHost, serverPort, clientId, ttlSeconds, listenSeconds, watchAccounts);
         } catch (Exception e) {
             System.err.println("Monitor error: " + e.getMessage());
             e.printStackTrace();
@@ -80,7 +87,7 @@ public class MonitorClient {
     }
     
     private static void runMonitor(String serverHost, int serverPort, 
-            int clientId, int ttlSeconds, int listenSeconds) throws IOException {
+            int clientId, int ttlSeconds, int listenSeconds, String[] watchAccounts) throws IOException {
         
         System.out.println("╔═══════════════════════════════════════════════════╗");
         System.out.println("║     Distributed Banking System - Monitor v1.1     ║");
@@ -89,6 +96,7 @@ public class MonitorClient {
         System.out.printf("║  Server: %-40s ║%n", serverHost + ":" + serverPort);
         System.out.printf("║  TTL: %-39d s ║%n", ttlSeconds);
         System.out.printf("║  Listen Duration: %-27d s ║%n", listenSeconds);
+        System.out.printf("║  Accounts: %-38s ║%n", watchAccounts.length > 0 ? String.join(",", watchAccounts) : "all");
         System.out.println("╚═══════════════════════════════════════════════════╝");
         System.out.println();
         
@@ -96,7 +104,7 @@ public class MonitorClient {
         
         // Register for callbacks
         System.out.println("Registering for callbacks...");
-        Message registerReq = client.createRegisterCallbackRequest(ttlSeconds);
+        Message registerReq = client.createRegisterCallbackRequest(ttlSeconds, watchAccounts);
         Message registerRep = client.sendRequest(registerReq);
         
         if (registerRep == null) {
@@ -141,12 +149,25 @@ public class MonitorClient {
             
             String accountNo = callback.getPayload().getAccountNo();
             Long balance = callback.getPayload().getAmountCents();
+            Integer changes = callback.getPayload().getCoalescedCount();
+            List<TlvField> entries = callback.getPayload().getUpdateEntries();
             
             System.out.println("\n┌─────────────────────────────────────────────────┐");
-            System.out.println("│ CALLBACK #" + callbackCount[0]);
+            System.out.println("│ CALLBACK #" + callbackCount[0] +
+                (entries.isEmpty() ? "" : " (" + entries.size() + " accounts)"));
             System.out.println("├─────────────────────────────────────────────────┤");
-            System.out.println("│ Account: " + (accountNo != null ? accountNo : "N/A"));
-            System.out.println("│ Balance: " + (balance != null ? Logger.formatCents(balance) : "N/A"));
+            if (entries.isEmpty()) {
+                System.out.println("│ Account: " + (accountNo != null ? accountNo : "N/A"));
+                System.out.println("│ Balance: " + (balance != null ? Logger.formatCents(balance) : "N/A"));
+                if (changes != null) {
+                    System.out.println("│ Changes: " + changes + " (coalesced)");
+                }
+            }
+            for (TlvField entry : entries) {
+                System.out.println("│ Account: " + entry.getEntryAccountNo() +
+                    "  Balance: " + Logger.formatCents(entry.getEntryBalanceCents()) +
+                    (entry.getEntryChanges() > 1 ? "  Changes: " + entry.getEntryChanges() : ""));
+            }
             System.out.println("└─────────────────────────────────────────────────┘");
         });
         
@@ -156,7 +177,7 @@ public class MonitorClient {
     }
     
     private static void printUsage() {
-        System.out.println("Usage: java MonitorClient <serverHost> <serverPort> [clientId] [ttlSeconds] [listenSeconds]");
+        System.out.println("Usage: java MonitorClient <serverHost> <serverPort> [clientId] [ttlSeconds] [listenSeconds] [accountNo,...]");
         System.out.println();
         System.out.println("Arguments:");
         System.out.println("  serverHost    - Server hostname or IP");
@@ -164,9 +185,11 @@ public class MonitorClient {
         System.out.println("  clientId      - Client identifier (default: random)");
         System.out.println("  ttlSeconds    - Callback registration TTL (default: 300)");
         System.out.println("  listenSeconds - How long to listen (default: 300)");
+        System.out.println("  accountNo,... - Only receive updates for these accounts (default: all)");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  java MonitorClient localhost 8888");
         System.out.println("  java MonitorClient localhost 8888 9999 600 300");
+        System.out.println("  java MonitorClient localhost 8888 9999 600 300 1001,1002");
     }
 }
@@ -0,0 +1,67 @@
+package edu.ntu.ds.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of fixed-size ByteBuffers shared by the server's receive and send paths.
+ * 
+ * Buffers are either heap or direct. Direct buffers let a DatagramChannel read and
+ * write without the JDK copying through a temporary buffer, but are expensive to
+ * allocate, so they are recycled here instead of being created per datagram.
+ * 
+ * Requests for more than the pooled buffer size get a one-off heap buffer that is
+ * not retained on release.
+ */
+class BufferPool {
+    
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    
+    /**
+     * @param bufferSize capacity of each pooled buffer
+     * @param maxPooled maximum number of idle buffers kept for reuse
+     * @param direct true for direct (off-heap) buffers, false for heap buffers
+     */
+    BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+    
+    /**
+     * Get a cleared buffer with at least the requested capacity
+     */
+    ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize) {
+            return ByteBuffer.allocate(minCapacity).order(ByteOrder.BIG_ENDIAN);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+        return buffer;
+    }
+    
+    /**
+     * Return a buffer obtained from acquire(). Oversized buffers are simply dropped.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer);
+    }
+    
+    int getBufferSize() {
+        return bufferSize;
+    }
+    
+    boolean isDirect() {
+        return direct;
+    }
+}
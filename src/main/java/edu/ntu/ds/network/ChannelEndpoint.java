@@ -0,0 +1,107 @@
+package edu.ntu.ds.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * NIO transport: a non-blocking DatagramChannel driven by a Selector.
+ * 
+ * Datagrams are received into a direct buffer taken from the server's BufferPool,
+ * so the kernel copies straight into off-heap memory and no DatagramPacket or
+ * heap byte[] is created per receive. Replies handed to send() in a direct buffer
+ * likewise go out without an intermediate copy.
+ */
+class ChannelEndpoint extends ServerEndpoint {
+    
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final BufferPool bufferPool;
+    private final Logger logger;
+    
+    /**
+     * @param reusePort bind with SO_REUSEPORT so several endpoints can share the port
+     */
+    ChannelEndpoint(int port, boolean reusePort, BufferPool bufferPool, Logger logger) throws IOException {
+        this.channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new SocketException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.bufferPool = bufferPool;
+        this.logger = logger;
+    }
+    
+    @Override
+    void receiveLoop(Receiver receiver) {
+        ByteBuffer buffer = bufferPool.acquire(bufferPool.getBufferSize());
+        
+        try {
+            while (channel.isOpen()) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    
+                    // Drain everything that is queued before selecting again
+                    InetSocketAddress sender;
+                    while ((sender = (InetSocketAddress) channel.receive(buffer)) != null) {
+                        buffer.flip();
+                        receiver.onDatagram(this, buffer, sender);
+                        buffer.clear();
+                    }
+                    
+                } catch (IOException e) {
+                    if (channel.isOpen()) {
+                        logger.error("Error receiving packet", e);
+                    }
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Error closing selector", e);
+            }
+        }
+    }
+    
+    @Override
+    void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        // Non-blocking send returns 0 when the socket buffer is full; UDP is
+        // best-effort anyway, so treat that as a dropped packet.
+        channel.send(data, target);
+    }
+    
+    @Override
+    void close() {
+        // The selector itself is closed by the receive loop once it wakes up
+        try {
+            channel.close();
+            selector.wakeup();
+        } catch (IOException e) {
+            logger.error("Error closing channel", e);
+        }
+    }
+    
+    @Override
+    int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+}
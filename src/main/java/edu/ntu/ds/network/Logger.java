@@ -100,6 +100,16 @@ public class Logger {
                     case INT64:
                         sb.append(field.getInt64Value());
                         break;
+                    case UPDATE_ENTRY:
+                        sb.append(field.getEntryAccountNo()).append(':').append(field.getEntryBalanceCents());
+                        break;
+                    case BATCH_ITEM:
+                        try {
+                            sb.append(field.getItemOpCode());  // Not its fields, which hold a password
+                        } catch (ProtocolException e) {
+                            sb.append('?');
+                        }
+                        break;
                 }
                 sb.append(", ");
             }
@@ -113,10 +123,27 @@ public class Logger {
      */
     public void logReply(Message msg, boolean fromCache, String destination) {
         Header h = msg.getHeader();
+        logReply(h.getRequestId(), h.getStatus().toString(), fromCache, destination);
+    }
+    
+    /**
+     * Log an outgoing reply sent as raw bytes (status read from the wire)
+     */
+    public void logReply(long requestId, short statusValue, boolean fromCache, String destination) {
+        String status;
+        try {
+            status = StatusCode.fromShort(statusValue).toString();
+        } catch (ProtocolException e) {
+            status = String.valueOf(statusValue);
+        }
+        logReply(requestId, status, fromCache, destination);
+    }
+    
+    private void logReply(long requestId, String status, boolean fromCache, String destination) {
         StringBuilder sb = new StringBuilder();
         sb.append("REPLY to ").append(destination);
-        sb.append(" | status=").append(h.getStatus());
-        sb.append(" | reqId=").append(h.getRequestId());
+        sb.append(" | status=").append(status);
+        sb.append(" | reqId=").append(requestId);
         if (fromCache) {
             sb.append(" | [FROM AMO CACHE]");
         }
@@ -144,6 +171,11 @@ public class Logger {
             sb.append(" | balance=").append(formatCents(amount));
         }
         
+        int entries = p.getUpdateEntries().size();
+        if (entries > 0) {
+            sb.append(" | accounts=").append(entries);
+        }
+        
         info(sb.toString());
     }
     
@@ -1,27 +1,27 @@
 package edu.ntu.ds.network;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simulates packet loss for demonstrating ALO vs AMO semantics.
  * 
  * Configurable loss probability allows testing behavior under unreliable network conditions.
+ * Safe to call from multiple worker threads.
  */
 public class PacketLossSimulator {
     
-    private final Random random;
-    private double requestLossProbability;   // Probability of losing incoming requests (0.0 - 1.0)
-    private double replyLossProbability;     // Probability of losing outgoing replies (0.0 - 1.0)
-    private boolean enabled;
+    private volatile double requestLossProbability;   // Probability of losing incoming requests (0.0 - 1.0)
+    private volatile double replyLossProbability;     // Probability of losing outgoing replies (0.0 - 1.0)
+    private volatile boolean enabled;
     
     // Statistics
-    private long requestsReceived;
-    private long requestsDropped;
-    private long repliesSent;
-    private long repliesDropped;
+    private final AtomicLong requestsReceived = new AtomicLong();
+    private final AtomicLong requestsDropped = new AtomicLong();
+    private final AtomicLong repliesSent = new AtomicLong();
+    private final AtomicLong repliesDropped = new AtomicLong();
     
     public PacketLossSimulator() {
-        this.random = new Random();
         this.requestLossProbability = 0.0;
         this.replyLossProbability = 0.0;
         this.enabled = false;
@@ -54,9 +54,9 @@ public class PacketLossSimulator {
      * @return true if the request should be dropped
      */
     public boolean shouldDropRequest() {
-        requestsReceived++;
-        if (enabled && random.nextDouble() < requestLossProbability) {
-            requestsDropped++;
+        requestsReceived.incrementAndGet();
+        if (enabled && ThreadLocalRandom.current().nextDouble() < requestLossProbability) {
+            requestsDropped.incrementAndGet();
             return true;
         }
         return false;
@@ -67,9 +67,9 @@ public class PacketLossSimulator {
      * @return true if the reply should be dropped
      */
     public boolean shouldDropReply() {
-        repliesSent++;
-        if (enabled && random.nextDouble() < replyLossProbability) {
-            repliesDropped++;
+        repliesSent.incrementAndGet();
+        if (enabled && ThreadLocalRandom.current().nextDouble() < replyLossProbability) {
+            repliesDropped.incrementAndGet();
             return true;
         }
         return false;
@@ -79,10 +79,10 @@ public class PacketLossSimulator {
      * Reset statistics counters
      */
     public void resetStats() {
-        this.requestsReceived = 0;
-        this.requestsDropped = 0;
-        this.repliesSent = 0;
-        this.repliesDropped = 0;
+        requestsReceived.set(0);
+        requestsDropped.set(0);
+        repliesSent.set(0);
+        repliesDropped.set(0);
     }
     
     // Getters
@@ -100,19 +100,19 @@ public class PacketLossSimulator {
     }
     
     public long getRequestsReceived() {
-        return requestsReceived;
+        return requestsReceived.get();
     }
     
     public long getRequestsDropped() {
-        return requestsDropped;
+        return requestsDropped.get();
     }
     
     public long getRepliesSent() {
-        return repliesSent;
+        return repliesSent.get();
     }
     
     public long getRepliesDropped() {
-        return repliesDropped;
+        return repliesDropped.get();
     }
     
     @Override
@@ -120,6 +120,6 @@ public class PacketLossSimulator {
         return String.format("PacketLossSimulator{enabled=%s, reqLoss=%.1f%%, repLoss=%.1f%%, " +
             "stats=[reqRecv=%d, reqDrop=%d, repSent=%d, repDrop=%d]}",
             enabled, requestLossProbability * 100, replyLossProbability * 100,
-            requestsReceived, requestsDropped, repliesSent, repliesDropped);
+            requestsReceived.get(), requestsDropped.get(), repliesSent.get(), repliesDropped.get());
     }
 }
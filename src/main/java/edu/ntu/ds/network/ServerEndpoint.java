@@ -0,0 +1,43 @@
+package edu.ntu.ds.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A bound UDP endpoint the server receives from and sends through.
+ * 
+ * Implementations own the receive loop: each datagram is delivered to the
+ * {@link Receiver} in a buffer whose position..limit span exactly the datagram.
+ * That buffer is only valid for the duration of the call; a receiver that wants
+ * to keep the bytes must copy them.
+ */
+abstract class ServerEndpoint {
+    
+    /**
+     * Consumer of received datagrams
+     */
+    interface Receiver {
+        void onDatagram(ServerEndpoint endpoint, ByteBuffer datagram, InetSocketAddress sender);
+    }
+    
+    /**
+     * Run the receive loop on the calling thread until close() is called
+     */
+    abstract void receiveLoop(Receiver receiver);
+    
+    /**
+     * Send the bytes between the buffer's position and limit to a client
+     */
+    abstract void send(ByteBuffer data, InetSocketAddress target) throws IOException;
+    
+    /**
+     * Close the endpoint; makes receiveLoop() return
+     */
+    abstract void close();
+    
+    /**
+     * Local port this endpoint is bound to
+     */
+    abstract int getLocalPort();
+}
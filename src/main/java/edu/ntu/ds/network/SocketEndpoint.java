@@ -0,0 +1,89 @@
+package edu.ntu.ds.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking DatagramSocket transport (the original server transport).
+ * 
+ * A single DatagramPacket and heap buffer are reused for every receive.
+ */
+class SocketEndpoint extends ServerEndpoint {
+    
+    private final DatagramSocket socket;
+    private final Logger logger;
+    private final byte[] receiveBuffer;
+    
+    /**
+     * @param reusePort bind with SO_REUSEPORT so several endpoints can share the port
+     */
+    SocketEndpoint(int port, boolean reusePort, int bufferSize, Logger logger) throws IOException {
+        this.socket = new DatagramSocket(null);
+        try {
+            if (reusePort) {
+                if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new SocketException("SO_REUSEPORT is not supported on this platform");
+                }
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.logger = logger;
+        this.receiveBuffer = new byte[bufferSize];
+    }
+    
+    @Override
+    void receiveLoop(Receiver receiver) {
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        ByteBuffer view = ByteBuffer.wrap(receiveBuffer);
+        
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                socket.receive(packet);
+                
+                view.limit(packet.getLength()).position(0);
+                receiver.onDatagram(this, view, (InetSocketAddress) packet.getSocketAddress());
+                
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.error("Error receiving packet", e);
+                }
+            }
+        }
+    }
+    
+    @Override
+    void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        DatagramPacket packet;
+        if (data.hasArray()) {
+            packet = new DatagramPacket(data.array(), data.arrayOffset() + data.position(), 
+                data.remaining(), target);
+        } else {
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            packet = new DatagramPacket(copy, copy.length, target);
+        }
+        socket.send(packet);
+    }
+    
+    @Override
+    void close() {
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+    }
+    
+    @Override
+    int getLocalPort() {
+        return socket.getLocalPort();
+    }
+}
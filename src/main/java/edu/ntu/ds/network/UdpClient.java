@@ -4,6 +4,16 @@ import edu.ntu.ds.protocol.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -14,11 +24,24 @@ import java.util.concurrent.atomic.AtomicInteger;
  * - Maximum retries: 5
  * - Backoff strategy: exponential backoff
  * - All retransmissions reuse the same requestId
+ * 
+ * sendRequest sends one request at a time, so when request N goes out every
+ * earlier request has been answered or abandoned. AMO requests therefore carry
+ * ackSeqNo = N - 1, letting the server drop the cached replies for them.
+ * 
+ * sendAsync pipelines instead: up to the window size requests are outstanding
+ * at once, each with its own retransmission timer (same policy), and a single
+ * receiver thread completes them as replies arrive, matched by requestId. An
+ * AMO request then acknowledges only up to the lowest seqNo still outstanding.
+ * Once sendAsync has been used, sendRequest goes through the same path, and
+ * listenForCallbacks must not be used (the receiver thread owns the socket).
  */
 public class UdpClient {
     
     private static final int BUFFER_SIZE = 65535;
     
+    public static final int DEFAULT_WINDOW_SIZE = 32;
+    
     private final int clientId;
     private final InetSocketAddress serverAddress;
     private final Logger logger;
@@ -40,10 +63,39 @@ public class UdpClient {
         void onCallback(Message callback);
     }
     
-    private CallbackListener callbackListener;
+    private volatile CallbackListener callbackListener;
     private volatile boolean listening;
     private Thread listenerThread;
     
+    /**
+     * An outstanding asynchronous request
+     */
+    private static final class Pending {
+        final Message request;
+        final byte[] data;
+        final int seqNo;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        int attempt;  // guarded by this
+        int timeoutMs;
+        ScheduledFuture<?> timer;
+        
+        Pending(Message request, byte[] data, int seqNo, int timeoutMs) {
+            this.request = request;
+            this.data = data;
+            this.seqNo = seqNo;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+    
+    // Pipelined requests (sendAsync); started by the first call
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private Semaphore window;
+    private volatile boolean pipelined;
+    private ScheduledThreadPoolExecutor retransmitTimers;
+    private Thread receiverThread;
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Integer> outstandingSeqNos = new ConcurrentSkipListSet<>();
+    
     public UdpClient(int clientId, String serverHost, int serverPort) throws SocketException {
         this.clientId = clientId;
         this.serverAddress = new InetSocketAddress(serverHost, serverPort);
@@ -60,6 +112,19 @@ public class UdpClient {
         logger.info("Default semantics set to: " + semantics);
     }
     
+    /**
+     * Set the maximum number of outstanding sendAsync requests (before the first one)
+     */
+    public synchronized void setWindowSize(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (pipelined) {
+            throw new IllegalStateException("Window size must be set before the first sendAsync");
+        }
+        this.windowSize = windowSize;
+    }
+    
     /**
      * Set retry policy parameters
      */
@@ -89,12 +154,26 @@ public class UdpClient {
      * Send a request with specific semantics
      */
     public Message sendRequest(Message request, Semantics semantics) throws IOException {
+        if (pipelined) {
+            try {
+                return sendAsync(request, semantics).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SocketTimeoutException) {
+                    return null;  // Max retries exceeded, as below
+                }
+                throw new IOException("Request failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        
         // Set client identification
         int seqNo = seqNoCounter.incrementAndGet();
         request.getHeader().setClientId(clientId);
         request.getHeader().setSeqNo(seqNo);
         request.getHeader().setSemantics(semantics);
         request.getHeader().generateRequestId();
+        if (semantics == Semantics.AMO && seqNo > 1) {
+            request.addField(TlvField.ackSeqNo(seqNo - 1));
+        }
         
         long requestId = request.getHeader().getRequestId();
         byte[] requestData = request.encode();
@@ -167,6 +246,175 @@ public class UdpClient {
         return null;
     }
     
+    /**
+     * Send a request without waiting for its reply, blocking only while the
+     * window of outstanding requests is full
+     * @return the reply, or completing exceptionally with a SocketTimeoutException
+     *         once max retries are exceeded (or an IOException if sending fails)
+     */
+    public CompletableFuture<Message> sendAsync(Message request) {
+        return sendAsync(request, defaultSemantics);
+    }
+    
+    /**
+     * Send a request asynchronously with specific semantics
+     */
+    public CompletableFuture<Message> sendAsync(Message request, Semantics semantics) {
+        startPipeline();
+        window.acquireUninterruptibly();
+        
+        // Taken together, so no request acknowledges a lower seqNo that is not yet outstanding
+        int seqNo;
+        int ackSeqNo;
+        synchronized (outstandingSeqNos) {
+            seqNo = seqNoCounter.incrementAndGet();
+            outstandingSeqNos.add(seqNo);
+            ackSeqNo = outstandingSeqNos.first() - 1;  // every request up to it has completed
+        }
+        request.getHeader().setClientId(clientId);
+        request.getHeader().setSeqNo(seqNo);
+        request.getHeader().setSemantics(semantics);
+        request.getHeader().generateRequestId();
+        if (semantics == Semantics.AMO && ackSeqNo > 0) {
+            request.addField(TlvField.ackSeqNo(ackSeqNo));
+        }
+        
+        Pending p = new Pending(request, request.encode(), seqNo, initialTimeoutMs);
+        pending.put(request.getHeader().getRequestId(), p);
+        transmit(p);
+        return p.future;
+    }
+    
+    /**
+     * Start the receiver thread and retransmission timer (once)
+     */
+    private synchronized void startPipeline() {
+        if (pipelined) {
+            return;
+        }
+        window = new Semaphore(windowSize);
+        retransmitTimers = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "udp-client-" + clientId + "-retransmit");
+            t.setDaemon(true);
+            return t;
+        });
+        retransmitTimers.setRemoveOnCancelPolicy(true);
+        receiverThread = new Thread(this::receiveLoop, "udp-client-" + clientId + "-receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        pipelined = true;
+    }
+    
+    /**
+     * Send (or resend) a pipelined request and arm its retransmission timer
+     */
+    private void transmit(Pending p) {
+        try {
+            int attempt;
+            synchronized (p) {
+                attempt = ++p.attempt;
+                p.timer = retransmitTimers.schedule(() -> retransmit(p), p.timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            logger.logSend(p.request, serverAddress.getAddress().getHostAddress() + ":" + serverAddress.getPort(),
+                attempt);
+            socket.send(new DatagramPacket(p.data, p.data.length, serverAddress.getAddress(),
+                serverAddress.getPort()));
+        } catch (IOException e) {
+            finish(p, null, e);
+        } catch (RejectedExecutionException e) {
+            finish(p, null, new SocketException("Client closed"));
+        }
+    }
+    
+    /**
+     * Retransmission timer: resend with a doubled timeout, or give up
+     */
+    private void retransmit(Pending p) {
+        if (pending.get(p.request.getHeader().getRequestId()) != p) {
+            return;  // Already answered
+        }
+        int attempt;
+        int timeoutMs;
+        synchronized (p) {
+            attempt = p.attempt;
+            timeoutMs = p.timeoutMs;
+            p.timeoutMs *= 2;  // Exponential backoff
+        }
+        logger.logTimeout(attempt, maxRetries + 1, timeoutMs);
+        if (attempt > maxRetries) {
+            logger.error("Request failed after " + (maxRetries + 1) + " attempts");
+            finish(p, null, new SocketTimeoutException("No reply after " + (maxRetries + 1) + " attempts"));
+        } else {
+            transmit(p);
+        }
+    }
+    
+    /**
+     * Complete a pipelined request, unless it already has been, and free its window slot
+     */
+    private void finish(Pending p, Message reply, IOException failure) {
+        if (!pending.remove(p.request.getHeader().getRequestId(), p)) {
+            return;
+        }
+        synchronized (p) {
+            if (p.timer != null) {
+                p.timer.cancel(false);
+            }
+        }
+        outstandingSeqNos.remove(p.seqNo);
+        window.release();
+        if (failure != null) {
+            p.future.completeExceptionally(failure);
+        } else {
+            p.future.complete(reply);
+        }
+    }
+    
+    /**
+     * Receiver thread: complete the requests whose replies arrive and pass
+     * callbacks to the listener, until the socket is closed
+     */
+    private void receiveLoop() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        String serverAddrStr = serverAddress.getAddress().getHostAddress() + ":" + serverAddress.getPort();
+        try {
+            socket.setSoTimeout(0);
+        } catch (SocketException e) {
+            logger.error("Receiver cannot use the socket", e);
+            return;
+        }
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                Message reply = Message.decode(packet.getData(), packet.getOffset(), packet.getLength());
+                if (reply.getHeader().getMsgType() == MessageType.CBK) {
+                    CallbackListener listener = callbackListener;
+                    if (listener != null) {
+                        listener.onCallback(reply);
+                    } else {
+                        logger.info("Received callback notification (no listener registered)");
+                    }
+                    continue;
+                }
+                Pending p = pending.get(reply.getHeader().getRequestId());
+                if (p == null) {
+                    logger.debug("Ignoring reply for no outstanding request: " + reply.getHeader().getRequestId());
+                    continue;
+                }
+                logger.logReceive(reply, serverAddrStr);
+                finish(p, reply, null);
+            } catch (edu.ntu.ds.protocol.ProtocolException e) {
+                logger.warn("Failed to decode reply: " + e.getMessage());
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.error("Receive failed", e);
+                }
+            }
+        }
+    }
+    
     /**
      * Start listening for callback notifications in background
      */
@@ -234,6 +482,12 @@ public class UdpClient {
         if (socket != null && !socket.isClosed()) {
             socket.close();
         }
+        if (pipelined) {
+            retransmitTimers.shutdownNow();
+            for (Pending p : pending.values()) {
+                finish(p, null, new SocketException("Client closed"));
+            }
+        }
     }
     
     /**
@@ -352,12 +606,29 @@ public class UdpClient {
         return msg;
     }
     
+    /**
+     * Create a BATCH request carrying other (unsent) requests as its items, e.g.
+     * from createDepositRequest; the reply has one batchItem result per item,
+     * in the same order
+     */
+    public Message createBatchRequest(List<Message> items) {
+        Message msg = Message.createRequest(OpCode.BATCH, clientId, 0, defaultSemantics);
+        for (Message item : items) {
+            msg.addField(TlvField.batchItem(item.getHeader().getOpCode(), StatusCode.OK, item.getPayload()));
+        }
+        return msg;
+    }
+    
     /**
      * Create a REGISTER_CALLBACK request
+     * @param watchAccounts accounts to get updates for (none = every account)
      */
-    public Message createRegisterCallbackRequest(int ttlSeconds) {
+    public Message createRegisterCallbackRequest(int ttlSeconds, String... watchAccounts) {
         Message msg = Message.createRequest(OpCode.REGISTER_CALLBACK, clientId, 0, defaultSemantics);
         msg.addField(TlvField.ttlSeconds(ttlSeconds));
+        if (watchAccounts.length > 0) {
+            msg.addField(TlvField.watchAccounts(watchAccounts));
+        }
         return msg;
     }
     
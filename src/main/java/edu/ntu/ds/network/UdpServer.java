@@ -3,11 +3,18 @@ package edu.ntu.ds.network;
 import edu.ntu.ds.protocol.*;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * UDP Server for the Distributed Banking System.
@@ -16,22 +23,83 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * and sends back reply messages.
  * 
  * Features:
- * - Single-threaded event loop for simplicity
+ * - Single-threaded event loop by default (INLINE mode)
+ * - Optional PIPELINE mode: the receive thread hands datagrams to a pool of
+ *   worker threads sharded by clientId, so requests from one client stay
+ *   ordered while different clients are processed in parallel
+ * - Optional VIRTUAL mode (JDK 21+): one virtual thread per request with a cap
+ *   on requests in flight, so blocking work in the handler does not stall
+ *   the receive loop
+ * - Selectable transport: blocking DatagramSocket (SOCKET) or a
+ *   Selector-driven DatagramChannel with pooled direct buffers (NIO)
  * - Packet loss simulation support
  * - Structured logging
  */
 public class UdpServer {
     
     private static final int BUFFER_SIZE = 65535;
+    private static final int DEFAULT_WORKER_QUEUE_CAPACITY = 1024;
+    
+    // Pooled buffers for datagrams handed to workers and for outgoing replies.
+    // Requests and replies are small; anything larger gets a one-off buffer.
+    private static final int POOLED_BUFFER_SIZE = 2048;
+    private static final int MAX_POOLED_BUFFERS = 4096;
+    
+    /**
+     * Socket implementation used to receive and send datagrams
+     */
+    public enum TransportMode {
+        SOCKET,     // java.net.DatagramSocket, one DatagramPacket per send
+        NIO         // java.nio DatagramChannel + Selector, direct ByteBuffers
+    }
+    
+    /**
+     * How received datagrams are executed
+     */
+    public enum ExecutionMode {
+        INLINE,     // Receive thread decodes, handles and replies itself
+        PIPELINE,   // Receive thread dispatches to clientId-sharded worker threads
+        VIRTUAL     // Receive thread starts a virtual thread per datagram (JDK 21+)
+    }
     
     private final int port;
     private final RequestHandler handler;
     private final PacketLossSimulator lossSimulator;
     private final Logger logger;
     
-    private DatagramSocket socket;
+    private TransportMode transportMode = TransportMode.SOCKET;
+    private int listenerCount = 1;
+    private ServerEndpoint[] endpoints;
+    private BufferPool bufferPool;
+    
+    // Endpoint that received the datagram being processed on this thread;
+    // replies and cached replies go back out through the same socket.
+    private final ThreadLocal<ServerEndpoint> currentEndpoint = new ThreadLocal<>();
+    
+    // Reusable flyweight header views, one per receive/worker thread
+    private final ThreadLocal<HeaderView> headerViews = ThreadLocal.withInitial(HeaderView::new);
     private final AtomicBoolean running;
     
+    // Pipeline configuration (see enablePipeline)
+    private ExecutionMode executionMode = ExecutionMode.INLINE;
+    private int workerThreads;
+    private int workerQueueCapacity = DEFAULT_WORKER_QUEUE_CAPACITY;
+    private ThreadPoolExecutor[] workers;
+    private final AtomicLong requestsRejected = new AtomicLong();
+    
+    // Dropped datagrams are reported at most once per DROP_LOG_INTERVAL_MS
+    private static final long DROP_LOG_INTERVAL_MS = 1000;
+    private final AtomicLong lastDropLogAt = new AtomicLong();
+    private final AtomicLong reportedRejected = new AtomicLong();
+    
+    // Virtual thread configuration (see enableVirtualThreads)
+    private int maxInFlight;
+    private Semaphore inFlight;
+    private ExecutorService virtualExecutor;
+    
+    // Runs deferred tasks (see execute) in INLINE mode, created on first use
+    private volatile ExecutorService deferredExecutor;
+    
     /**
      * Callback interface for processing requests
      */
@@ -43,6 +111,19 @@ public class UdpServer {
          * @return reply message to send back
          */
         Message handleRequest(Message request, InetSocketAddress clientAddress);
+        
+        /**
+         * Try to answer a request from a reply cache using only its header.
+         * Called before handleRequest (and before the payload is decoded, unless
+         * the request carries a CRC). An implementation that answers should send
+         * the reply itself, e.g. via {@link UdpServer#sendRawReply}.
+         * @param header view of the request header, valid for the duration of the call
+         * @param clientAddress client's address
+         * @return true if the request was fully handled and must not be executed
+         */
+        default boolean handleCachedReply(HeaderView header, InetSocketAddress clientAddress) {
+            return false;
+        }
     }
     
     public UdpServer(int port, RequestHandler handler) {
@@ -72,6 +153,113 @@ public class UdpServer {
         logger.info("Packet loss simulation disabled");
     }
     
+    /**
+     * Enable the multi-threaded pipeline. Must be called before start().
+     * 
+     * Each worker owns a single thread and a bounded queue; a datagram is routed
+     * to worker (clientId mod workerThreads), so all requests from one client are
+     * executed in arrival order by the same thread. This keeps the AMO cache
+     * lookup/insert for a client sequential while different clients run in parallel.
+     * 
+     * @param workerThreads number of worker threads (typically the number of cores)
+     * @param queueCapacity maximum queued datagrams per worker; excess datagrams are
+     *                      dropped (the client will retransmit)
+     */
+    public void enablePipeline(int workerThreads, int queueCapacity) {
+        if (workerThreads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Worker threads and queue capacity must be positive");
+        }
+        this.executionMode = ExecutionMode.PIPELINE;
+        this.workerThreads = workerThreads;
+        this.workerQueueCapacity = queueCapacity;
+        logger.info("Pipeline mode enabled: workers=" + workerThreads + ", queueCapacity=" + queueCapacity);
+    }
+    
+    /**
+     * Enable the multi-threaded pipeline with the default per-worker queue capacity
+     */
+    public void enablePipeline(int workerThreads) {
+        enablePipeline(workerThreads, DEFAULT_WORKER_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * Select the socket implementation. Must be called before start().
+     */
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+    
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+    
+    /**
+     * Open several sockets on the same port with SO_REUSEPORT, each served by its
+     * own receive thread. All listeners share the same RequestHandler (and so the
+     * same account store, AMO cache and callback registry). Must be called before start().
+     * @param listeners number of sockets (typically one per core); 1 disables SO_REUSEPORT
+     */
+    public void setListenerCount(int listeners) {
+        if (listeners <= 0) {
+            throw new IllegalArgumentException("Listener count must be positive");
+        }
+        this.listenerCount = listeners;
+    }
+    
+    public int getListenerCount() {
+        return listenerCount;
+    }
+    
+    /**
+     * Run each request on its own virtual thread. Must be called before start().
+     * 
+     * The handler keeps its synchronous signature; a request that blocks (e.g. on
+     * disk or a slow send) only parks its virtual thread. Unlike PIPELINE mode,
+     * two requests from the same client may run concurrently.
+     * 
+     * Requires a JDK 21+ runtime. The project still compiles for Java 17, so the
+     * virtual thread executor is looked up reflectively.
+     * 
+     * @param maxInFlight maximum requests executing at once; datagrams arriving
+     *                    beyond this are dropped (the client will retransmit)
+     * @throws IllegalStateException if the running JDK has no virtual threads
+     */
+    public void enableVirtualThreads(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Max in-flight requests must be positive");
+        }
+        this.virtualExecutor = newVirtualThreadExecutor();
+        this.executionMode = ExecutionMode.VIRTUAL;
+        this.maxInFlight = maxInFlight;
+        logger.info("Virtual thread mode enabled: maxInFlight=" + maxInFlight);
+    }
+    
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), resolved at runtime
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or newer (running " + 
+                System.getProperty("java.version") + ")", e);
+        }
+    }
+    
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+    
+    /**
+     * Number of datagrams dropped because a worker queue was full
+     * or the in-flight limit was reached
+     */
+    public long getRequestsRejected() {
+        return requestsRejected.get();
+    }
+    
     public PacketLossSimulator getLossSimulator() {
         return lossSimulator;
     }
@@ -81,29 +269,54 @@ public class UdpServer {
     }
     
     /**
-     * Start the server
+     * Start the server (blocks until stop() is called)
      */
-    public void start() throws SocketException {
-        socket = new DatagramSocket(port);
+    public void start() throws IOException {
+        bufferPool = new BufferPool(POOLED_BUFFER_SIZE, MAX_POOLED_BUFFERS, 
+            transportMode == TransportMode.NIO);
+        openEndpoints();
         running.set(true);
         
         logger.info("Server started on port " + port);
+        logger.info("Transport: " + transportMode + 
+            (listenerCount > 1 ? " (" + listenerCount + " SO_REUSEPORT listeners)" : ""));
         logger.info("Loss simulation: " + (lossSimulator.isEnabled() ? "ENABLED" : "DISABLED"));
+        logger.info("Execution mode: " + executionMode + 
+            (executionMode == ExecutionMode.PIPELINE ? " (" + workerThreads + " workers)" : "") +
+            (executionMode == ExecutionMode.VIRTUAL ? " (maxInFlight=" + maxInFlight + ")" : ""));
+        
+        ServerEndpoint.Receiver receiver;
+        switch (executionMode) {
+            case PIPELINE:
+                startWorkers();
+                receiver = this::dispatchDatagram;
+                break;
+            case VIRTUAL:
+                inFlight = new Semaphore(maxInFlight);
+                receiver = this::dispatchVirtual;
+                break;
+            default:
+                receiver = this::processDatagram;
+        }
+        
+        // Extra listeners get their own receive threads
+        Thread[] listenerThreads = new Thread[endpoints.length - 1];
+        for (int i = 1; i < endpoints.length; i++) {
+            ServerEndpoint endpoint = endpoints[i];
+            listenerThreads[i - 1] = new Thread(() -> endpoint.receiveLoop(receiver), "listener-" + i);
+            listenerThreads[i - 1].setDaemon(true);
+            listenerThreads[i - 1].start();
+        }
         
-        // Main event loop
-        byte[] buffer = new byte[BUFFER_SIZE];
+        // Main event loop (listener 0)
+        endpoints[0].receiveLoop(receiver);
         
-        while (running.get()) {
+        for (Thread t : listenerThreads) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                
-                processPacket(packet);
-                
-            } catch (IOException e) {
-                if (running.get()) {
-                    logger.error("Error receiving packet", e);
-                }
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
         
@@ -111,40 +324,213 @@ public class UdpServer {
     }
     
     /**
-     * Process a received packet
+     * Bind all endpoints; with more than one listener every socket uses SO_REUSEPORT
+     */
+    private void openEndpoints() throws IOException {
+        boolean reusePort = listenerCount > 1;
+        endpoints = new ServerEndpoint[listenerCount];
+        try {
+            for (int i = 0; i < listenerCount; i++) {
+                endpoints[i] = transportMode == TransportMode.NIO
+                    ? new ChannelEndpoint(port, reusePort, new BufferPool(BUFFER_SIZE, 1, true), logger)
+                    : new SocketEndpoint(port, reusePort, BUFFER_SIZE, logger);
+            }
+        } catch (IOException e) {
+            closeEndpoints();
+            throw e;
+        }
+    }
+    
+    private void closeEndpoints() {
+        if (endpoints == null) {
+            return;
+        }
+        for (ServerEndpoint endpoint : endpoints) {
+            if (endpoint != null) {
+                endpoint.close();
+            }
+        }
+    }
+    
+    /**
+     * Create one single-threaded executor per shard
+     */
+    private void startWorkers() {
+        workers = new ThreadPoolExecutor[workerThreads];
+        for (int i = 0; i < workerThreads; i++) {
+            final String name = "worker-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerQueueCapacity),
+                r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+    }
+    
+    /**
+     * Hand a received datagram to the worker owning its clientId.
+     * The receive buffer is reused by the endpoint, so the datagram is copied
+     * into a pooled buffer that the worker releases when done.
      */
-    private void processPacket(DatagramPacket packet) {
-        InetSocketAddress clientAddr = new InetSocketAddress(
-            packet.getAddress(), packet.getPort());
-        String clientAddrStr = clientAddr.getAddress().getHostAddress() + ":" + clientAddr.getPort();
+    private void dispatchDatagram(ServerEndpoint from, ByteBuffer datagram, InetSocketAddress clientAddr) {
+        ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram).flip();
         
+        HeaderView header = headerViews.get().wrap(copy);
+        int shard = Math.floorMod(header.isComplete() ? header.getClientId() : 0, workers.length);
         try {
-            // Simulate request loss
+            workers[shard].execute(() -> {
+                try {
+                    processDatagram(from, copy, clientAddr);
+                } finally {
+                    bufferPool.release(copy);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            bufferPool.release(copy);
+            requestsRejected.incrementAndGet();
+            if (running.get()) {
+                logDropped("Worker queue full");
+            }
+        }
+    }
+    
+    /**
+     * Report dropped datagrams, at most once per DROP_LOG_INTERVAL_MS, so a
+     * flood does not turn into a logging storm on the receive thread
+     */
+    private void logDropped(String reason) {
+        long now = System.currentTimeMillis();
+        long last = lastDropLogAt.get();
+        if (now - last < DROP_LOG_INTERVAL_MS || !lastDropLogAt.compareAndSet(last, now)) {
+            return;
+        }
+        long total = requestsRejected.get();
+        long dropped = total - reportedRejected.getAndSet(total);
+        logger.warn(reason + ": dropped " + dropped + " datagrams since the last report (" + total + " in total)");
+    }
+    
+    /**
+     * Run a task that completes a request of clientId, e.g. a reply held back
+     * until its WAL record is durable, on the server's execution pipeline
+     * rather than the calling thread: in PIPELINE mode on the worker owning
+     * clientId (so it stays ordered with that client's requests), in VIRTUAL
+     * mode on a new virtual thread, and in INLINE mode, where the receive
+     * thread cannot be handed work, on a single deferred-task thread. A task
+     * that cannot be queued (worker queue full, server stopped) runs on the
+     * calling thread instead of being lost.
+     */
+    public void execute(int clientId, Runnable task) {
+        try {
+            switch (executionMode) {
+                case PIPELINE:
+                    ThreadPoolExecutor[] shards = workers;
+                    if (shards == null) {
+                        break;
+                    }
+                    shards[Math.floorMod(clientId, shards.length)].execute(task);
+                    return;
+                case VIRTUAL:
+                    virtualExecutor.execute(task);
+                    return;
+                default:
+                    deferredExecutor().execute(task);
+                    return;
+            }
+        } catch (RejectedExecutionException e) {
+            // Fall through and run it here
+        }
+        task.run();
+    }
+    
+    private ExecutorService deferredExecutor() {
+        ExecutorService executor = deferredExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = deferredExecutor;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "deferred");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    deferredExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+    
+    /**
+     * Hand a received datagram to a new virtual thread, unless maxInFlight
+     * requests are already executing
+     */
+    private void dispatchVirtual(ServerEndpoint from, ByteBuffer datagram, InetSocketAddress clientAddr) {
+        if (!inFlight.tryAcquire()) {
+            requestsRejected.incrementAndGet();
+            logDropped("In-flight limit (" + maxInFlight + ") reached");
+            return;
+        }
+        
+        ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram).flip();
+        
+        try {
+            virtualExecutor.execute(() -> {
+                try {
+                    processDatagram(from, copy, clientAddr);
+                } finally {
+                    bufferPool.release(copy);
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor already shut down
+            bufferPool.release(copy);
+            inFlight.release();
+        }
+    }
+    
+    /**
+     * Decode, handle and reply to a single datagram
+     */
+    private void processDatagram(ServerEndpoint from, ByteBuffer datagram, InetSocketAddress clientAddr) {
+        currentEndpoint.set(from);
+        HeaderView header = headerViews.get().wrap(datagram);
+        try {
+            // Simulate request loss (requestId for logging is read in place)
             if (lossSimulator.shouldDropRequest()) {
-                // We need to peek at the requestId for logging, so decode header only
-                if (packet.getLength() >= Constants.HEADER_LENGTH) {
-                    Header h = Header.decode(packet.getData(), packet.getOffset());
-                    logger.logSimulatedLoss("REQUEST", h.getRequestId());
+                if (header.isComplete()) {
+                    logger.logSimulatedLoss("REQUEST", header.getRequestId());
                 }
                 return;
             }
             
-            // Decode the message
-            Message request = Message.decode(
-                packet.getData(), 
-                packet.getOffset(), 
-                packet.getLength()
-            );
-            
-            // Validate message type
-            if (request.getHeader().getMsgType() != MessageType.REQ) {
+            // Validate message type before paying for a full decode
+            if (header.isValid() && !header.isRequest()) {
                 logger.warn("Received non-request message type: " + 
-                    request.getHeader().getMsgType() + " from " + clientAddrStr);
+                    header.getMsgType() + " from " + formatAddress(clientAddr));
+                return;
+            }
+            
+            // Retries of AMO requests are answered straight from the cached bytes.
+            // With a CRC the header is only trusted once the full decode verified it.
+            boolean cacheCheckedEarly = header.isValid() && !header.hasCrc();
+            if (cacheCheckedEarly && handler.handleCachedReply(header, clientAddr)) {
+                return;
+            }
+            
+            // Decode the message
+            Message request = Message.decode(datagram);
+            
+            if (!cacheCheckedEarly && handler.handleCachedReply(header, clientAddr)) {
                 return;
             }
             
             // Log the request
-            logger.logRequest(request, clientAddrStr);
+            logger.logRequest(request, formatAddress(clientAddr));
             
             // Process through handler
             Message reply = handler.handleRequest(request, clientAddr);
@@ -154,10 +540,91 @@ public class UdpServer {
             }
             
         } catch (ProtocolException e) {
-            logger.error("Protocol error from " + clientAddrStr, e);
+            logger.error("Protocol error from " + formatAddress(clientAddr), e);
             // Could send an error reply here, but without a valid request we can't
         } catch (Exception e) {
-            logger.error("Error processing request from " + clientAddrStr, e);
+            logger.error("Error processing request from " + formatAddress(clientAddr), e);
+        } finally {
+            currentEndpoint.remove();
+        }
+    }
+    
+    /**
+     * Format an address for logging. Only called when something is actually
+     * logged, so the host string is not built for every datagram.
+     */
+    private static String formatAddress(InetSocketAddress addr) {
+        return addr.getAddress().getHostAddress() + ":" + addr.getPort();
+    }
+    
+    /**
+     * Endpoint handling the current request, or the first endpoint otherwise
+     * (all endpoints share the same local port)
+     */
+    private ServerEndpoint replyEndpoint() {
+        ServerEndpoint endpoint = currentEndpoint.get();
+        return endpoint != null ? endpoint : endpoints[0];
+    }
+    
+    /**
+     * Encode a message into a pooled buffer and send it
+     */
+    private void send(Message message, InetSocketAddress clientAddr) throws IOException {
+        ServerEndpoint endpoint = replyEndpoint();
+        ByteBuffer buffer = bufferPool.acquire(message.getEncodedLength());
+        try {
+            message.encodeTo(buffer);
+            buffer.flip();
+            endpoint.send(buffer, clientAddr);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /**
+     * Send already-encoded bytes, copying them into a pooled direct buffer for
+     * the NIO transport (a heap buffer would be copied by the JDK anyway)
+     */
+    private void send(byte[] data, InetSocketAddress clientAddr) throws IOException {
+        ServerEndpoint endpoint = replyEndpoint();
+        if (!bufferPool.isDirect()) {
+            endpoint.send(ByteBuffer.wrap(data), clientAddr);
+            return;
+        }
+        ByteBuffer buffer = bufferPool.acquire(data.length);
+        try {
+            buffer.put(data).flip();
+            endpoint.send(buffer, clientAddr);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /**
+     * Send an already-encoded reply (e.g. from the AMO cache) without decoding
+     * and re-encoding it. Subject to reply loss simulation like sendReply.
+     * @param replyBytes complete encoded reply message
+     * @param clientAddr destination address
+     * @param fromCache whether this reply is from AMO cache
+     */
+    public void sendRawReply(byte[] replyBytes, InetSocketAddress clientAddr, boolean fromCache) {
+        // Not the thread's shared view: the caller may still be holding it over the request
+        HeaderView header = new HeaderView().wrap(ByteBuffer.wrap(replyBytes));
+        long requestId = header.isComplete() ? header.getRequestId() : 0;
+        
+        try {
+            // Simulate reply loss
+            if (lossSimulator.shouldDropReply()) {
+                logger.logSimulatedLoss("REPLY", requestId);
+                return;
+            }
+            
+            send(replyBytes, clientAddr);
+            
+            logger.logReply(requestId, header.getStatusValue(), fromCache, formatAddress(clientAddr));
+            
+        } catch (IOException e) {
+            logger.error("Error sending reply to " + formatAddress(clientAddr), e);
         }
     }
     
@@ -168,8 +635,6 @@ public class UdpServer {
      * @param fromCache whether this reply is from AMO cache
      */
     public void sendReply(Message reply, InetSocketAddress clientAddr, boolean fromCache) {
-        String clientAddrStr = clientAddr.getAddress().getHostAddress() + ":" + clientAddr.getPort();
-        
         try {
             // Simulate reply loss
             if (lossSimulator.shouldDropReply()) {
@@ -177,15 +642,12 @@ public class UdpServer {
                 return;
             }
             
-            byte[] data = reply.encode();
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, clientAddr.getAddress(), clientAddr.getPort());
-            socket.send(packet);
+            send(reply, clientAddr);
             
-            logger.logReply(reply, fromCache, clientAddrStr);
+            logger.logReply(reply, fromCache, formatAddress(clientAddr));
             
         } catch (IOException e) {
-            logger.error("Error sending reply to " + clientAddrStr, e);
+            logger.error("Error sending reply to " + formatAddress(clientAddr), e);
         }
     }
     
@@ -193,18 +655,38 @@ public class UdpServer {
      * Send a callback notification to a client (best-effort, no reliability)
      */
     public void sendCallback(Message callback, InetSocketAddress clientAddr) {
-        String clientAddrStr = clientAddr.getAddress().getHostAddress() + ":" + clientAddr.getPort();
-        
         try {
-            byte[] data = callback.encode();
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, clientAddr.getAddress(), clientAddr.getPort());
-            socket.send(packet);
+            send(callback, clientAddr);
             
-            logger.logCallback(callback, clientAddrStr);
+            logger.logCallback(callback, formatAddress(clientAddr));
             
         } catch (IOException e) {
-            logger.error("Error sending callback to " + clientAddrStr, e);
+            logger.error("Error sending callback to " + formatAddress(clientAddr), e);
+        }
+    }
+    
+    /**
+     * Send one callback to several clients (best-effort): the message is
+     * encoded once and the same bytes are sent to every recipient
+     */
+    public void broadcastCallback(Message callback, List<InetSocketAddress> recipients) {
+        ServerEndpoint endpoint = replyEndpoint();
+        ByteBuffer buffer = bufferPool.acquire(callback.getEncodedLength());
+        try {
+            callback.encodeTo(buffer);
+            buffer.flip();
+            for (InetSocketAddress clientAddr : recipients) {
+                buffer.rewind();
+                try {
+                    endpoint.send(buffer, clientAddr);
+                } catch (IOException e) {
+                    logger.error("Error sending callback to " + formatAddress(clientAddr), e);
+                }
+            }
+            logger.logCallback(callback, recipients.size() == 1 ? formatAddress(recipients.get(0))
+                : recipients.size() + " clients");
+        } finally {
+            bufferPool.release(buffer);
         }
     }
     
@@ -213,8 +695,19 @@ public class UdpServer {
      */
     public void stop() {
         running.set(false);
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        closeEndpoints();
+        if (workers != null) {
+            for (ThreadPoolExecutor worker : workers) {
+                worker.shutdown();
+            }
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        }
+        synchronized (this) {
+            if (deferredExecutor != null) {
+                deferredExecutor.shutdown();
+            }
         }
     }
     
@@ -0,0 +1,417 @@
+package edu.ntu.ds.persistence;
+
+import edu.ntu.ds.protocol.Currency;
+import edu.ntu.ds.protocol.ProtocolException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One entry of the write-ahead log: the effect of a successful state-changing
+ * banking operation.
+ * 
+ * Balance changes are logged as deltas (DEPOSIT adds, WITHDRAW subtracts,
+ * TRANSFER does both), so replaying them in log order rebuilds the exact final
+ * balances even when concurrent operations were logged in a different order
+ * than they were applied. OPEN_ACCOUNT carries everything needed to recreate
+ * the account, including its number and creation time.
+ * 
+ * A record may also name the at-most-once request that made the change
+ * (forRequest): its client, seqNo and requestId, the balance its reply
+ * reported and when it was logged. That is enough to rebuild the exact reply
+ * after a restart, so a retry of the request is answered instead of executed
+ * again. The request shares the record (and its fsync) with the change, so
+ * either both survive a crash or neither does.
+ * 
+ * A BATCH record holds every change made by one BATCH request, as nested
+ * untagged records, plus the encoded reply when the batch was an AMO request
+ * (its per-item results cannot be rebuilt from the changes alone). One record
+ * makes the batch all-or-nothing across a crash, like a single operation.
+ * 
+ * Body layout (Big-Endian):
+ *   type u8 | accountNo i64 | then per type:
+ *   OPEN_ACCOUNT:  currency u8 | initialCents i64 | createdAt i64 | username str | password str
+ *   CLOSE_ACCOUNT: (nothing)
+ *   DEPOSIT/WITHDRAW: amountCents i64
+ *   TRANSFER:      toAccountNo i64 | amountCents i64
+ *   BATCH:         count u16 | count x (length u16 | body) | replyLength i32 | reply
+ * then, if the type byte has REQUEST_FLAG set:
+ *   clientId i32 | seqNo i32 | requestId i64 | replyCents i64 | loggedAt i64
+ * where str is a u16 byte length followed by UTF-8 bytes, and a BATCH record's
+ * accountNo is 0.
+ */
+public final class WalRecord {
+    
+    /**
+     * Logged operation types
+     */
+    public enum Type {
+        OPEN_ACCOUNT((byte) 1),
+        CLOSE_ACCOUNT((byte) 2),
+        DEPOSIT((byte) 3),
+        WITHDRAW((byte) 4),
+        TRANSFER((byte) 5),
+        BATCH((byte) 6);
+        
+        private final byte code;
+        
+        Type(byte code) {
+            this.code = code;
+        }
+        
+        public byte getCode() {
+            return code;
+        }
+        
+        static Type fromByte(byte code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown WAL record type: " + (code & 0xFF));
+        }
+    }
+    
+    private static final int REQUEST_FLAG = 0x80;
+    private static final int REQUEST_LENGTH = 2 * Integer.BYTES + 3 * Long.BYTES;
+    
+    private final Type type;
+    private final long accountNo;
+    private final long toAccountNo;
+    private final long amountCents;
+    private final Currency currency;
+    private final long createdAt;
+    private final String username;
+    private final String password;
+    private final List<WalRecord> items;  // BATCH only
+    private final byte[] reply;  // BATCH only; empty unless tagged with a request
+    
+    // Originating AMO request (hasRequest), all zero otherwise
+    private final boolean hasRequest;
+    private final int clientId;
+    private final int seqNo;
+    private final long requestId;
+    private final long replyCents;
+    private final long loggedAt;
+    
+    private WalRecord(Type type, long accountNo, long toAccountNo, long amountCents,
+                      Currency currency, long createdAt, String username, String password) {
+        this(type, accountNo, toAccountNo, amountCents, currency, createdAt, username, password,
+            null, null, false, 0, 0, 0, 0, 0);
+    }
+    
+    private WalRecord(Type type, long accountNo, long toAccountNo, long amountCents,
+                      Currency currency, long createdAt, String username, String password,
+                      List<WalRecord> items, byte[] reply, boolean hasRequest, int clientId, int seqNo,
+                      long requestId, long replyCents, long loggedAt) {
+        this.type = type;
+        this.accountNo = accountNo;
+        this.toAccountNo = toAccountNo;
+        this.amountCents = amountCents;
+        this.currency = currency;
+        this.createdAt = createdAt;
+        this.username = username;
+        this.password = password;
+        this.items = items;
+        this.reply = reply;
+        this.hasRequest = hasRequest;
+        this.clientId = clientId;
+        this.seqNo = seqNo;
+        this.requestId = requestId;
+        this.replyCents = replyCents;
+        this.loggedAt = loggedAt;
+    }
+    
+    // Factory methods
+    
+    public static WalRecord openAccount(long accountNo, String username, String password,
+                                        Currency currency, long initialCents, long createdAt) {
+        return new WalRecord(Type.OPEN_ACCOUNT, accountNo, 0, initialCents, currency, createdAt,
+            username, password);
+    }
+    
+    public static WalRecord closeAccount(long accountNo) {
+        return new WalRecord(Type.CLOSE_ACCOUNT, accountNo, 0, 0, null, 0, null, null);
+    }
+    
+    public static WalRecord deposit(long accountNo, long amountCents) {
+        return new WalRecord(Type.DEPOSIT, accountNo, 0, amountCents, null, 0, null, null);
+    }
+    
+    public static WalRecord withdraw(long accountNo, long amountCents) {
+        return new WalRecord(Type.WITHDRAW, accountNo, 0, amountCents, null, 0, null, null);
+    }
+    
+    public static WalRecord transfer(long fromAccountNo, long toAccountNo, long amountCents) {
+        return new WalRecord(Type.TRANSFER, fromAccountNo, toAccountNo, amountCents, null, 0, null, null);
+    }
+    
+    /**
+     * The changes of one BATCH request
+     * @param items untagged records of the changes, in the order they were made
+     * @param reply the encoded reply, or an empty array when no reply is kept
+     */
+    public static WalRecord batch(List<WalRecord> items, byte[] reply) {
+        for (WalRecord item : items) {
+            if (item.type == Type.BATCH || item.hasRequest) {
+                throw new IllegalArgumentException("Batch items must be untagged single changes");
+            }
+        }
+        return new WalRecord(Type.BATCH, 0, 0, 0, null, 0, null, null, List.copyOf(items), reply,
+            false, 0, 0, 0, 0, 0);
+    }
+    
+    /**
+     * Same change, tagged with the AMO request that made it
+     * @param replyCents the balance reported in the request's reply
+     * @param loggedAt when the change was made (epoch ms), for the reply's cache age
+     */
+    public WalRecord forRequest(int clientId, int seqNo, long requestId, long replyCents, long loggedAt) {
+        return new WalRecord(type, accountNo, toAccountNo, amountCents, currency, createdAt, username,
+            password, items, reply, true, clientId, seqNo, requestId, replyCents, loggedAt);
+    }
+    
+    // Encoding
+    
+    /**
+     * Length of the encoded body in bytes
+     */
+    public int getEncodedLength() {
+        int length = 1 + Long.BYTES + (hasRequest ? REQUEST_LENGTH : 0);
+        switch (type) {
+            case OPEN_ACCOUNT:
+                return length + 1 + 2 * Long.BYTES + stringLength(username) + stringLength(password);
+            case CLOSE_ACCOUNT:
+                return length;
+            case TRANSFER:
+                return length + 2 * Long.BYTES;
+            case BATCH:
+                length += Short.BYTES + Integer.BYTES + reply.length;
+                for (WalRecord item : items) {
+                    length += Short.BYTES + item.getEncodedLength();
+                }
+                return length;
+            default:
+                return length + Long.BYTES;
+        }
+    }
+    
+    /**
+     * Encode the body at the buffer's position
+     */
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.put((byte) (hasRequest ? type.code | REQUEST_FLAG : type.code));
+        buffer.putLong(accountNo);
+        switch (type) {
+            case OPEN_ACCOUNT:
+                buffer.put(currency.getValue());
+                buffer.putLong(amountCents);
+                buffer.putLong(createdAt);
+                putString(buffer, username);
+                putString(buffer, password);
+                break;
+            case CLOSE_ACCOUNT:
+                break;
+            case TRANSFER:
+                buffer.putLong(toAccountNo);
+                buffer.putLong(amountCents);
+                break;
+            case BATCH:
+                buffer.putShort((short) items.size());
+                for (WalRecord item : items) {
+                    buffer.putShort((short) item.getEncodedLength());
+                    item.encodeTo(buffer);
+                }
+                buffer.putInt(reply.length);
+                buffer.put(reply);
+                break;
+            default:
+                buffer.putLong(amountCents);
+        }
+        if (hasRequest) {
+            buffer.putInt(clientId);
+            buffer.putInt(seqNo);
+            buffer.putLong(requestId);
+            buffer.putLong(replyCents);
+            buffer.putLong(loggedAt);
+        }
+    }
+    
+    /**
+     * Decode a body of the given length at the buffer's position
+     * @throws IOException if the body is malformed
+     */
+    public static WalRecord decode(ByteBuffer buffer, int length) throws IOException {
+        int end = buffer.position() + length;
+        try {
+            byte code = buffer.get();
+            Type type = Type.fromByte((byte) (code & ~REQUEST_FLAG));
+            long accountNo = buffer.getLong();
+            WalRecord record;
+            switch (type) {
+                case OPEN_ACCOUNT:
+                    Currency currency = Currency.fromByte(buffer.get());
+                    long initialCents = buffer.getLong();
+                    long createdAt = buffer.getLong();
+                    String username = getString(buffer);
+                    String password = getString(buffer);
+                    record = openAccount(accountNo, username, password, currency, initialCents, createdAt);
+                    break;
+                case CLOSE_ACCOUNT:
+                    record = closeAccount(accountNo);
+                    break;
+                case DEPOSIT:
+                    record = deposit(accountNo, buffer.getLong());
+                    break;
+                case WITHDRAW:
+                    record = withdraw(accountNo, buffer.getLong());
+                    break;
+                case BATCH:
+                    int count = buffer.getShort() & 0xFFFF;
+                    List<WalRecord> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(decode(buffer, buffer.getShort() & 0xFFFF));
+                    }
+                    byte[] reply = new byte[buffer.getInt()];
+                    buffer.get(reply);
+                    record = batch(items, reply);
+                    break;
+                default:
+                    long toAccountNo = buffer.getLong();
+                    record = transfer(accountNo, toAccountNo, buffer.getLong());
+            }
+            if ((code & REQUEST_FLAG) != 0) {
+                int clientId = buffer.getInt();
+                int seqNo = buffer.getInt();
+                long requestId = buffer.getLong();
+                long replyCents = buffer.getLong();
+                record = record.forRequest(clientId, seqNo, requestId, replyCents, buffer.getLong());
+            }
+            if (buffer.position() != end) {
+                throw new IOException("WAL record length mismatch for " + type);
+            }
+            return record;
+        } catch (ProtocolException | RuntimeException e) {
+            throw new IOException("Malformed WAL record: " + e.getMessage(), e);
+        }
+    }
+    
+    private static int stringLength(String s) {
+        return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+    
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // Getters
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public long getAccountNo() {
+        return accountNo;
+    }
+    
+    public long getToAccountNo() {
+        return toAccountNo;
+    }
+    
+    /**
+     * Amount moved, or the initial balance for OPEN_ACCOUNT
+     */
+    public long getAmountCents() {
+        return amountCents;
+    }
+    
+    public Currency getCurrency() {
+        return currency;
+    }
+    
+    public long getCreatedAt() {
+        return createdAt;
+    }
+    
+    public String getUsername() {
+        return username;
+    }
+    
+    public String getPassword() {
+        return password;
+    }
+    
+    /**
+     * Changes of a BATCH record, in order (empty for other types)
+     */
+    public List<WalRecord> getItems() {
+        return items != null ? items : List.of();
+    }
+    
+    /**
+     * Encoded reply of a BATCH record (empty if none was kept, or for other types)
+     */
+    public byte[] getReply() {
+        return reply != null ? reply.clone() : new byte[0];
+    }
+    
+    /**
+     * Whether the record names the AMO request that made the change
+     */
+    public boolean hasRequest() {
+        return hasRequest;
+    }
+    
+    public int getClientId() {
+        return clientId;
+    }
+    
+    public int getSeqNo() {
+        return seqNo;
+    }
+    
+    public long getRequestId() {
+        return requestId;
+    }
+    
+    /**
+     * Balance reported in the request's reply
+     */
+    public long getReplyCents() {
+        return replyCents;
+    }
+    
+    public long getLoggedAt() {
+        return loggedAt;
+    }
+    
+    @Override
+    public String toString() {
+        switch (type) {
+            case OPEN_ACCOUNT:
+                return String.format("WalRecord{%s, no=%d, user=%s, currency=%s, initial=%d}",
+                    type, accountNo, username, currency.name(), amountCents);
+            case CLOSE_ACCOUNT:
+                return String.format("WalRecord{%s, no=%d}", type, accountNo);
+            case TRANSFER:
+                return String.format("WalRecord{%s, from=%d, to=%d, amount=%d}",
+                    type, accountNo, toAccountNo, amountCents);
+            case BATCH:
+                return String.format("WalRecord{%s, items=%s, reply=%d bytes}", type, items, reply.length);
+            default:
+                return String.format("WalRecord{%s, no=%d, amount=%d}", type, accountNo, amountCents);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package edu.ntu.ds.persistence;
+
+import edu.ntu.ds.network.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log of account state changes, with group commit.
+ * 
+ * Request threads append() records into an in-memory staging buffer and get
+ * back the log position just past their record. A single writer thread
+ * ("wal-writer") repeatedly swaps the staging buffer out, writes it and forces
+ * it to disk with one fsync, so every record that arrived during the previous
+ * write/fsync shares the next one. A reply must not be released before its
+ * record is durable: whenDurable() runs an action (e.g. sending the reply) once
+ * the log has been forced past a position, awaitDurable() blocks for it.
+ * flushAndAwait() blocks for it under every policy, for callers such as
+ * snapshots that must never get ahead of the log.
+ * 
+ * Sync policies trade latency for durability:
+ * - EVERY_OP: force as soon as anything is staged; each reply waits for the
+ *   fsync that covers its record (concurrent records share it)
+ * - BATCHED: wait batchIntervalMs for more records before each force, so one
+ *   fsync covers more requests at the cost of up to that much extra latency
+ * - ASYNC: replies are released immediately; the log is written and forced
+ *   every batchIntervalMs, so a crash can lose the most recent interval
+ * 
+ * Each record is framed as length (i32) | CRC32 of the body (i32) | body. On
+ * open the existing log is replayed and cut back to its last intact record, so
+ * a write torn by a crash is dropped. The log fails stop: after an I/O error no
+ * further records are accepted and waiting replies are never released.
+ */
+public class WriteAheadLog implements Closeable {
+    
+    /**
+     * When replies are released relative to the fsync of their records
+     */
+    public enum SyncPolicy {
+        EVERY_OP,
+        BATCHED,
+        ASYNC
+    }
+    
+    public static final long DEFAULT_BATCH_INTERVAL_MS = 2;
+    
+    private static final int FRAME_HEADER = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    
+    private final Path path;
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final long batchIntervalMs;
+    private final Logger logger = new Logger("WAL");
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition staged = lock.newCondition();
+    private final Condition forced = lock.newCondition();
+    
+    // Guarded by lock
+    private ByteBuffer staging = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appendedPosition;
+    private long flushRequested;  // position a flushAndAwait caller waits for
+    private final List<PendingAction> pending = new ArrayList<>();
+    private IOException failure;
+    private boolean closing;
+    private long recordsAppended;
+    private long syncs;
+    
+    private volatile long durablePosition;
+    private final Thread writer;
+    
+    private static final class PendingAction {
+        final long position;
+        final Runnable action;
+        
+        PendingAction(long position, Runnable action) {
+            this.position = position;
+            this.action = action;
+        }
+    }
+    
+    private WriteAheadLog(Path path, FileChannel channel, long endPosition,
+                          SyncPolicy syncPolicy, long batchIntervalMs) {
+        this.path = path;
+        this.channel = channel;
+        this.syncPolicy = syncPolicy;
+        this.batchIntervalMs = batchIntervalMs;
+        this.appendedPosition = endPosition;
+        this.durablePosition = endPosition;
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        this.writer.setDaemon(true);
+    }
+    
+    /**
+     * Open (or create) a log, replay its records in order, then accept appends
+     * after the last intact record
+     * @param recovery receives each existing record before open returns
+     */
+    public static WriteAheadLog open(Path path, SyncPolicy syncPolicy, long batchIntervalMs,
+                                     Consumer<WalRecord> recovery) throws IOException {
+        return open(path, syncPolicy, batchIntervalMs, 0, (record, end) -> recovery.accept(record));
+    }
+    
+    /**
+     * Open a log whose records up to startPosition are already reflected in the
+     * state (e.g. loaded from a snapshot), replaying only the tail
+     * @param startPosition a record boundary, typically a snapshot's log position
+     * @param recovery receives each record from startPosition on, with the log
+     *        position just past it
+     * @throws IOException if the log's intact records end before startPosition
+     */
+    public static WriteAheadLog open(Path path, SyncPolicy syncPolicy, long batchIntervalMs,
+                                     long startPosition, ObjLongConsumer<WalRecord> recovery) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < startPosition) {
+                throw new IOException("Log " + path + " ends at " + channel.size() +
+                    ", before the snapshot position " + startPosition);
+            }
+            long end = replay(channel, startPosition, recovery);
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+            channel.position(end);
+            WriteAheadLog wal = new WriteAheadLog(path, channel, end, syncPolicy, batchIntervalMs);
+            wal.writer.start();
+            return wal;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Feed every intact record from startPosition on to the consumer
+     * @return the position just past the last intact record
+     */
+    private static long replay(FileChannel channel, long startPosition,
+                               ObjLongConsumer<WalRecord> recovery) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        long position = startPosition;
+        channel.position(startPosition);
+        buffer.flip();
+        while (true) {
+            if (buffer.remaining() < FRAME_HEADER && !fill(channel, buffer, FRAME_HEADER)) {
+                return position;
+            }
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + Integer.BYTES);
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                return position;
+            }
+            if (buffer.remaining() < FRAME_HEADER + length) {
+                if (buffer.capacity() < FRAME_HEADER + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(FRAME_HEADER + length);
+                    larger.put(buffer).flip();
+                    buffer = larger;
+                }
+                if (!fill(channel, buffer, FRAME_HEADER + length)) {
+                    return position;
+                }
+            }
+            int bodyStart = buffer.position() + FRAME_HEADER;
+            crc.reset();
+            crc.update(buffer.array(), bodyStart, length);
+            if ((int) crc.getValue() != checksum) {
+                return position;
+            }
+            buffer.position(bodyStart);
+            WalRecord record = WalRecord.decode(buffer, length);
+            position += FRAME_HEADER + length;
+            recovery.accept(record, position);
+        }
+    }
+    
+    /**
+     * Read more of the file until the buffer holds at least needed bytes
+     * @return false if the file ends first
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        buffer.compact();
+        try {
+            while (buffer.position() < needed) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+    
+    /**
+     * Stage a record for the next group commit
+     * @return the log position just past the record, to pass to whenDurable/awaitDurable
+     * @throws UncheckedIOException if the log has failed or is closed
+     */
+    public long append(WalRecord record) {
+        int length = record.getEncodedLength();
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            if (closing) {
+                throw new UncheckedIOException(new IOException("Write-ahead log is closed"));
+            }
+            ensureStagingCapacity(FRAME_HEADER + length);
+            int start = staging.position();
+            staging.putInt(length);
+            staging.putInt(0);
+            record.encodeTo(staging);
+            CRC32 crc = new CRC32();
+            crc.update(staging.array(), start + FRAME_HEADER, length);
+            staging.putInt(start + Integer.BYTES, (int) crc.getValue());
+            
+            boolean wasEmpty = start == 0;
+            appendedPosition += FRAME_HEADER + length;
+            recordsAppended++;
+            if (wasEmpty) {
+                staged.signal();
+            }
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void ensureStagingCapacity(int needed) {
+        if (staging.remaining() >= needed) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(staging.capacity() * 2, staging.position() + needed));
+        staging.flip();
+        larger.put(staging);
+        staging = larger;
+    }
+    
+    /**
+     * Run an action once the log is durable up to position: immediately if it
+     * already is (or the policy is ASYNC), otherwise on the writer thread right
+     * after the fsync that covers it. The next fsync waits for the action, so
+     * it should only hand the real work to another thread.
+     */
+    public void whenDurable(long position, Runnable action) {
+        if (syncPolicy == SyncPolicy.ASYNC || position <= durablePosition) {
+            action.run();
+            return;
+        }
+        lock.lock();
+        try {
+            if (position > durablePosition) {
+                pending.add(new PendingAction(position, action));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+    
+    /**
+     * Block until the log is durable up to position (returns at once under ASYNC)
+     * @throws UncheckedIOException if the log fails first
+     */
+    public void awaitDurable(long position) {
+        if (syncPolicy == SyncPolicy.ASYNC || position <= durablePosition) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (position > durablePosition) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Write-ahead log failed", failure);
+                }
+                forced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Block until the log is durable up to position, whatever the sync policy:
+     * unlike awaitDurable this also waits under ASYNC, and the writer skips its
+     * batching delay instead of making the caller wait it out
+     * @throws IllegalArgumentException if position is past everything appended
+     * @throws UncheckedIOException if the log fails first
+     */
+    public void flushAndAwait(long position) {
+        if (position <= durablePosition) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (position > appendedPosition) {
+                throw new IllegalArgumentException("Position " + position + " is past the end of the log");
+            }
+            if (position > flushRequested) {
+                flushRequested = position;
+                staged.signal();
+            }
+            while (position > durablePosition) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Write-ahead log failed", failure);
+                }
+                forced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writer thread: take everything staged, write it, force it, release waiters
+     */
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchEnd;
+            lock.lock();
+            try {
+                while (staging.position() == 0 && !closing) {
+                    staged.awaitUninterruptibly();
+                }
+                if (staging.position() == 0) {
+                    return;  // closing and fully drained
+                }
+                if (syncPolicy != SyncPolicy.EVERY_OP && !closing && flushRequested <= durablePosition) {
+                    // Let more records join this batch
+                    staged.awaitNanos(TimeUnit.MILLISECONDS.toNanos(batchIntervalMs));
+                }
+                batch = staging;
+                staging = spare;
+                spare = batch;
+                batchEnd = appendedPosition;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                logger.error("Write-ahead log " + path + " failed, no further replies will be released", e);
+                lock.lock();
+                try {
+                    failure = e;
+                    pending.clear();
+                    forced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+            
+            durablePosition = batchEnd;
+            List<Runnable> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                syncs++;
+                Iterator<PendingAction> it = pending.iterator();
+                while (it.hasNext()) {
+                    PendingAction p = it.next();
+                    if (p.position <= batchEnd) {
+                        ready.add(p.action);
+                        it.remove();
+                    }
+                }
+                forced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable action : ready) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error releasing a durable reply", e);
+                }
+            }
+        }
+    }
+    
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+    
+    public long getDurablePosition() {
+        return durablePosition;
+    }
+    
+    /**
+     * Position just past the last appended record (durable or not)
+     */
+    public long getAppendedPosition() {
+        lock.lock();
+        try {
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Flush everything staged, release its waiters and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closing = true;
+            staged.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+    
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("WriteAheadLog{policy=%s, records=%d, syncs=%d, avgBatch=%.1f, durable=%d bytes}",
+                syncPolicy, recordsAppended, syncs, syncs > 0 ? (double) recordsAppended / syncs : 0.0,
+                durablePosition);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -43,6 +43,9 @@ public final class Constants {
     // Maximum payload size (reasonable limit for UDP)
     public static final int MAX_PAYLOAD_SIZE = 65000;
     
+    // Maximum sub-requests in one BATCH request (keeps its reply within MAX_PAYLOAD_SIZE)
+    public static final int MAX_BATCH_ITEMS = 1024;
+    
     // CRC32 size
     public static final int CRC32_SIZE = 4;
 }
@@ -60,6 +60,16 @@ public class Header {
      */
     public byte[] encode() {
         ByteBuffer buffer = ByteBuffer.allocate(Constants.HEADER_LENGTH);
+        encodeTo(buffer);
+        return buffer.array();
+    }
+    
+    /**
+     * Encode header into a buffer at its current position (32 bytes, Big-Endian).
+     * The buffer's position is advanced by 32.
+     * @param buffer destination buffer (heap or direct) with at least 32 bytes remaining
+     */
+    public void encodeTo(ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
         
         buffer.putShort(magic);                    // offset 0: magic (u16)
@@ -74,8 +84,6 @@ public class Header {
         buffer.putInt(clientId);                   // offset 20: clientId (u32)
         buffer.putInt(seqNo);                      // offset 24: seqNo (u32)
         buffer.putInt(payloadLen);                 // offset 28: payloadLen (u32)
-        
-        return buffer.array();
     }
     
     /**
@@ -100,38 +108,52 @@ public class Header {
             throw new ProtocolException("Insufficient data for header: expected " + 
                 Constants.HEADER_LENGTH + " bytes, got " + (data == null ? 0 : data.length - offset));
         }
-        
-        ByteBuffer buffer = ByteBuffer.wrap(data, offset, Constants.HEADER_LENGTH);
+        return decode(ByteBuffer.wrap(data), offset);
+    }
+    
+    /**
+     * Decode header from a buffer (heap or direct) at an absolute index.
+     * The buffer's position is not modified.
+     * @param buffer buffer containing the header; bytes up to its limit are readable
+     * @param offset absolute index of the first header byte
+     * @return decoded Header object
+     * @throws ProtocolException if decoding fails
+     */
+    public static Header decode(ByteBuffer buffer, int offset) throws ProtocolException {
+        if (buffer.limit() - offset < Constants.HEADER_LENGTH) {
+            throw new ProtocolException("Insufficient data for header: expected " + 
+                Constants.HEADER_LENGTH + " bytes, got " + (buffer.limit() - offset));
+        }
         buffer.order(ByteOrder.BIG_ENDIAN);
         
         Header header = new Header();
         
-        header.magic = buffer.getShort();          // offset 0
+        header.magic = buffer.getShort(offset + Constants.OFFSET_MAGIC);
         if (header.magic != Constants.MAGIC) {
             throw new ProtocolException("Invalid magic number: 0x" + 
                 String.format("%04X", header.magic & 0xFFFF) + ", expected 0xD5D5");
         }
         
-        header.version = buffer.get();             // offset 2
+        header.version = buffer.get(offset + Constants.OFFSET_VERSION);
         if (header.version != Constants.VERSION) {
             throw new ProtocolException("Unsupported protocol version: " + header.version);
         }
         
-        header.msgType = MessageType.fromByte(buffer.get());  // offset 3
+        header.msgType = MessageType.fromByte(buffer.get(offset + Constants.OFFSET_MSG_TYPE));
         
-        header.headerLen = buffer.getShort();      // offset 4
+        header.headerLen = buffer.getShort(offset + Constants.OFFSET_HEADER_LEN);
         if (header.headerLen != Constants.HEADER_LENGTH) {
             throw new ProtocolException("Invalid header length: " + header.headerLen);
         }
         
-        header.opCode = OpCode.fromShort(buffer.getShort());  // offset 6
-        header.semantics = Semantics.fromByte(buffer.get());  // offset 8
-        header.flags = buffer.get();               // offset 9
-        header.status = StatusCode.fromShort(buffer.getShort()); // offset 10
-        header.requestId = buffer.getLong();       // offset 12
-        header.clientId = buffer.getInt();         // offset 20
-        header.seqNo = buffer.getInt();            // offset 24
-        header.payloadLen = buffer.getInt();       // offset 28
+        header.opCode = OpCode.fromShort(buffer.getShort(offset + Constants.OFFSET_OP_CODE));
+        header.semantics = Semantics.fromByte(buffer.get(offset + Constants.OFFSET_SEMANTICS));
+        header.flags = buffer.get(offset + Constants.OFFSET_FLAGS);
+        header.status = StatusCode.fromShort(buffer.getShort(offset + Constants.OFFSET_STATUS));
+        header.requestId = buffer.getLong(offset + Constants.OFFSET_REQUEST_ID);
+        header.clientId = buffer.getInt(offset + Constants.OFFSET_CLIENT_ID);
+        header.seqNo = buffer.getInt(offset + Constants.OFFSET_SEQ_NO);
+        header.payloadLen = buffer.getInt(offset + Constants.OFFSET_PAYLOAD_LEN);
         
         // Validate payload length
         if (header.payloadLen < 0) {
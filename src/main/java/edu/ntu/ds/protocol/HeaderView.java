@@ -0,0 +1,163 @@
+package edu.ntu.ds.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Flyweight, read-only view of a 32-byte header inside a buffer.
+ * 
+ * Reads each field directly at its Constants.OFFSET_* position (Big-Endian)
+ * without copying or allocating, so the server can inspect every datagram
+ * (drop simulation, msgType check, AMO lookup, worker sharding) before deciding
+ * whether a full Message.decode is needed. One instance is meant to be reused:
+ * call wrap() for each datagram.
+ * 
+ * Accessors return raw wire values and do not validate them; use isValid()
+ * first, or materialize() to get a fully validated Header.
+ */
+public final class HeaderView {
+    
+    private ByteBuffer buffer;
+    private int offset;
+    
+    /**
+     * Point the view at a header starting at the buffer's current position
+     * @return this view
+     */
+    public HeaderView wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+    
+    /**
+     * Point the view at a header starting at an absolute index of the buffer
+     * @return this view
+     */
+    public HeaderView wrap(ByteBuffer buffer, int offset) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+    
+    /**
+     * Check that a whole header is readable (bytes up to the buffer's limit)
+     */
+    public boolean isComplete() {
+        return buffer != null && buffer.limit() - offset >= Constants.HEADER_LENGTH;
+    }
+    
+    /**
+     * Check the fixed fields: complete header, magic, version and headerLen
+     */
+    public boolean isValid() {
+        return isComplete()
+            && getMagic() == Constants.MAGIC
+            && getVersion() == Constants.VERSION
+            && getHeaderLen() == Constants.HEADER_LENGTH;
+    }
+    
+    // Raw field accessors
+    
+    public short getMagic() {
+        return buffer.getShort(offset + Constants.OFFSET_MAGIC);
+    }
+    
+    public byte getVersion() {
+        return buffer.get(offset + Constants.OFFSET_VERSION);
+    }
+    
+    public byte getMsgTypeValue() {
+        return buffer.get(offset + Constants.OFFSET_MSG_TYPE);
+    }
+    
+    public short getHeaderLen() {
+        return buffer.getShort(offset + Constants.OFFSET_HEADER_LEN);
+    }
+    
+    public short getOpCodeValue() {
+        return buffer.getShort(offset + Constants.OFFSET_OP_CODE);
+    }
+    
+    public byte getSemanticsValue() {
+        return buffer.get(offset + Constants.OFFSET_SEMANTICS);
+    }
+    
+    public byte getFlags() {
+        return buffer.get(offset + Constants.OFFSET_FLAGS);
+    }
+    
+    public short getStatusValue() {
+        return buffer.getShort(offset + Constants.OFFSET_STATUS);
+    }
+    
+    public long getRequestId() {
+        return buffer.getLong(offset + Constants.OFFSET_REQUEST_ID);
+    }
+    
+    public int getClientId() {
+        return buffer.getInt(offset + Constants.OFFSET_CLIENT_ID);
+    }
+    
+    public int getSeqNo() {
+        return buffer.getInt(offset + Constants.OFFSET_SEQ_NO);
+    }
+    
+    public int getPayloadLen() {
+        return buffer.getInt(offset + Constants.OFFSET_PAYLOAD_LEN);
+    }
+    
+    // Convenience checks (allocation-free)
+    
+    public boolean isRequest() {
+        return getMsgTypeValue() == MessageType.REQ.getValue();
+    }
+    
+    public boolean isAmo() {
+        return getSemanticsValue() == Semantics.AMO.getValue();
+    }
+    
+    public boolean hasCrc() {
+        return (getFlags() & Constants.FLAG_CRC) != 0;
+    }
+    
+    public boolean hasError() {
+        return (getFlags() & Constants.FLAG_ERROR) != 0;
+    }
+    
+    // Enum accessors (validate the wire value)
+    
+    public MessageType getMsgType() throws ProtocolException {
+        return MessageType.fromByte(getMsgTypeValue());
+    }
+    
+    public OpCode getOpCode() throws ProtocolException {
+        return OpCode.fromShort(getOpCodeValue());
+    }
+    
+    public Semantics getSemantics() throws ProtocolException {
+        return Semantics.fromByte(getSemanticsValue());
+    }
+    
+    public StatusCode getStatus() throws ProtocolException {
+        return StatusCode.fromShort(getStatusValue());
+    }
+    
+    /**
+     * Decode the viewed bytes into a standalone, validated Header
+     */
+    public Header materialize() throws ProtocolException {
+        return Header.decode(buffer, offset);
+    }
+    
+    @Override
+    public String toString() {
+        if (!isComplete()) {
+            return "HeaderView{incomplete}";
+        }
+        return String.format("HeaderView{magic=0x%04X, version=%d, msgType=%d, opCode=0x%04X, " +
+            "semantics=%d, flags=0x%02X, status=%d, requestId=%d, clientId=%d, seqNo=%d, payloadLen=%d}",
+            getMagic() & 0xFFFF, getVersion(), getMsgTypeValue(), getOpCodeValue() & 0xFFFF,
+            getSemanticsValue(), getFlags() & 0xFF, getStatusValue(), getRequestId(),
+            getClientId(), getSeqNo(), getPayloadLen());
+    }
+}
@@ -81,35 +81,40 @@ public class Message {
      * @return encoded message bytes
      */
     public byte[] encode() {
-        // Encode payload first to get length
-        byte[] payloadBytes = payload.encode();
-        header.setPayloadLen(payloadBytes.length);
-        
-        // Calculate total message size
-        int totalSize = Constants.HEADER_LENGTH + payloadBytes.length;
-        if (header.hasCrc()) {
-            totalSize += Constants.CRC32_SIZE;
-        }
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+    
+    /**
+     * Encode complete message into a buffer (heap or direct) at its current position.
+     * Lets the server write replies straight into pooled send buffers.
+     * @param buffer destination buffer with at least getEncodedLength() bytes remaining
+     */
+    public void encodeTo(ByteBuffer buffer) {
+        // Payload length is known without encoding the payload first
+        int payloadLen = payload.getEncodedLength();
+        header.setPayloadLen(payloadLen);
         
-        ByteBuffer buffer = ByteBuffer.allocate(totalSize);
         buffer.order(ByteOrder.BIG_ENDIAN);
+        int start = buffer.position();
         
         // Encode header
-        buffer.put(header.encode());
+        header.encodeTo(buffer);
         
         // Encode payload
-        buffer.put(payloadBytes);
+        payload.encodeTo(buffer);
         
         // Calculate and append CRC32 if enabled
         if (header.hasCrc()) {
             CRC32 crc = new CRC32();
-            crc.update(buffer.array(), 0, Constants.HEADER_LENGTH + payloadBytes.length);
+            ByteBuffer covered = buffer.duplicate();
+            covered.position(start).limit(start + Constants.HEADER_LENGTH + payloadLen);
+            crc.update(covered);
             int crcValue = (int) crc.getValue();
             buffer.putInt(crcValue);
             this.crc32 = crcValue;
         }
-        
-        return buffer.array();
     }
     
     // Decoding
@@ -136,11 +141,27 @@ public class Message {
         if (length < Constants.HEADER_LENGTH) {
             throw new ProtocolException("Message too short: " + length + " bytes");
         }
+        return decode(ByteBuffer.wrap(data, offset, length).slice());
+    }
+    
+    /**
+     * Decode message from the bytes between a buffer's position and limit.
+     * Works on heap and direct buffers; the buffer's position is not modified.
+     * @param buffer buffer holding exactly one datagram
+     * @return decoded Message
+     * @throws ProtocolException if decoding fails
+     */
+    public static Message decode(ByteBuffer buffer) throws ProtocolException {
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        if (length < Constants.HEADER_LENGTH) {
+            throw new ProtocolException("Message too short: " + length + " bytes");
+        }
         
         Message msg = new Message();
         
         // Decode header
-        msg.header = Header.decode(data, offset);
+        msg.header = Header.decode(buffer, offset);
         
         int payloadLen = msg.header.getPayloadLen();
         int expectedLen = Constants.HEADER_LENGTH + payloadLen;
@@ -157,19 +178,20 @@ public class Message {
         
         // Decode payload
         int payloadOffset = offset + Constants.HEADER_LENGTH;
-        msg.payload = Payload.decode(data, payloadOffset, payloadLen);
+        msg.payload = Payload.decode(buffer, payloadOffset, payloadLen);
         
         // Verify CRC if present
         if (msg.header.hasCrc()) {
             int crcOffset = payloadOffset + payloadLen;
-            ByteBuffer crcBuffer = ByteBuffer.wrap(data, crcOffset, 4);
-            crcBuffer.order(ByteOrder.BIG_ENDIAN);
-            int receivedCrc = crcBuffer.getInt();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int receivedCrc = buffer.getInt(crcOffset);
             msg.crc32 = receivedCrc;
             
             // Calculate CRC over header + payload
             CRC32 crc = new CRC32();
-            crc.update(data, offset, Constants.HEADER_LENGTH + payloadLen);
+            ByteBuffer covered = buffer.duplicate();
+            covered.position(offset).limit(offset + Constants.HEADER_LENGTH + payloadLen);
+            crc.update(covered);
             int calculatedCrc = (int) crc.getValue();
             
             if (receivedCrc != calculatedCrc) {
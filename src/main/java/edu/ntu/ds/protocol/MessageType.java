@@ -13,6 +13,8 @@ public enum MessageType {
     REP((byte) 1),  // Reply
     CBK((byte) 2);  // Callback notification
     
+    private static final MessageType[] VALUES = values();
+    
     private final byte value;
     
     MessageType(byte value) {
@@ -30,7 +32,7 @@ public enum MessageType {
      * @throws ProtocolException if value is invalid
      */
     public static MessageType fromByte(byte value) throws ProtocolException {
-        for (MessageType type : values()) {
+        for (MessageType type : VALUES) {
             if (type.value == value) {
                 return type;
             }
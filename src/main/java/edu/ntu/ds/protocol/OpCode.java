@@ -16,6 +16,8 @@ package edu.ntu.ds.protocol;
  * Extended operations (0x0100 - 0x01FF):
  * - 0x0101: QUERY_BALANCE (idempotent)
  * - 0x0102: TRANSFER (non-idempotent)
+ * - 0x0103: BATCH (non-idempotent) - DEPOSIT, WITHDRAW, QUERY_BALANCE and TRANSFER
+ *           sub-requests in one datagram, one batchItem TLV each
  * 
  * Callback operations (0x8000+):
  * - 0x8001: ACCOUNT_UPDATE (callback notification)
@@ -29,8 +31,12 @@ public enum OpCode {
     UNREGISTER_CALLBACK((short) 0x0006, true),
     QUERY_BALANCE((short) 0x0101, true),
     TRANSFER((short) 0x0102, false),
+    BATCH((short) 0x0103, false),
     ACCOUNT_UPDATE((short) 0x8001, false);  // N/A for idempotency (callback only)
     
+    // values() clones the array on every call; fromShort runs per datagram
+    private static final OpCode[] VALUES = values();
+    
     private final short value;
     private final boolean idempotent;
     
@@ -54,7 +60,7 @@ public enum OpCode {
      * @throws ProtocolException if value is invalid
      */
     public static OpCode fromShort(short value) throws ProtocolException {
-        for (OpCode op : values()) {
+        for (OpCode op : VALUES) {
             if (op.value == value) {
                 return op;
             }
@@ -1,6 +1,6 @@
 package edu.ntu.ds.protocol;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -8,58 +8,99 @@ import java.util.*;
  * 
  * Payloads are encoded as a sequence of TLV fields.
  * Fields may appear in any order unless otherwise specified.
+ * Repeatable types (TlvType.isRepeatable) keep every occurrence in order and
+ * are encoded after the other fields.
  */
 public class Payload {
     
+    /** Returned by getAccountNumber()/getToAccountNumber() when the field is absent */
+    public static final long NO_ACCOUNT = 0;
+    
     private final Map<TlvType, TlvField> fields;
+    private final List<TlvField> repeatedFields;
     
     public Payload() {
         this.fields = new LinkedHashMap<>(); // Preserve insertion order
+        this.repeatedFields = new ArrayList<>(0);
     }
     
     /**
      * Add a TLV field to the payload
-     * If a field of the same type already exists, it will be replaced.
+     * If a field of the same (non-repeatable) type already exists, it will be replaced.
      */
     public Payload addField(TlvField field) {
-        fields.put(field.getType(), field);
+        if (field.getType().isRepeatable()) {
+            repeatedFields.add(field);
+        } else {
+            fields.put(field.getType(), field);
+        }
         return this;
     }
     
     /**
      * Get a TLV field by type
-     * @return TlvField or null if not found
+     * @return TlvField (the first one, for a repeatable type) or null if not found
      */
     public TlvField getField(TlvType type) {
+        if (type.isRepeatable()) {
+            for (TlvField field : repeatedFields) {
+                if (field.getType() == type) {
+                    return field;
+                }
+            }
+            return null;
+        }
         return fields.get(type);
     }
     
+    /**
+     * Get every field of a type, in order
+     */
+    public List<TlvField> getFields(TlvType type) {
+        if (!type.isRepeatable()) {
+            TlvField field = fields.get(type);
+            return field != null ? List.of(field) : List.of();
+        }
+        List<TlvField> result = new ArrayList<>();
+        for (TlvField field : repeatedFields) {
+            if (field.getType() == type) {
+                result.add(field);
+            }
+        }
+        return result;
+    }
+    
     /**
      * Check if payload contains a field of specified type
      */
     public boolean hasField(TlvType type) {
-        return fields.containsKey(type);
+        return type.isRepeatable() ? getField(type) != null : fields.containsKey(type);
     }
     
     /**
      * Get all fields
      */
     public Collection<TlvField> getFields() {
-        return Collections.unmodifiableCollection(fields.values());
+        if (repeatedFields.isEmpty()) {
+            return Collections.unmodifiableCollection(fields.values());
+        }
+        List<TlvField> all = new ArrayList<>(fields.values());
+        all.addAll(repeatedFields);
+        return Collections.unmodifiableList(all);
     }
     
     /**
      * Get number of fields
      */
     public int size() {
-        return fields.size();
+        return fields.size() + repeatedFields.size();
     }
     
     /**
      * Check if payload is empty
      */
     public boolean isEmpty() {
-        return fields.isEmpty();
+        return fields.isEmpty() && repeatedFields.isEmpty();
     }
     
     // Field getters
@@ -84,6 +125,32 @@ public class Payload {
         return field != null ? field.getStringValue() : null;
     }
     
+    /**
+     * Account number parsed from the ACCOUNT_NO digits, without allocating
+     * @return the number, NO_ACCOUNT if absent, or -1 if not a valid number
+     */
+    public long getAccountNumber() {
+        TlvField field = fields.get(TlvType.ACCOUNT_NO);
+        if (field == null) {
+            return NO_ACCOUNT;
+        }
+        long number = field.getDigitsValue();
+        return number > 0 ? number : -1;
+    }
+    
+    /**
+     * Destination account number parsed from the TO_ACCOUNT_NO digits
+     * @return the number, NO_ACCOUNT if absent, or -1 if not a valid number
+     */
+    public long getToAccountNumber() {
+        TlvField field = fields.get(TlvType.TO_ACCOUNT_NO);
+        if (field == null) {
+            return NO_ACCOUNT;
+        }
+        long number = field.getDigitsValue();
+        return number > 0 ? number : -1;
+    }
+    
     public Currency getCurrency() throws ProtocolException {
         TlvField field = fields.get(TlvType.CURRENCY);
         return field != null ? field.getCurrencyValue() : null;
@@ -104,6 +171,48 @@ public class Payload {
         return field != null ? field.getStringValue() : null;
     }
     
+    public Integer getAckSeqNo() {
+        TlvField field = fields.get(TlvType.ACK_SEQ_NO);
+        return field != null ? field.getUint32Value() : null;
+    }
+    
+    public Integer getCoalescedCount() {
+        TlvField field = fields.get(TlvType.COALESCED_COUNT);
+        return field != null ? field.getUint32Value() : null;
+    }
+    
+    /**
+     * UPDATE_ENTRY fields of a multi-account ACCOUNT_UPDATE callback
+     * @return the entries in order (empty for a single-account callback)
+     */
+    public List<TlvField> getUpdateEntries() {
+        return getFields(TlvType.UPDATE_ENTRY);
+    }
+    
+    /**
+     * BATCH_ITEM fields of a BATCH request or reply, in order
+     */
+    public List<TlvField> getBatchItems() {
+        return getFields(TlvType.BATCH_ITEM);
+    }
+    
+    /**
+     * Account numbers listed in the WATCH_ACCOUNTS field
+     * @return the numbers, or null if the field is absent
+     * @throws ProtocolException if the list is malformed
+     */
+    public long[] getWatchAccountNumbers() throws ProtocolException {
+        TlvField field = fields.get(TlvType.WATCH_ACCOUNTS);
+        if (field == null) {
+            return null;
+        }
+        long[] numbers = field.getDigitsListValue();
+        if (numbers == null) {
+            throw new ProtocolException("Malformed watchAccounts list: " + field.getStringValue());
+        }
+        return numbers;
+    }
+    
     // Encoding
     
     /**
@@ -111,16 +220,26 @@ public class Payload {
      * @return encoded payload bytes (may be empty if no fields)
      */
     public byte[] encode() {
-        if (fields.isEmpty()) {
+        if (isEmpty()) {
             return new byte[0];
         }
         
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+    
+    /**
+     * Encode payload into a buffer at its current position
+     * @param buffer destination buffer with at least getEncodedLength() bytes remaining
+     */
+    public void encodeTo(ByteBuffer buffer) {
         for (TlvField field : fields.values()) {
-            byte[] encoded = field.encode();
-            baos.write(encoded, 0, encoded.length);
+            field.encodeTo(buffer);
+        }
+        for (TlvField field : repeatedFields) {
+            field.encodeTo(buffer);
         }
-        return baos.toByteArray();
     }
     
     /**
@@ -131,6 +250,9 @@ public class Payload {
         for (TlvField field : fields.values()) {
             length += field.getEncodedLength();
         }
+        for (TlvField field : repeatedFields) {
+            length += field.getEncodedLength();
+        }
         return length;
     }
     
@@ -145,6 +267,24 @@ public class Payload {
      * @throws ProtocolException if decoding fails
      */
     public static Payload decode(byte[] data, int offset, int length) throws ProtocolException {
+        // Bounds check
+        if (length != 0 && data.length - offset < length) {
+            throw new ProtocolException("Insufficient data for payload: expected " + 
+                length + " bytes, got " + (data.length - offset));
+        }
+        return decode(ByteBuffer.wrap(data), offset, length);
+    }
+    
+    /**
+     * Decode payload from a buffer (heap or direct) at an absolute index.
+     * The buffer's position is not modified.
+     * @param buffer buffer containing payload
+     * @param offset absolute index of the first TLV
+     * @param length payload length in bytes
+     * @return decoded Payload
+     * @throws ProtocolException if decoding fails
+     */
+    public static Payload decode(ByteBuffer buffer, int offset, int length) throws ProtocolException {
         Payload payload = new Payload();
         
         if (length == 0) {
@@ -152,16 +292,16 @@ public class Payload {
         }
         
         // Bounds check
-        if (data.length - offset < length) {
+        if (buffer.limit() - offset < length) {
             throw new ProtocolException("Insufficient data for payload: expected " + 
-                length + " bytes, got " + (data.length - offset));
+                length + " bytes, got " + (buffer.limit() - offset));
         }
         
         int currentOffset = offset;
         int endOffset = offset + length;
         
         while (currentOffset < endOffset) {
-            TlvField field = TlvField.decode(data, currentOffset);
+            TlvField field = TlvField.decode(buffer, currentOffset);
             payload.addField(field);
             currentOffset += field.getEncodedLength();
         }
@@ -219,6 +359,8 @@ public class Payload {
             case TRANSFER:
                 return Arrays.asList(TlvType.USERNAME, TlvType.PASSWORD, TlvType.ACCOUNT_NO, 
                     TlvType.TO_ACCOUNT_NO, TlvType.AMOUNT_CENTS);
+            case BATCH:
+                return Arrays.asList(TlvType.BATCH_ITEM);
             case ACCOUNT_UPDATE:
                 // Callback message - no required fields from client
                 return Collections.emptyList();
@@ -231,7 +373,7 @@ public class Payload {
     public String toString() {
         StringBuilder sb = new StringBuilder("Payload{");
         boolean first = true;
-        for (TlvField field : fields.values()) {
+        for (TlvField field : getFields()) {
             if (!first) {
                 sb.append(", ");
             }
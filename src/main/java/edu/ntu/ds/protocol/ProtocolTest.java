@@ -1,6 +1,8 @@
 package edu.ntu.ds.protocol;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Stage 1 Verification: Protocol Encoding/Decoding Round-Trip Tests
@@ -30,6 +32,14 @@ public class ProtocolTest {
         testMessageWithCrc();
         testReplyMessage();
         testCallbackMessage();
+        testDirectBufferRoundTrip();
+        testHeaderView();
+        testAckSeqNoField();
+        testAccountNumberParsing();
+        testWatchAccountsField();
+        testCoalescedCountField();
+        testUpdateEntryBatch();
+        testBatchRequest();
         
         System.out.println("\n========================================");
         System.out.println("Test Results: " + testsPassed + " passed, " + testsFailed + " failed");
@@ -384,6 +394,306 @@ public class ProtocolTest {
         }
     }
     
+    private static void testDirectBufferRoundTrip() {
+        System.out.println("Test: Direct ByteBuffer Encode/Decode");
+        try {
+            Message original = Message.createRequest(OpCode.TRANSFER, 7001, 9, Semantics.AMO);
+            original.setCrcEnabled(true);
+            original.addField(TlvField.username("grace"));
+            original.addField(TlvField.password("nio"));
+            original.addField(TlvField.accountNo("1001"));
+            original.addField(TlvField.toAccountNo("1002"));
+            original.addField(TlvField.amountCents(4200L));
+            
+            // Encode at a non-zero position to check absolute offsets
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+            buffer.position(16);
+            original.encodeTo(buffer);
+            buffer.flip().position(16);
+            
+            assertEquals("Encoded length", original.getEncodedLength(), buffer.remaining());
+            
+            byte[] heapEncoded = original.encode();
+            byte[] directEncoded = new byte[buffer.remaining()];
+            buffer.duplicate().get(directEncoded);
+            assertTrue("Same bytes as encode()", Arrays.equals(heapEncoded, directEncoded));
+            
+            Message decoded = Message.decode(buffer);
+            assertEquals("Position unchanged", 16, buffer.position());
+            assertEquals("RequestId", original.getHeader().getRequestId(), decoded.getHeader().getRequestId());
+            assertEquals("ToAccountNo", "1002", decoded.getPayload().getToAccountNo());
+            assertEquals("Amount", Long.valueOf(4200L), decoded.getPayload().getAmountCents());
+            assertEquals("CRC", original.getCrc32(), decoded.getCrc32());
+            
+            pass("Direct ByteBuffer Encode/Decode");
+        } catch (Exception e) {
+            fail("Direct ByteBuffer Encode/Decode", e);
+        }
+    }
+    
+    private static void testHeaderView() {
+        System.out.println("Test: HeaderView Flyweight");
+        try {
+            Message msg = Message.createRequest(OpCode.WITHDRAW, 8001, 42, Semantics.AMO);
+            msg.addField(TlvField.accountNo("1001"));
+            byte[] encoded = msg.encode();
+            
+            // View a header that does not start at index 0
+            ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+            buffer.position(8);
+            buffer.put(encoded);
+            buffer.flip().position(8);
+            
+            HeaderView view = new HeaderView().wrap(buffer);
+            assertTrue("Complete", view.isComplete());
+            assertTrue("Valid", view.isValid());
+            assertTrue("Is request", view.isRequest());
+            assertTrue("Is AMO", view.isAmo());
+            assertEquals("OpCode", OpCode.WITHDRAW, view.getOpCode());
+            assertEquals("ClientId", 8001, view.getClientId());
+            assertEquals("SeqNo", 42, view.getSeqNo());
+            assertEquals("RequestId", msg.getHeader().getRequestId(), view.getRequestId());
+            assertEquals("PayloadLen", msg.getPayload().getEncodedLength(), view.getPayloadLen());
+            
+            Header materialized = view.materialize();
+            assertEquals("Materialized requestId", view.getRequestId(), materialized.getRequestId());
+            assertEquals("Materialized opCode", OpCode.WITHDRAW, materialized.getOpCode());
+            
+            // Re-wrap the same instance over a truncated and a corrupted header
+            ByteBuffer shortBuf = ByteBuffer.wrap(encoded, 0, Constants.HEADER_LENGTH - 1);
+            assertTrue("Truncated incomplete", !view.wrap(shortBuf).isComplete());
+            
+            byte[] corrupted = encoded.clone();
+            corrupted[0] = 0;
+            assertTrue("Bad magic invalid", !view.wrap(ByteBuffer.wrap(corrupted)).isValid());
+            
+            pass("HeaderView Flyweight");
+        } catch (Exception e) {
+            fail("HeaderView Flyweight", e);
+        }
+    }
+    
+    private static void testAckSeqNoField() {
+        System.out.println("Test: Request with ackSeqNo TLV");
+        try {
+            Message original = Message.createRequest(OpCode.DEPOSIT, 9001, 17, Semantics.AMO);
+            original.addField(TlvField.accountNo("1001"));
+            original.addField(TlvField.amountCents(500));
+            original.addField(TlvField.ackSeqNo(16));
+            
+            Message decoded = Message.decode(original.encode());
+            assertEquals("AckSeqNo", Integer.valueOf(16), decoded.getPayload().getAckSeqNo());
+            assertEquals("TLV type", TlvType.ACK_SEQ_NO, decoded.getPayload().getField(TlvType.ACK_SEQ_NO).getType());
+            
+            Message withoutAck = Message.createRequest(OpCode.DEPOSIT, 9001, 1, Semantics.AMO);
+            assertTrue("Absent ackSeqNo", Message.decode(withoutAck.encode()).getPayload().getAckSeqNo() == null);
+            
+            pass("Request with ackSeqNo TLV");
+        } catch (Exception e) {
+            fail("Request with ackSeqNo TLV", e);
+        }
+    }
+    
+    private static void testWatchAccountsField() {
+        System.out.println("Test: REGISTER_CALLBACK with watchAccounts TLV");
+        try {
+            Message original = Message.createRequest(OpCode.REGISTER_CALLBACK, 9001, 1, Semantics.ALO);
+            original.addField(TlvField.ttlSeconds(60));
+            original.addField(TlvField.watchAccounts("1001", "1002", "987654321012345678"));
+            
+            Message decoded = Message.decode(original.encode());
+            long[] accounts = decoded.getPayload().getWatchAccountNumbers();
+            assertTrue("Watch list", Arrays.equals(new long[] {1001, 1002, 987654321012345678L}, accounts));
+            assertEquals("Single account", 1001L, 
+                Message.decode(Message.createRequest(OpCode.REGISTER_CALLBACK, 9001, 2, Semantics.ALO)
+                    .addField(TlvField.watchAccounts("1001")).encode()).getPayload().getWatchAccountNumbers()[0]);
+            
+            Message unscoped = Message.createRequest(OpCode.REGISTER_CALLBACK, 9001, 3, Semantics.ALO);
+            assertTrue("Absent watch list", Message.decode(unscoped.encode()).getPayload().getWatchAccountNumbers() == null);
+            
+            for (String bad : new String[] {"", "1001,", ",1001", "1001,,1002", "10a1", "1234567890123456789"}) {
+                Message malformed = Message.createRequest(OpCode.REGISTER_CALLBACK, 9001, 4, Semantics.ALO);
+                malformed.addField(TlvField.watchAccounts(bad));
+                try {
+                    Message.decode(malformed.encode()).getPayload().getWatchAccountNumbers();
+                    throw new AssertionError("Accepted malformed watch list \"" + bad + "\"");
+                } catch (ProtocolException expected) {
+                    // Rejected as it should be
+                }
+            }
+            
+            pass("REGISTER_CALLBACK with watchAccounts TLV");
+        } catch (Exception e) {
+            fail("REGISTER_CALLBACK with watchAccounts TLV", e);
+        }
+    }
+    
+    private static void testCoalescedCountField() {
+        System.out.println("Test: ACCOUNT_UPDATE callback with coalescedCount TLV");
+        try {
+            Message original = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
+            original.addField(TlvField.accountNo("1001"));
+            original.addField(TlvField.amountCents(123456));
+            original.addField(TlvField.coalescedCount(5000));
+            
+            Payload decoded = Message.decode(original.encode()).getPayload();
+            assertEquals("CoalescedCount", Integer.valueOf(5000), decoded.getCoalescedCount());
+            assertEquals("Balance", Long.valueOf(123456), decoded.getAmountCents());
+            
+            Message single = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
+            single.addField(TlvField.accountNo("1001"));
+            assertTrue("Absent coalescedCount", Message.decode(single.encode()).getPayload().getCoalescedCount() == null);
+            
+            pass("ACCOUNT_UPDATE callback with coalescedCount TLV");
+        } catch (Exception e) {
+            fail("ACCOUNT_UPDATE callback with coalescedCount TLV", e);
+        }
+    }
+    
+    private static void testUpdateEntryBatch() {
+        System.out.println("Test: Multi-account ACCOUNT_UPDATE callback (repeated updateEntry TLV)");
+        try {
+            Message original = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
+            original.addField(TlvField.updateEntry(1001, 150000, 1));
+            original.addField(TlvField.updateEntry(1002, -5, 42));
+            original.addField(TlvField.updateEntry(987654321012345678L, 0, 1));
+            original.addField(TlvField.note("first"));
+            original.addField(TlvField.note("second"));  // Non-repeatable: replaced
+            
+            byte[] encoded = original.encode();
+            assertEquals("Encoded length", 32 + 3 * (4 + TlvField.UPDATE_ENTRY_LENGTH) + 4 + 6, encoded.length);
+            
+            Payload decoded = Message.decode(encoded).getPayload();
+            List<TlvField> entries = decoded.getUpdateEntries();
+            assertEquals("Entry count", 3, entries.size());
+            assertEquals("Entry 1 account", 1001L, entries.get(0).getEntryAccountNo());
+            assertEquals("Entry 1 balance", 150000L, entries.get(0).getEntryBalanceCents());
+            assertEquals("Entry 2 balance", -5L, entries.get(1).getEntryBalanceCents());
+            assertEquals("Entry 2 changes", 42, entries.get(1).getEntryChanges());
+            assertEquals("Entry 3 account", 987654321012345678L, entries.get(2).getEntryAccountNo());
+            assertEquals("Note", "second", decoded.getNote());
+            assertEquals("Field count", 4, decoded.size());
+            assertTrue("First entry", decoded.getField(TlvType.UPDATE_ENTRY) == entries.get(0));
+            assertTrue("No single account", decoded.getAccountNo() == null);
+            
+            Message single = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
+            single.addField(TlvField.accountNo("1001"));
+            assertTrue("No entries", Message.decode(single.encode()).getPayload().getUpdateEntries().isEmpty());
+            
+            byte[] truncated = {0x00, 0x0C, 0x00, 0x10, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+            boolean rejected = false;
+            try {
+                TlvField.decode(truncated, 0);
+            } catch (ProtocolException e) {
+                rejected = true;
+            }
+            assertTrue("Short entry rejected", rejected);
+            
+            pass("Multi-account ACCOUNT_UPDATE callback (repeated updateEntry TLV)");
+        } catch (Exception e) {
+            fail("Multi-account ACCOUNT_UPDATE callback (repeated updateEntry TLV)", e);
+        }
+    }
+    
+    private static void testBatchRequest() {
+        System.out.println("Test: BATCH request and reply (repeated batchItem TLV)");
+        try {
+            Payload deposit = new Payload()
+                .addField(TlvField.username("alice"))
+                .addField(TlvField.password("secret"))
+                .addField(TlvField.accountNo("1001"))
+                .addField(TlvField.currency(Currency.SGD))
+                .addField(TlvField.amountCents(2500));
+            Payload query = new Payload()
+                .addField(TlvField.username("alice"))
+                .addField(TlvField.password("secret"))
+                .addField(TlvField.accountNo("1001"));
+            Message request = Message.createRequest(OpCode.BATCH, 42, 7, Semantics.AMO);
+            request.addField(TlvField.batchItem(OpCode.DEPOSIT, StatusCode.OK, deposit));
+            request.addField(TlvField.batchItem(OpCode.QUERY_BALANCE, StatusCode.OK, query));
+            
+            Message decoded = Message.decode(request.encode());
+            assertEquals("OpCode", OpCode.BATCH, decoded.getHeader().getOpCode());
+            decoded.getPayload().validateRequired(OpCode.BATCH);
+            List<TlvField> items = decoded.getPayload().getBatchItems();
+            assertEquals("Item count", 2, items.size());
+            assertEquals("Item 1 op", OpCode.DEPOSIT, items.get(0).getItemOpCode());
+            assertEquals("Item 1 status", StatusCode.OK, items.get(0).getItemStatus());
+            Payload item = items.get(0).getItemPayload();
+            item.validateRequired(OpCode.DEPOSIT);
+            assertEquals("Item 1 amount", 2500L, item.getAmountCents());
+            assertEquals("Item 1 account", 1001L, item.getAccountNumber());
+            assertEquals("Item 2 op", OpCode.QUERY_BALANCE, items.get(1).getItemOpCode());
+            assertEquals("Item 2 fields", 3, items.get(1).getItemPayload().size());
+            
+            // Result items: status, and no fields for a failed item
+            Message reply = Message.createReply(request, StatusCode.OK);
+            reply.addField(TlvField.batchItem(OpCode.DEPOSIT, StatusCode.OK,
+                new Payload().addField(TlvField.amountCents(102500))));
+            reply.addField(TlvField.batchItem(OpCode.WITHDRAW, StatusCode.INSUFFICIENT_FUNDS, new Payload()));
+            List<TlvField> results = Message.decode(reply.encode()).getPayload().getBatchItems();
+            assertEquals("Result 1 balance", 102500L, results.get(0).getItemPayload().getAmountCents());
+            assertEquals("Result 2 status", StatusCode.INSUFFICIENT_FUNDS, results.get(1).getItemStatus());
+            assertTrue("Result 2 empty", results.get(1).getItemPayload().isEmpty());
+            
+            boolean rejected = false;
+            try {
+                new Payload().validateRequired(OpCode.BATCH);
+            } catch (ProtocolException e) {
+                rejected = true;
+            }
+            assertTrue("Empty batch rejected", rejected);
+            
+            rejected = false;
+            try {
+                TlvField.batchItem(OpCode.BATCH, StatusCode.OK,
+                    new Payload().addField(TlvField.batchItem(OpCode.DEPOSIT, StatusCode.OK, deposit)))
+                    .getItemPayload();
+            } catch (ProtocolException e) {
+                rejected = true;
+            }
+            assertTrue("Nested batch rejected", rejected);
+            
+            rejected = false;
+            try {
+                TlvField.decode(new byte[] {0x00, 0x0D, 0x00, 0x02, 0x00, 0x03}, 0);
+            } catch (ProtocolException e) {
+                rejected = true;
+            }
+            assertTrue("Short item rejected", rejected);
+            
+            pass("BATCH request and reply (repeated batchItem TLV)");
+        } catch (Exception e) {
+            fail("BATCH request and reply (repeated batchItem TLV)", e);
+        }
+    }
+    
+    private static void testAccountNumberParsing() {
+        System.out.println("Test: Numeric account number parsing");
+        try {
+            Message original = Message.createRequest(OpCode.TRANSFER, 9001, 1, Semantics.AMO);
+            original.addField(TlvField.accountNo("1001"));
+            original.addField(TlvField.toAccountNo("123456789012345678"));
+            
+            Payload decoded = Message.decode(original.encode()).getPayload();
+            assertEquals("AccountNumber", 1001L, decoded.getAccountNumber());
+            assertEquals("ToAccountNumber", 123456789012345678L, decoded.getToAccountNumber());
+            
+            Payload absent = new Payload();
+            assertEquals("Absent", Payload.NO_ACCOUNT, absent.getAccountNumber());
+            
+            String[] invalid = { "", "ACC001", "12a", "-5", "0", "1234567890123456789" };
+            for (String value : invalid) {
+                Payload p = new Payload().addField(TlvField.accountNo(value));
+                assertEquals("Invalid '" + value + "'", -1L, p.getAccountNumber());
+            }
+            
+            pass("Numeric account number parsing");
+        } catch (Exception e) {
+            fail("Numeric account number parsing", e);
+        }
+    }
+    
     // Test utilities
     
     private static void assertEquals(String name, Object expected, Object actual) {
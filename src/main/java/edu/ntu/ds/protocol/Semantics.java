@@ -14,6 +14,8 @@ public enum Semantics {
     ALO((byte) 0),  // At-Least-Once
     AMO((byte) 1);  // At-Most-Once
     
+    private static final Semantics[] VALUES = values();
+    
     private final byte value;
     
     Semantics(byte value) {
@@ -31,7 +33,7 @@ public enum Semantics {
      * @throws ProtocolException if value is invalid
      */
     public static Semantics fromByte(byte value) throws ProtocolException {
-        for (Semantics s : values()) {
+        for (Semantics s : VALUES) {
             if (s.value == value) {
                 return s;
             }
@@ -25,6 +25,8 @@ public enum StatusCode {
     ALREADY_EXISTS((short) 6, "Resource already exists"),
     INTERNAL_ERROR((short) 7, "Server internal error");
     
+    private static final StatusCode[] VALUES = values();
+    
     private final short value;
     private final String description;
     
@@ -52,7 +54,7 @@ public enum StatusCode {
      * @throws ProtocolException if value is invalid
      */
     public static StatusCode fromShort(short value) throws ProtocolException {
-        for (StatusCode sc : values()) {
+        for (StatusCode sc : VALUES) {
             if (sc.value == value) {
                 return sc;
             }
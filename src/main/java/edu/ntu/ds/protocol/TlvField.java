@@ -20,6 +20,15 @@ import java.util.Arrays;
  */
 public class TlvField {
     
+    /** Longest digit string getDigitsValue() accepts (always fits in a positive long) */
+    private static final int MAX_DIGITS = 18;
+    
+    /** Value length of an UPDATE_ENTRY field */
+    public static final int UPDATE_ENTRY_LENGTH = 2 * Long.BYTES + Integer.BYTES;
+    
+    /** Length of the opCode and status that start a BATCH_ITEM value */
+    public static final int BATCH_ITEM_HEADER_LENGTH = 2 * Short.BYTES;
+    
     private TlvType type;
     private byte[] value;
     
@@ -80,6 +89,35 @@ public class TlvField {
         return new TlvField(type, buffer.array());
     }
     
+    /**
+     * Create an UPDATE_ENTRY TLV field
+     */
+    public static TlvField updateEntry(long accountNo, long balanceCents, int changes) {
+        ByteBuffer buffer = ByteBuffer.allocate(UPDATE_ENTRY_LENGTH);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putLong(accountNo);
+        buffer.putLong(balanceCents);
+        buffer.putInt(changes);
+        return new TlvField(TlvType.UPDATE_ENTRY, buffer.array());
+    }
+    
+    /**
+     * Create a BATCH_ITEM TLV field: a sub-request (status OK) or its result
+     * @param fields the item's own TLVs
+     */
+    public static TlvField batchItem(OpCode opCode, StatusCode status, Payload fields) {
+        int length = BATCH_ITEM_HEADER_LENGTH + fields.getEncodedLength();
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("Batch item too long: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putShort(opCode.getValue());
+        buffer.putShort(status.getValue());
+        fields.encodeTo(buffer);
+        return new TlvField(TlvType.BATCH_ITEM, buffer.array());
+    }
+    
     /**
      * Create TLV field from raw bytes (for decoding)
      */
@@ -121,6 +159,18 @@ public class TlvField {
         return createString(TlvType.NOTE, note);
     }
     
+    public static TlvField ackSeqNo(int seqNo) {
+        return createUint32(TlvType.ACK_SEQ_NO, seqNo);
+    }
+    
+    public static TlvField coalescedCount(int changes) {
+        return createUint32(TlvType.COALESCED_COUNT, changes);
+    }
+    
+    public static TlvField watchAccounts(String... accountNos) {
+        return createString(TlvType.WATCH_ACCOUNTS, String.join(",", accountNos));
+    }
+    
     // Encoding
     
     /**
@@ -129,15 +179,21 @@ public class TlvField {
      * @return encoded bytes
      */
     public byte[] encode() {
-        int totalLength = 2 + 2 + value.length; // type + length + value
-        ByteBuffer buffer = ByteBuffer.allocate(totalLength);
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+    
+    /**
+     * Encode TLV field into a buffer at its current position
+     * @param buffer destination buffer with at least getEncodedLength() bytes remaining
+     */
+    public void encodeTo(ByteBuffer buffer) {
         buffer.order(ByteOrder.BIG_ENDIAN);
         
         buffer.putShort(type.getValue());       // Type (u16)
         buffer.putShort((short) value.length);  // Length (u16)
         buffer.put(value);                       // Value (bytes)
-        
-        return buffer.array();
     }
     
     /**
@@ -157,31 +213,42 @@ public class TlvField {
      * @throws ProtocolException if decoding fails
      */
     public static TlvField decode(byte[] data, int offset) throws ProtocolException {
+        return decode(ByteBuffer.wrap(data), offset);
+    }
+    
+    /**
+     * Decode a single TLV field from a buffer (heap or direct) at an absolute index.
+     * Bytes up to the buffer's limit are readable; its position is not modified.
+     * @param buffer buffer containing TLV data
+     * @param offset absolute index of the TLV type field
+     * @return decoded TlvField
+     * @throws ProtocolException if decoding fails
+     */
+    public static TlvField decode(ByteBuffer buffer, int offset) throws ProtocolException {
         // Bounds check for type and length fields
-        if (data.length - offset < 4) {
+        if (buffer.limit() - offset < 4) {
             throw new ProtocolException("Insufficient data for TLV header at offset " + offset);
         }
-        
-        ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
         buffer.order(ByteOrder.BIG_ENDIAN);
         
-        short typeValue = buffer.getShort();
+        short typeValue = buffer.getShort(offset);
         TlvType type = TlvType.fromShort(typeValue);
         
-        int length = buffer.getShort() & 0xFFFF; // Treat as unsigned
+        int length = buffer.getShort(offset + 2) & 0xFFFF; // Treat as unsigned
         
         // Bounds check for value
-        if (buffer.remaining() < length) {
+        int remaining = buffer.limit() - offset - 4;
+        if (remaining < length) {
             throw new ProtocolException("Insufficient data for TLV value: expected " + 
-                length + " bytes, got " + buffer.remaining() + " at offset " + offset);
+                length + " bytes, got " + remaining + " at offset " + offset);
         }
         
-        byte[] value = new byte[length];
-        buffer.get(value);
-        
         // Validate value length based on type
         validateValueLength(type, length);
         
+        byte[] value = new byte[length];
+        buffer.get(offset + 4, value);
+        
         return new TlvField(type, value);
     }
     
@@ -205,6 +272,16 @@ public class TlvField {
                     throw new ProtocolException("Invalid length for INT64 TLV: " + length);
                 }
                 break;
+            case UPDATE_ENTRY:
+                if (length != UPDATE_ENTRY_LENGTH) {
+                    throw new ProtocolException("Invalid length for UPDATE_ENTRY TLV: " + length);
+                }
+                break;
+            case BATCH_ITEM:
+                if (length < BATCH_ITEM_HEADER_LENGTH) {
+                    throw new ProtocolException("Invalid length for BATCH_ITEM TLV: " + length);
+                }
+                break;
             case STRING:
                 // String can be any length (including 0)
                 break;
@@ -231,6 +308,62 @@ public class TlvField {
         return new String(value, StandardCharsets.UTF_8);
     }
     
+    /**
+     * Parse a STRING value of ASCII decimal digits straight from the wire bytes,
+     * without building a String (used for account numbers)
+     * @return the number, or -1 if empty, not all digits or longer than 18 digits
+     */
+    public long getDigitsValue() {
+        if (type.getValueType() != TlvType.ValueType.STRING) {
+            throw new IllegalStateException("TLV type " + type + " is not a string type");
+        }
+        if (value.length == 0 || value.length > MAX_DIGITS) {
+            return -1;
+        }
+        long result = 0;
+        for (byte b : value) {
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            result = result * 10 + (b - '0');
+        }
+        return result;
+    }
+    
+    /**
+     * Parse a STRING value of comma-separated decimal numbers straight from the
+     * wire bytes, with the same rules per number as getDigitsValue
+     * @return the numbers, or null if any entry is empty, not all digits or too long
+     */
+    public long[] getDigitsListValue() {
+        if (type.getValueType() != TlvType.ValueType.STRING) {
+            throw new IllegalStateException("TLV type " + type + " is not a string type");
+        }
+        int count = 1;
+        for (byte b : value) {
+            if (b == ',') {
+                count++;
+            }
+        }
+        long[] result = new long[count];
+        int index = 0;
+        int digits = 0;
+        for (byte b : value) {
+            if (b == ',') {
+                if (digits == 0) {
+                    return null;
+                }
+                index++;
+                digits = 0;
+            } else if (b < '0' || b > '9' || ++digits > MAX_DIGITS) {
+                return null;
+            } else {
+                result[index] = result[index] * 10 + (b - '0');
+            }
+        }
+        return digits > 0 ? result : null;
+    }
+    
     /**
      * Get value as uint8 (for UINT8 type fields)
      */
@@ -265,6 +398,70 @@ public class TlvField {
         return buffer.getLong();
     }
     
+    /**
+     * Account number of an UPDATE_ENTRY field
+     */
+    public long getEntryAccountNo() {
+        return entryBuffer().getLong(0);
+    }
+    
+    /**
+     * Balance in cents of an UPDATE_ENTRY field
+     */
+    public long getEntryBalanceCents() {
+        return entryBuffer().getLong(Long.BYTES);
+    }
+    
+    /**
+     * Number of balance changes an UPDATE_ENTRY field stands for
+     */
+    public int getEntryChanges() {
+        return entryBuffer().getInt(2 * Long.BYTES);
+    }
+    
+    private ByteBuffer entryBuffer() {
+        if (type.getValueType() != TlvType.ValueType.UPDATE_ENTRY) {
+            throw new IllegalStateException("TLV type " + type + " is not an update entry type");
+        }
+        return ByteBuffer.wrap(value).order(ByteOrder.BIG_ENDIAN);
+    }
+    
+    /**
+     * Operation of a BATCH_ITEM field
+     * @throws ProtocolException if the code is invalid
+     */
+    public OpCode getItemOpCode() throws ProtocolException {
+        return OpCode.fromShort(itemBuffer().getShort(0));
+    }
+    
+    /**
+     * Status of a BATCH_ITEM field (OK in a request)
+     * @throws ProtocolException if the code is invalid
+     */
+    public StatusCode getItemStatus() throws ProtocolException {
+        return StatusCode.fromShort(itemBuffer().getShort(Short.BYTES));
+    }
+    
+    /**
+     * The item's own TLVs, decoded from a BATCH_ITEM field
+     * @throws ProtocolException if they are malformed or include another batch item
+     */
+    public Payload getItemPayload() throws ProtocolException {
+        Payload payload = Payload.decode(itemBuffer(), BATCH_ITEM_HEADER_LENGTH,
+            value.length - BATCH_ITEM_HEADER_LENGTH);
+        if (payload.hasField(TlvType.BATCH_ITEM)) {
+            throw new ProtocolException("Batch items cannot be nested");
+        }
+        return payload;
+    }
+    
+    private ByteBuffer itemBuffer() {
+        if (type.getValueType() != TlvType.ValueType.BATCH_ITEM) {
+            throw new IllegalStateException("TLV type " + type + " is not a batch item type");
+        }
+        return ByteBuffer.wrap(value).order(ByteOrder.BIG_ENDIAN);
+    }
+    
     /**
      * Get value as Currency (for CURRENCY type field)
      */
@@ -293,6 +490,16 @@ public class TlvField {
             case INT64:
                 sb.append(getInt64Value());
                 break;
+            case UPDATE_ENTRY:
+                sb.append(getEntryAccountNo()).append('=').append(getEntryBalanceCents())
+                    .append(" x").append(getEntryChanges());
+                break;
+            case BATCH_ITEM:
+                // The item's own TLVs (credentials included) are not shown
+                ByteBuffer item = itemBuffer();
+                sb.append(String.format("op=0x%04X status=%d fields=%d bytes", item.getShort(0) & 0xFFFF,
+                    item.getShort(Short.BYTES), value.length - BATCH_ITEM_HEADER_LENGTH));
+                break;
         }
         
         sb.append("}");
@@ -14,6 +14,19 @@ package edu.ntu.ds.protocol;
  * - 0x0006: toAccountNo (string)
  * - 0x0007: ttlSeconds (u32, unsigned 32-bit integer)
  * - 0x0008: note (string, optional)
+ * - 0x0009: ackSeqNo (u32, optional) - every request of this client with seqNo <= ackSeqNo
+ *           has its reply, so the server may discard those AMO entries
+ * - 0x000A: watchAccounts (string, optional) - comma-separated account numbers a
+ *           REGISTER_CALLBACK subscribes to; without it the client gets every update
+ * - 0x000B: coalescedCount (u32, optional) - number of balance changes an
+ *           ACCOUNT_UPDATE callback stands for, when the server merged several
+ * - 0x000C: updateEntry (accountNo i64 | balanceCents i64 | changes u32, repeated) -
+ *           one account of an ACCOUNT_UPDATE callback that reports several accounts
+ * - 0x000D: batchItem (opCode u16 | status u16 | TLVs, repeated) - one sub-request
+ *           of a BATCH request (status 0), or its result in the BATCH reply
+ * 
+ * Repeatable types may occur any number of times in a payload; every other
+ * type at most once.
  */
 public enum TlvType {
     USERNAME((short) 0x0001, "username", ValueType.STRING),
@@ -23,7 +36,12 @@ public enum TlvType {
     AMOUNT_CENTS((short) 0x0005, "amountCents", ValueType.INT64),
     TO_ACCOUNT_NO((short) 0x0006, "toAccountNo", ValueType.STRING),
     TTL_SECONDS((short) 0x0007, "ttlSeconds", ValueType.UINT32),
-    NOTE((short) 0x0008, "note", ValueType.STRING);
+    NOTE((short) 0x0008, "note", ValueType.STRING),
+    ACK_SEQ_NO((short) 0x0009, "ackSeqNo", ValueType.UINT32),
+    WATCH_ACCOUNTS((short) 0x000A, "watchAccounts", ValueType.STRING),
+    COALESCED_COUNT((short) 0x000B, "coalescedCount", ValueType.UINT32),
+    UPDATE_ENTRY((short) 0x000C, "updateEntry", ValueType.UPDATE_ENTRY, true),
+    BATCH_ITEM((short) 0x000D, "batchItem", ValueType.BATCH_ITEM, true);
     
     /**
      * Value type for encoding/decoding
@@ -32,17 +50,25 @@ public enum TlvType {
         STRING,  // UTF-8 string (NO additional length prefix in TLV value, Length field is the string length)
         UINT8,   // Unsigned 8-bit integer
         UINT32,  // Unsigned 32-bit integer
-        INT64    // Signed 64-bit integer
+        INT64,   // Signed 64-bit integer
+        UPDATE_ENTRY, // int64 account number | int64 balance in cents | uint32 change count
+        BATCH_ITEM    // uint16 opCode | uint16 status | the item's own TLVs
     }
     
     private final short value;
     private final String name;
     private final ValueType valueType;
+    private final boolean repeatable;
     
     TlvType(short value, String name, ValueType valueType) {
+        this(value, name, valueType, false);
+    }
+    
+    TlvType(short value, String name, ValueType valueType, boolean repeatable) {
         this.value = value;
         this.name = name;
         this.valueType = valueType;
+        this.repeatable = repeatable;
     }
     
     public short getValue() {
@@ -57,6 +83,13 @@ public enum TlvType {
         return valueType;
     }
     
+    /**
+     * Whether a payload may hold several fields of this type
+     */
+    public boolean isRepeatable() {
+        return repeatable;
+    }
+    
     /**
      * Convert short value to TlvType enum
      * @param value short value from protocol
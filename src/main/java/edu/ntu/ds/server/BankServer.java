@@ -1,24 +1,201 @@
 package edu.ntu.ds.server;
 
 import edu.ntu.ds.network.UdpServer;
+import edu.ntu.ds.persistence.WriteAheadLog;
+import edu.ntu.ds.service.AccountBalance;
+import edu.ntu.ds.service.AccountSnapshot;
 import edu.ntu.ds.service.AccountStore;
+import edu.ntu.ds.service.AmoCache;
 import edu.ntu.ds.service.BankingService;
 import edu.ntu.ds.service.RequestProcessor;
+import edu.ntu.ds.service.TimerWheel;
 
-import java.net.SocketException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Distributed Banking System - UDP Server
  * 
- * Usage: java BankServer [port] [requestLoss%] [replyLoss%]
+ * Usage: java BankServer [port] [requestLoss%] [replyLoss%] [options]
+ * 
+ * Options:
+ *   --workers=N            Run requests on N worker threads sharded by clientId
+ *   --transport=socket|nio Blocking DatagramSocket (default) or NIO DatagramChannel
+ *   --listeners=N          Bind N sockets to the port with SO_REUSEPORT
+ *   --virtual=N            One virtual thread per request, at most N in flight (JDK 21+)
+ *   --amo-entries=N        Maximum cached AMO replies
+ *   --amo-bytes=N          Maximum memory of cached AMO replies in bytes
+ *   --amo-eviction=lru|fifo|size_aware
+ *   --balance=cas|locked|striped
+ *                          Account balance implementation (default: cas)
+ *   --stripe-threshold=N   Switch a CAS account to striped after N CAS failures
+ *                          per 1024 updates (0 = never)
+ *   --wal=FILE             Log account changes to FILE and replay it on startup
+ *   --wal-sync=every_op|batched|async
+ *                          When replies wait for the log fsync (default: every_op)
+ *   --wal-interval=MS      Batch window for batched/async (default: 2)
+ *   --snapshot=FILE        Periodically snapshot all accounts to FILE (needs --wal);
+ *                          startup loads it and replays only the log tail
+ *   --snapshot-interval=S  Seconds between snapshots (default: 300)
+ *   --callback-interval=MS Send at most one ACCOUNT_UPDATE per account per MS,
+ *                          with the latest balance (default: 0 = every update)
  * 
  * Examples:
  *   java BankServer 8888                  # Start on port 8888, no loss simulation
  *   java BankServer 8888 20 20            # Start with 20% request/reply loss
+ *   java BankServer 8888 0 0 --workers=16 # Pipeline mode with 16 workers
+ *   java BankServer 8888 0 0 --transport=nio
+ *   java BankServer 8888 0 0 --listeners=16
+ *   java BankServer 8888 0 0 --amo-entries=50000 --amo-eviction=fifo
+ *   java BankServer 8888 0 0 --wal=bank.wal --wal-sync=batched
+ *   java BankServer 8888 0 0 --wal=bank.wal --snapshot=bank.snap
+ *   java BankServer 8888 0 0 --callback-interval=200
  */
 public class BankServer {
     
-    public static void main(String[] args) {
+    // CAS failures per 1024 balance updates that move an account to a striped balance
+    private static final int DEFAULT_STRIPE_THRESHOLD = 64;
+    
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_S = 300;
+    
+    public static void main(String[] rawArgs) {
+        // Split "--name=value" options from positional arguments
+        List<String> positional = new ArrayList<>();
+        int workers = 0;
+        UdpServer.TransportMode transport = UdpServer.TransportMode.SOCKET;
+        int listeners = 1;
+        int maxVirtual = 0;
+        int amoEntries = AmoCache.DEFAULT_MAX_ENTRIES;
+        long amoBytes = AmoCache.DEFAULT_MAX_BYTES;
+        AmoCache.EvictionPolicy amoEviction = AmoCache.EvictionPolicy.LRU;
+        AccountBalance.Kind balanceKind = AccountBalance.Kind.CAS;
+        int stripeThreshold = DEFAULT_STRIPE_THRESHOLD;
+        Path walPath = null;
+        WriteAheadLog.SyncPolicy walSync = WriteAheadLog.SyncPolicy.EVERY_OP;
+        long walInterval = WriteAheadLog.DEFAULT_BATCH_INTERVAL_MS;
+        Path snapshotPath = null;
+        long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL_S;
+        long callbackInterval = 0;
+        
+        for (String arg : rawArgs) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            String name = arg.contains("=") ? arg.substring(2, arg.indexOf('=')) : arg.substring(2);
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            try {
+                switch (name) {
+                    case "workers":
+                        workers = Integer.parseInt(value);
+                        if (workers < 0) {
+                            throw new NumberFormatException("must be >= 0");
+                        }
+                        break;
+                    case "transport":
+                        transport = UdpServer.TransportMode.valueOf(value.toUpperCase());
+                        break;
+                    case "virtual":
+                        maxVirtual = Integer.parseInt(value);
+                        if (maxVirtual < 0) {
+                            throw new NumberFormatException("must be >= 0");
+                        }
+                        break;
+                    case "listeners":
+                        listeners = Integer.parseInt(value);
+                        if (listeners <= 0) {
+                            throw new NumberFormatException("must be > 0");
+                        }
+                        break;
+                    case "amo-entries":
+                        amoEntries = Integer.parseInt(value);
+                        if (amoEntries <= 0) {
+                            throw new NumberFormatException("must be > 0");
+                        }
+                        break;
+                    case "amo-bytes":
+                        amoBytes = Long.parseLong(value);
+                        if (amoBytes <= 0) {
+                            throw new NumberFormatException("must be > 0");
+                        }
+                        break;
+                    case "amo-eviction":
+                        amoEviction = AmoCache.EvictionPolicy.valueOf(value.toUpperCase());
+                        break;
+                    case "balance":
+                        balanceKind = AccountBalance.Kind.valueOf(value.toUpperCase());
+                        break;
+                    case "stripe-threshold":
+                        stripeThreshold = Integer.parseInt(value);
+                        if (stripeThreshold < 0) {
+                            throw new NumberFormatException("must be >= 0");
+                        }
+                        break;
+                    case "wal":
+                        if (value.isEmpty()) {
+                            throw new IllegalArgumentException("missing file");
+                        }
+                        walPath = Paths.get(value);
+                        break;
+                    case "wal-sync":
+                        walSync = WriteAheadLog.SyncPolicy.valueOf(value.toUpperCase());
+                        break;
+                    case "wal-interval":
+                        walInterval = Long.parseLong(value);
+                        if (walInterval <= 0) {
+                            throw new NumberFormatException("must be > 0");
+                        }
+                        break;
+                    case "snapshot":
+                        if (value.isEmpty()) {
+                            throw new IllegalArgumentException("missing file");
+                        }
+                        snapshotPath = Paths.get(value);
+                        break;
+                    case "snapshot-interval":
+                        snapshotInterval = Long.parseLong(value);
+                        if (snapshotInterval <= 0) {
+                            throw new NumberFormatException("must be > 0");
+                        }
+                        break;
+                    case "callback-interval":
+                        callbackInterval = Long.parseLong(value);
+                        if (callbackInterval < 0) {
+                            throw new NumberFormatException("must be >= 0");
+                        }
+                        break;
+                    default:
+                        System.err.println("Unknown option: " + arg);
+                        printUsage();
+                        System.exit(1);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid value for --" + name + ": " + value);
+                printUsage();
+                System.exit(1);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
+        
+        if (workers > 0 && maxVirtual > 0) {
+            System.err.println("--workers and --virtual are mutually exclusive");
+            printUsage();
+            System.exit(1);
+        }
+        
+        if (snapshotPath != null && walPath == null) {
+            System.err.println("--snapshot needs --wal (the snapshot records a log position)");
+            printUsage();
+            System.exit(1);
+        }
+        
         // Parse command line arguments
         int port = 8888;
         double requestLoss = 0.0;
@@ -50,26 +227,115 @@ public class BankServer {
         }
         
         // Initialize components
-        AccountStore accountStore = new AccountStore();
+        AccountStore accountStore = new AccountStore(balanceKind, stripeThreshold);
         BankingService bankingService = new BankingService(accountStore);
-        RequestProcessor processor = new RequestProcessor(bankingService);
+        AmoCache amoCache = new AmoCache(AmoCache.DEFAULT_MAX_AGE_MS, amoEntries, amoBytes, amoEviction);
+        RequestProcessor processor = new RequestProcessor(bankingService, amoCache);
+        TimerWheel timers = new TimerWheel();  // Expires AMO entries and callback registrations
+        amoCache.startExpiry(timers);
+        processor.getCallbackRegistry().startExpiry(timers);
+        timers.start();
+        WriteAheadLog wal = null;
+        if (walPath != null) {
+            long started = System.nanoTime();
+            long replayFrom = 0;
+            long replyFrom = 0;
+            if (snapshotPath != null && Files.exists(snapshotPath)) {
+                try {
+                    AccountSnapshot snapshot = bankingService.loadSnapshot(snapshotPath);
+                    replayFrom = snapshot.getLogPosition();
+                    replyFrom = snapshot.getReplyLogPosition();
+                } catch (IOException e) {
+                    System.err.println("Failed to load snapshot " + snapshotPath + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            // Records before the snapshot position only contribute their AMO replies
+            long applyFrom = replayFrom;
+            try {
+                wal = WriteAheadLog.open(walPath, walSync, walInterval, replyFrom, (record, end) -> {
+                    if (end > applyFrom) {
+                        bankingService.applyLogRecord(record);
+                    }
+                    processor.restoreReply(record);
+                });
+            } catch (IOException e) {
+                System.err.println("Failed to open write-ahead log " + walPath + ": " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.printf("Recovered %d accounts and %d AMO replies (%s) in %d ms%n",
+                accountStore.size(), amoCache.size(),
+                replayFrom > 0 ? "snapshot + log from byte " + replyFrom : "log", 
+                (System.nanoTime() - started) / 1_000_000);
+            bankingService.setWriteAheadLog(wal);
+        }
+        WriteAheadLog durableLog = wal;
+        Path snapshotFile = snapshotPath;
+        ScheduledExecutorService snapshotter = null;
+        if (snapshotFile != null) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshotter.scheduleWithFixedDelay(() -> takeSnapshot(bankingService, amoCache, snapshotFile),
+                snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        ScheduledExecutorService snapshotThread = snapshotter;
         
         // Create and configure server
         UdpServer server = new UdpServer(port, processor);
-        processor.setServer(server);
+        server.setTransportMode(transport);
+        server.setListenerCount(listeners);
+        processor.setServer(server, callbackInterval);
         
         // Enable loss simulation if specified
         if (requestLoss > 0 || replyLoss > 0) {
             server.enableLossSimulation(requestLoss, replyLoss);
         }
         
+        // Enable multi-threaded pipeline if requested
+        if (workers > 0) {
+            server.enablePipeline(workers);
+        }
+        
+        // Enable virtual-thread-per-request execution if requested
+        if (maxVirtual > 0) {
+            try {
+                server.enableVirtualThreads(maxVirtual);
+            } catch (IllegalStateException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        
         // Add shutdown hook for graceful shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nShutting down server...");
             server.stop();
+            timers.stop();
+            if (snapshotThread != null) {
+                snapshotThread.shutdownNow();
+                takeSnapshot(bankingService, amoCache, snapshotFile);  // Next start replays little
+            }
+            if (durableLog != null) {
+                try {
+                    durableLog.close();
+                    System.out.println("Write-ahead log: " + durableLog);
+                } catch (IOException e) {
+                    System.err.println("Error closing write-ahead log: " + e.getMessage());
+                }
+            }
             System.out.println("AMO Cache stats: " + processor.getAmoCache());
+            System.out.println("Expiry timers: " + timers);
             System.out.println("Callback Registry: " + processor.getCallbackRegistry());
+            System.out.println("Callbacks: " + processor.getCallbackDispatcher());
+            processor.getCallbackDispatcher().stop();
+            System.out.println("Striped accounts: " + accountStore.countByBalanceKind(AccountBalance.Kind.STRIPED));
             System.out.println("Loss Simulator: " + server.getLossSimulator());
+            if (server.getExecutionMode() != UdpServer.ExecutionMode.INLINE) {
+                System.out.println("Rejected (queue full / in-flight limit): " + server.getRequestsRejected());
+            }
         }));
         
         // Print startup banner
@@ -81,6 +347,22 @@ public class BankServer {
         System.out.printf("║  Loss Simulation: %-30s ║%n", 
             (requestLoss > 0 || replyLoss > 0) ? 
             String.format("req=%.0f%%, rep=%.0f%%", requestLoss * 100, replyLoss * 100) : "DISABLED");
+        System.out.printf("║  Transport: %-37s ║%n", 
+            listeners > 1 ? transport + " (" + listeners + " x SO_REUSEPORT)" : transport);
+        System.out.printf("║  Execution: %-37s ║%n", 
+            workers > 0 ? "PIPELINE (" + workers + " workers)" : 
+            maxVirtual > 0 ? "VIRTUAL (max " + maxVirtual + " in flight)" : "INLINE");
+        System.out.printf("║  AMO Cache: %-37s ║%n", 
+            String.format("%d entries / %d KiB, %s", amoEntries, amoBytes / 1024, amoEviction));
+        System.out.printf("║  Balances: %-38s ║%n", 
+            balanceKind == AccountBalance.Kind.CAS && stripeThreshold > 0 ? 
+            "CAS (striped at " + stripeThreshold + "/1024 failures)" : balanceKind);
+        System.out.printf("║  WAL: %-43s ║%n", 
+            walPath == null ? "DISABLED" : 
+            (walSync == WriteAheadLog.SyncPolicy.EVERY_OP ? walSync.toString() : walSync + " (" + walInterval + " ms)")
+            + (snapshotPath != null ? ", snapshot every " + snapshotInterval + " s" : ""));
+        System.out.printf("║  Callbacks: %-37s ║%n", 
+            callbackInterval > 0 ? "coalesced per " + callbackInterval + " ms" : "every update");
         System.out.println("╠═══════════════════════════════════════════════════╣");
         System.out.println("║  Press Ctrl+C to stop                             ║");
         System.out.println("╚═══════════════════════════════════════════════════╝");
@@ -89,22 +371,87 @@ public class BankServer {
         // Start server
         try {
             server.start();
-        } catch (SocketException e) {
+        } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
             System.exit(1);
         }
     }
     
+    /**
+     * Snapshot all accounts, reporting (not propagating) failures
+     */
+    private static void takeSnapshot(BankingService bankingService, AmoCache amoCache, Path file) {
+        try {
+            long started = System.nanoTime();
+            AccountSnapshot snapshot = bankingService.writeSnapshot(file, amoCache.getMaxAgeMs());
+            System.out.printf("Snapshot of %d accounts at log byte %d written to %s in %d ms%n",
+                snapshot.getAccountCount(), snapshot.getLogPosition(), file,
+                (System.nanoTime() - started) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Snapshot to " + file + " failed: " + e.getMessage());
+        }
+    }
+    
     private static void printUsage() {
-        System.out.println("Usage: java BankServer [port] [requestLoss%] [replyLoss%]");
+        System.out.println("Usage: java BankServer [port] [requestLoss%] [replyLoss%] [options]");
         System.out.println();
         System.out.println("Arguments:");
         System.out.println("  port         - Server port (default: 8888)");
         System.out.println("  requestLoss  - Request drop percentage 0-100 (default: 0)");
         System.out.println("  replyLoss    - Reply drop percentage 0-100 (default: 0)");
         System.out.println();
+        System.out.println("Options:");
+        System.out.println("  --workers=N  - Process requests on N worker threads sharded by clientId");
+        System.out.println("                 (default: 0 = single-threaded)");
+        System.out.println("  --transport=socket|nio");
+        System.out.println("               - Blocking DatagramSocket or NIO DatagramChannel with");
+        System.out.println("                 pooled direct buffers (default: socket)");
+        System.out.println("  --listeners=N");
+        System.out.println("               - Bind N sockets to the port with SO_REUSEPORT, one");
+        System.out.println("                 receive thread each (default: 1)");
+        System.out.println("  --virtual=N  - Run each request on a virtual thread, at most N in");
+        System.out.println("                 flight; requires JDK 21+ (default: 0 = disabled)");
+        System.out.println("  --amo-entries=N");
+        System.out.println("               - Maximum number of cached AMO replies (default: "
+            + AmoCache.DEFAULT_MAX_ENTRIES + ")");
+        System.out.println("  --amo-bytes=N");
+        System.out.println("               - Maximum memory of cached AMO replies in bytes, including");
+        System.out.println("                 per-entry overhead (default: " + AmoCache.DEFAULT_MAX_BYTES + ")");
+        System.out.println("  --amo-eviction=lru|fifo|size_aware");
+        System.out.println("               - Which cached replies to evict when a bound is hit (default: lru)");
+        System.out.println("  --balance=cas|locked|striped");
+        System.out.println("               - Account balance updates: lock-free CAS, StampedLock, or");
+        System.out.println("                 LongAdder cells for deposit-heavy accounts (default: cas)");
+        System.out.println("  --stripe-threshold=N");
+        System.out.println("               - Move a CAS account to a striped balance after N CAS failures");
+        System.out.println("                 per 1024 updates; 0 = never (default: " + DEFAULT_STRIPE_THRESHOLD + ")");
+        System.out.println("  --wal=FILE   - Append account changes to a write-ahead log and replay it");
+        System.out.println("                 on startup (default: no log, state is lost on restart)");
+        System.out.println("  --wal-sync=every_op|batched|async");
+        System.out.println("               - every_op: replies wait for the fsync covering them;");
+        System.out.println("                 batched: fsync at most every --wal-interval ms;");
+        System.out.println("                 async: reply at once, fsync in the background (default: every_op)");
+        System.out.println("  --wal-interval=MS");
+        System.out.println("               - Group commit window for batched/async (default: "
+            + WriteAheadLog.DEFAULT_BATCH_INTERVAL_MS + ")");
+        System.out.println("  --snapshot=FILE");
+        System.out.println("               - Snapshot all accounts to FILE periodically and on shutdown;");
+        System.out.println("                 startup loads it and replays only the log after it (needs --wal)");
+        System.out.println("  --snapshot-interval=S");
+        System.out.println("               - Seconds between snapshots (default: " + DEFAULT_SNAPSHOT_INTERVAL_S + ")");
+        System.out.println("  --callback-interval=MS");
+        System.out.println("               - Send at most one ACCOUNT_UPDATE per account per MS, with the");
+        System.out.println("                 latest balance and the number of changes (default: 0 = every update)");
+        System.out.println();
         System.out.println("Examples:");
         System.out.println("  java BankServer 8888");
         System.out.println("  java BankServer 8888 20 20");
+        System.out.println("  java BankServer 8888 0 0 --workers=16");
+        System.out.println("  java BankServer 8888 0 0 --workers=16 --transport=nio");
+        System.out.println("  java BankServer 8888 0 0 --listeners=16 --transport=nio");
+        System.out.println("  java BankServer 8888 0 0 --amo-entries=50000 --amo-eviction=fifo");
+        System.out.println("  java BankServer 8888 0 0 --wal=bank.wal --wal-sync=batched");
+        System.out.println("  java BankServer 8888 0 0 --wal=bank.wal --snapshot=bank.snap");
+        System.out.println("  java BankServer 8888 0 0 --callback-interval=200");
     }
 }
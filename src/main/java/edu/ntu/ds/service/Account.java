@@ -2,28 +2,90 @@ package edu.ntu.ds.service;
 
 import edu.ntu.ds.protocol.Currency;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.StampedLock;
+
 /**
  * Account entity representing a bank account.
  * 
  * All monetary values are stored as signed 64-bit integers representing the smallest
  * currency unit (e.g., cents for dollars). This avoids floating-point precision issues.
+ * 
+ * The balance itself is an AccountBalance (lock-free CAS by default), so
+ * single-account deposits and withdrawals never block each other. The account's
+ * StampedLock is for operations spanning several accounts (transfer), which
+ * lock every account involved in lockOrder(), and, with a write-ahead log, for
+ * holding each change until its record is appended.
+ * 
+ * The implementation can change at runtime (setBalanceKind), and a CAS balance
+ * created with a contention threshold moves itself to STRIPED once it reports
+ * contention. The old balance is sealed and its final value seeds the new one;
+ * a caller that hits the sealed balance waits for the new one and retries.
+ * 
+ * The snapshot mark lets a snapshot be captured without stopping requests: for
+ * snapshot epoch e it is 2e while the account's state at that cut is being
+ * recorded and 2e+1 once it is recorded (or the account was created after the
+ * cut). See AccountSnapshot.Capture.
  */
 public class Account {
     
-    private final String accountNo;
+    private static final VarHandle SNAPSHOT_MARK;
+    
+    static {
+        try {
+            SNAPSHOT_MARK = MethodHandles.lookup().findVarHandle(Account.class, "snapshotMark", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private final long accountNo;  // positive; the protocol carries it as decimal digits
     private final String username;
     private final String passwordHash;  // In production, this would be hashed
     private final Currency currency;
-    private long balanceCents;
+    private volatile AccountBalance balance;
     private final long createdAt;
+    private final StampedLock lock = new StampedLock();
+    private volatile long snapshotMark = 1;  // epoch 0 (no snapshot yet) counts as recorded
     
     public Account(String accountNo, String username, String password, Currency currency, long initialBalance) {
+        this(Long.parseLong(accountNo), username, password, currency, initialBalance, AccountBalance.Kind.CAS, 0);
+    }
+    
+    /**
+     * Constructor choosing the balance implementation
+     */
+    public Account(String accountNo, String username, String password, Currency currency,
+                   long initialBalance, AccountBalance.Kind balanceKind) {
+        this(Long.parseLong(accountNo), username, password, currency, initialBalance, balanceKind, 0);
+    }
+    
+    /**
+     * Constructor choosing the balance implementation and the CAS contention
+     * threshold (failures per CasBalance.CONTENTION_WINDOW updates) at which the
+     * account switches to a striped balance; 0 disables the switch
+     */
+    public Account(long accountNo, String username, String password, Currency currency,
+                   long initialBalance, AccountBalance.Kind balanceKind, int stripeThreshold) {
+        this(accountNo, username, password, currency, System.currentTimeMillis(),
+            AccountBalance.create(balanceKind, initialBalance, stripeThreshold));  // Support initial balance as per project requirement
+    }
+    
+    /**
+     * Constructor taking an already created balance (e.g. when restoring a snapshot)
+     */
+    Account(long accountNo, String username, String password, Currency currency,
+            long createdAt, AccountBalance balance) {
+        if (accountNo <= 0) {
+            throw new IllegalArgumentException("Account number must be positive: " + accountNo);
+        }
         this.accountNo = accountNo;
         this.username = username;
         this.passwordHash = password;  // In production: hash the password
         this.currency = currency;
-        this.balanceCents = initialBalance;  // Support initial balance as per project requirement
-        this.createdAt = System.currentTimeMillis();
+        this.balance = balance;
+        this.createdAt = createdAt;
     }
     
     /**
@@ -45,11 +107,17 @@ public class Account {
      * @param amountCents amount in cents (must be positive)
      * @throws IllegalArgumentException if amount is not positive
      */
-    public synchronized void deposit(long amountCents) {
+    public void deposit(long amountCents) {
         if (amountCents <= 0) {
             throw new IllegalArgumentException("Deposit amount must be positive");
         }
-        this.balanceCents += amountCents;
+        AccountBalance b = balance;
+        while (!b.add(amountCents)) {
+            b = awaitReplacement(b);
+        }
+        if (b.isContended()) {
+            replaceBalance(b, AccountBalance.Kind.STRIPED);
+        }
     }
     
     /**
@@ -58,20 +126,120 @@ public class Account {
      * @return true if withdrawal successful, false if insufficient funds
      * @throws IllegalArgumentException if amount is not positive
      */
-    public synchronized boolean withdraw(long amountCents) {
+    public boolean withdraw(long amountCents) {
         if (amountCents <= 0) {
             throw new IllegalArgumentException("Withdrawal amount must be positive");
         }
-        if (this.balanceCents < amountCents) {
-            return false; // Insufficient funds
+        AccountBalance b = balance;
+        int result;
+        while ((result = b.tryWithdraw(amountCents)) == AccountBalance.SEALED_RESULT) {
+            b = awaitReplacement(b);
+        }
+        if (b.isContended()) {
+            replaceBalance(b, AccountBalance.Kind.STRIPED);
+        }
+        return result == AccountBalance.WITHDRAWN;
+    }
+    
+    /**
+     * Apply a balance change replayed from the write-ahead log: no funds check,
+     * since replayed deltas may pass through a negative balance on the way to
+     * the logged final value
+     */
+    void applyLoggedDelta(long deltaCents) {
+        AccountBalance b = balance;
+        while (!b.add(deltaCents)) {
+            b = awaitReplacement(b);
+        }
+    }
+    
+    /**
+     * Switch this account's balance implementation, carrying the balance over
+     * @throws IllegalStateException if the current balance is STRIPED (cannot be migrated)
+     */
+    public void setBalanceKind(AccountBalance.Kind kind) {
+        replaceBalance(balance, kind);
+    }
+    
+    public AccountBalance.Kind getBalanceKind() {
+        return balance.kind();
+    }
+    
+    /**
+     * Seal the expected balance and publish a new one of the given kind, unless
+     * another thread already replaced it
+     */
+    private synchronized void replaceBalance(AccountBalance expected, AccountBalance.Kind kind) {
+        if (balance != expected || expected.kind() == kind) {
+            return;
+        }
+        if (expected.kind() == AccountBalance.Kind.STRIPED) {
+            throw new IllegalStateException("Account " + accountNo + " has a striped balance, which cannot be migrated");
+        }
+        long finalCents = expected.seal();
+        balance = AccountBalance.create(kind, finalCents, 0);
+    }
+    
+    /**
+     * Wait (briefly) for the balance that replaces a sealed one
+     */
+    private AccountBalance awaitReplacement(AccountBalance sealed) {
+        AccountBalance b;
+        while ((b = balance) == sealed) {
+            Thread.onSpinWait();
+        }
+        return b;
+    }
+    
+    /**
+     * Claim the recording of this account's state at the cut of a snapshot epoch
+     * @return true if the caller must record it now and then call snapshotRecorded;
+     *         false if it is already recorded (after waiting for a thread that is
+     *         recording it) or the account was created after the cut
+     */
+    boolean claimSnapshot(long epoch) {
+        long claimed = 2 * epoch;
+        long mark;
+        while ((mark = snapshotMark) <= claimed) {
+            if (mark == claimed) {
+                Thread.onSpinWait();
+            } else if (SNAPSHOT_MARK.compareAndSet(this, mark, claimed)) {
+                return true;
+            }
         }
-        this.balanceCents -= amountCents;
-        return true;
+        return false;
+    }
+    
+    /**
+     * Mark this account's state at the epoch's cut as recorded (also used for an
+     * account created after the cut, before it is published)
+     */
+    void snapshotRecorded(long epoch) {
+        snapshotMark = 2 * epoch + 1;
+    }
+    
+    StampedLock getLock() {
+        return lock;
+    }
+    
+    /**
+     * Canonical lock order between two accounts: ascending account number
+     * @return negative if a must be locked before b
+     */
+    static int lockOrder(Account a, Account b) {
+        return Long.compare(a.accountNo, b.accountNo);
     }
     
     // Getters
     
+    /**
+     * Account number in its protocol (decimal string) form
+     */
     public String getAccountNo() {
+        return Long.toString(accountNo);
+    }
+    
+    public long getAccountNumber() {
         return accountNo;
     }
     
@@ -79,12 +247,21 @@ public class Account {
         return username;
     }
     
+    String getPasswordHash() {
+        return passwordHash;
+    }
+    
     public Currency getCurrency() {
         return currency;
     }
     
-    public synchronized long getBalanceCents() {
-        return balanceCents;
+    public long getBalanceCents() {
+        AccountBalance b = balance;
+        long cents;
+        while ((cents = b.get()) == AccountBalance.SEALED) {
+            b = awaitReplacement(b);
+        }
+        return cents;
     }
     
     public long getCreatedAt() {
@@ -93,7 +270,7 @@ public class Account {
     
     @Override
     public String toString() {
-        return String.format("Account{no=%s, user=%s, currency=%s, balance=%d cents}",
-            accountNo, username, currency, balanceCents);
+        return String.format("Account{no=%d, user=%s, currency=%s, balance=%d cents}",
+            accountNo, username, currency, getBalanceCents());
     }
 }
@@ -0,0 +1,88 @@
+package edu.ntu.ds.service;
+
+/**
+ * Storage and concurrency strategy for one account's balance (in cents).
+ * 
+ * Single-account deposits and withdrawals go straight to the balance; the
+ * Account lock is only taken by operations that span several accounts
+ * (transfer), which then call the same methods. Implementations must make
+ * add and tryWithdraw individually atomic, and tryWithdraw must never let the
+ * balance go negative.
+ * 
+ * To switch an account to another implementation, its balance is sealed: the
+ * final value is handed to the replacement, and from then on the old instance
+ * rejects every call (SEALED / false) so the caller retries on the new one.
+ */
+public interface AccountBalance {
+    
+    /**
+     * Available balance implementations
+     */
+    enum Kind {
+        /** Guarded by a StampedLock, optimistic reads */
+        LOCKED,
+        /** Lock-free compare-and-set loop on a single long */
+        CAS,
+        /** Deposits spread over LongAdder cells, withdrawals serialized (receive-heavy accounts) */
+        STRIPED
+    }
+    
+    /** get() result of a sealed balance */
+    long SEALED = Long.MIN_VALUE;
+    
+    // tryWithdraw results
+    int WITHDRAWN = 0;
+    int INSUFFICIENT_FUNDS = 1;
+    int SEALED_RESULT = 2;
+    
+    Kind kind();
+    
+    /**
+     * Current balance in cents, or SEALED
+     */
+    long get();
+    
+    /**
+     * Add an amount: positive for a deposit, negative only when replaying a
+     * logged withdrawal (which takes no funds check)
+     * @return false if the balance is sealed (nothing added)
+     */
+    boolean add(long amountCents);
+    
+    /**
+     * Subtract a positive amount if the balance covers it
+     * @return WITHDRAWN, INSUFFICIENT_FUNDS (no change) or SEALED_RESULT
+     */
+    int tryWithdraw(long amountCents);
+    
+    /**
+     * Stop accepting updates and return the final balance
+     * @throws UnsupportedOperationException if this implementation cannot be migrated away from
+     */
+    long seal();
+    
+    /**
+     * Whether recent updates contended enough that the account should move to STRIPED
+     */
+    default boolean isContended() {
+        return false;
+    }
+    
+    /**
+     * Create a balance of the given kind
+     * @param contentionThreshold CAS failures per window that mark a CAS balance as
+     *                            contended (0 = never)
+     */
+    static AccountBalance create(Kind kind, long initialCents, int contentionThreshold) {
+        switch (kind) {
+            case LOCKED:
+                return new LockedBalance(initialCents);
+            case CAS:
+                return new CasBalance(initialCents, contentionThreshold);
+            case STRIPED:
+                return new StripedBalance(initialCents);
+            default:
+                throw new IllegalArgumentException("Unknown balance kind: " + kind);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package edu.ntu.ds.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent map from a positive long account number to its Account, with no
+ * boxed keys or per-entry nodes: each segment is a pair of parallel arrays
+ * (long keys, Account values) with linear probing and backward-shift deletion.
+ * Key 0 marks an empty slot, so account numbers must be positive.
+ * 
+ * Segments are chosen by the key's hash and each is guarded by a StampedLock.
+ * Lookups run as optimistic reads and only take the read lock if a writer
+ * intervened; inserts and removals take the write lock of one segment.
+ */
+final class AccountIndex {
+    
+    private static final int SEGMENT_COUNT = 64;
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        long[] keys = new long[INITIAL_CAPACITY];
+        Account[] values = new Account[INITIAL_CAPACITY];
+        int size;
+    }
+    
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final AtomicInteger size = new AtomicInteger();
+    
+    AccountIndex() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+    
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+    
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 58)]; // top 6 bits
+    }
+    
+    /**
+     * @return the account, or null if absent (or key is not positive)
+     */
+    Account get(long key) {
+        if (key <= 0) {
+            return null;
+        }
+        long hash = mix(key);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        Account found = probe(segment.keys, segment.values, key, hash);
+        if (segment.lock.validate(stamp)) {
+            return found;
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return probe(segment.keys, segment.values, key, hash);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Look a key up in one table. Safe on a torn view during an optimistic read:
+     * mismatched arrays or a full table just return null, and validate() fails.
+     */
+    private static Account probe(long[] keys, Account[] values, long key, long hash) {
+        int capacity = keys.length;
+        if (capacity != values.length) {
+            return null;
+        }
+        int mask = capacity - 1;
+        int i = (int) hash & mask;
+        for (int n = 0; n < capacity; n++, i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Insert unless the key is already mapped
+     * @return the existing account, or null if this one was added
+     */
+    Account putIfAbsent(long key, Account account) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Account number must be positive: " + key);
+        }
+        long hash = mix(key);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            if ((segment.size + 1) * 4 > segment.keys.length * 3) {
+                resize(segment);
+            }
+            long[] keys = segment.keys;
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return segment.values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            segment.values[i] = account;
+            segment.size++;
+            size.incrementAndGet();
+            return null;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * @return the removed account, or null if absent
+     */
+    Account remove(long key) {
+        if (key <= 0) {
+            return null;
+        }
+        long hash = mix(key);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            long[] keys = segment.keys;
+            Account[] values = segment.values;
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            Account removed = values[i];
+            
+            // Backward-shift: pull later entries of the probe run into the hole
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = (int) mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            segment.size--;
+            size.decrementAndGet();
+            return removed;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+    
+    private static void resize(Segment segment) {
+        long[] oldKeys = segment.keys;
+        Account[] oldValues = segment.values;
+        long[] keys = new long[oldKeys.length * 2];
+        Account[] values = new Account[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = (int) mix(oldKeys[j]) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+        segment.keys = keys;
+        segment.values = values;
+    }
+    
+    int size() {
+        return size.get();
+    }
+    
+    /**
+     * Snapshot of all accounts (each segment read under its read lock)
+     */
+    List<Account> values() {
+        List<Account> result = new ArrayList<>(size());
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                for (Account account : segment.values) {
+                    if (account != null) {
+                        result.add(account);
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+    
+    void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                size.addAndGet(-segment.size);
+                segment.keys = new long[INITIAL_CAPACITY];
+                segment.values = new Account[INITIAL_CAPACITY];
+                segment.size = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+}
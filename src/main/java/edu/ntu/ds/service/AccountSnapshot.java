@@ -0,0 +1,303 @@
+package edu.ntu.ds.service;
+
+import edu.ntu.ds.protocol.Currency;
+import edu.ntu.ds.protocol.ProtocolException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Point-in-time image of an AccountStore, written to and loaded from a
+ * memory-mapped file.
+ * 
+ * A snapshot is captured in two steps. begin() takes the cut while
+ * BankingService holds every mutation off (its checkpoint gate); it only
+ * starts a new snapshot epoch and notes the positions, so it takes constant
+ * time whatever the number of accounts. The returned Capture then walks the
+ * accounts while requests run. A request that changes an account first calls
+ * preserve(), which records the account's balance as of the cut if nobody has
+ * yet, so each account is recorded exactly once, before any change after the
+ * cut, by whichever of the two reaches it first (see Account.claimSnapshot).
+ * Encoding and writing the file happen afterwards. Account metadata (number,
+ * owner, currency, creation time) never changes, so the references are safe
+ * to read later. The image records the write-ahead log position of the cut:
+ * on restart the snapshot is loaded and only log records after that position
+ * are replayed.
+ * 
+ * AMO replies are not part of the image; they are rebuilt from the request
+ * tags of logged records. replyLogPosition is where the records that may still
+ * have a live cached reply begin (at or before logPosition), so a restart
+ * reads the log from there but applies account changes only after logPosition.
+ * 
+ * File layout (Big-Endian):
+ *   header:  magic i32 | version i32 | logPosition i64 | replyLogPosition i64 |
+ *            lastAccountNo i64 | count i32 | bodyLength i64 | bodyCrc32 i32
+ *   body:    count x (accountNo i64 | balanceCents i64 | createdAt i64 |
+ *            currency u8 | username str | password str)
+ * where str is a u16 byte length followed by UTF-8 bytes. The file is written
+ * to a temporary name and atomically renamed, so a crash mid-write leaves the
+ * previous snapshot in place. Large files are mapped in MAP_WINDOW pieces.
+ */
+public final class AccountSnapshot {
+    
+    private static final int MAGIC = 0x424B534E;  // "BKSN"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8 + 4 + 8 + 4;
+    private static final int MAX_ENTRY_LENGTH = 3 * Long.BYTES + 1 + 2 * (2 + 0xFFFF);
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    
+    private final List<Account> accounts;
+    private final long[] balances;
+    private final int accountCount;
+    private final long logPosition;
+    private final long replyLogPosition;
+    private final long lastAccountNo;
+    
+    private AccountSnapshot(List<Account> accounts, long[] balances, int accountCount, long logPosition,
+                            long replyLogPosition, long lastAccountNo) {
+        this.accounts = accounts;
+        this.balances = balances;
+        this.accountCount = accountCount;
+        this.logPosition = logPosition;
+        this.replyLogPosition = replyLogPosition;
+        this.lastAccountNo = lastAccountNo;
+    }
+    
+    /**
+     * Take a cut of the store; the caller must keep mutations out until this
+     * returns, and pass the capture's preserve() every account it changes until
+     * finish() returns
+     */
+    static Capture begin(AccountStore store, long logPosition, long replyLogPosition) {
+        return new Capture(store, store.nextSnapshotEpoch(), logPosition, replyLogPosition,
+            store.getLastAccountNo());
+    }
+    
+    /**
+     * A snapshot between its cut and the end of its walk over the accounts
+     */
+    static final class Capture {
+        
+        private final AccountStore store;
+        private final long epoch;
+        private final long logPosition;
+        private final long replyLogPosition;
+        private final long lastAccountNo;
+        
+        // Accounts changed since the cut, with their balances at the cut
+        private final Queue<Preserved> changed = new ConcurrentLinkedQueue<>();
+        
+        private static final class Preserved {
+            final Account account;
+            final long balanceCents;
+            
+            Preserved(Account account, long balanceCents) {
+                this.account = account;
+                this.balanceCents = balanceCents;
+            }
+        }
+        
+        private Capture(AccountStore store, long epoch, long logPosition, long replyLogPosition,
+                        long lastAccountNo) {
+            this.store = store;
+            this.epoch = epoch;
+            this.logPosition = logPosition;
+            this.replyLogPosition = replyLogPosition;
+            this.lastAccountNo = lastAccountNo;
+        }
+        
+        /**
+         * Record the account's balance as of the cut, unless it already is;
+         * must be called before each change to the account
+         */
+        void preserve(Account account) {
+            if (account.claimSnapshot(epoch)) {
+                changed.add(new Preserved(account, account.getBalanceCents()));
+                account.snapshotRecorded(epoch);
+            }
+        }
+        
+        /**
+         * Record every account not changed since the cut and build the snapshot.
+         * Runs while requests continue; an account closed since the cut was
+         * preserved before it left the store.
+         */
+        AccountSnapshot finish() {
+            List<Account> current = store.snapshotAccounts();
+            List<Account> accounts = new ArrayList<>(current.size());
+            long[] balances = new long[current.size()];
+            for (Account account : current) {
+                if (account.claimSnapshot(epoch)) {
+                    balances[accounts.size()] = account.getBalanceCents();
+                    accounts.add(account);
+                    account.snapshotRecorded(epoch);
+                }
+            }
+            // Every claim is settled now, so the queue is complete
+            List<Preserved> preserved = new ArrayList<>(changed);
+            balances = Arrays.copyOf(balances, accounts.size() + preserved.size());
+            for (Preserved p : preserved) {
+                balances[accounts.size()] = p.balanceCents;
+                accounts.add(p.account);
+            }
+            return new AccountSnapshot(accounts, balances, accounts.size(), logPosition, replyLogPosition,
+                lastAccountNo);
+        }
+    }
+    
+    public long getLogPosition() {
+        return logPosition;
+    }
+    
+    /**
+     * Log position from which records may still carry a live AMO reply
+     */
+    public long getReplyLogPosition() {
+        return replyLogPosition;
+    }
+    
+    public int getAccountCount() {
+        return accountCount;
+    }
+    
+    /**
+     * Write the image to file (via a temporary file and an atomic rename)
+     */
+    void writeTo(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        long bodyLength;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long windowStart = HEADER_LENGTH;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, MAP_WINDOW);
+            for (int i = 0; i < balances.length; i++) {
+                if (window.remaining() < MAX_ENTRY_LENGTH) {
+                    windowStart = finishWindow(window, windowStart, crc);
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, MAP_WINDOW);
+                }
+                Account account = accounts.get(i);
+                window.putLong(account.getAccountNumber());
+                window.putLong(balances[i]);
+                window.putLong(account.getCreatedAt());
+                window.put(account.getCurrency().getValue());
+                putString(window, account.getUsername());
+                putString(window, account.getPasswordHash());
+            }
+            long end = finishWindow(window, windowStart, crc);
+            bodyLength = end - HEADER_LENGTH;
+            
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(logPosition);
+            header.putLong(replyLogPosition);
+            header.putLong(lastAccountNo);
+            header.putInt(balances.length);
+            header.putLong(bodyLength);
+            header.putInt((int) crc.getValue());
+            header.force();
+            channel.truncate(end);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Flush a written window and fold it into the body checksum
+     * @return the file offset just past the window's data
+     */
+    private static long finishWindow(MappedByteBuffer window, long windowStart, CRC32 crc) {
+        int used = window.position();
+        window.force();
+        window.flip();
+        crc.update(window);
+        return windowStart + used;
+    }
+    
+    /**
+     * Load a snapshot file into an empty store
+     * @return the loaded snapshot's positions and account count (it holds no
+     *         accounts itself and cannot be written again)
+     * @throws IOException if the file is unreadable, truncated or fails its checksum
+     */
+    static AccountSnapshot load(Path file, AccountStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " account snapshot: " + file);
+            }
+            long logPosition = header.getLong();
+            long replyLogPosition = header.getLong();
+            long lastAccountNo = header.getLong();
+            int count = header.getInt();
+            long bodyLength = header.getLong();
+            int expectedCrc = header.getInt();
+            if (HEADER_LENGTH + bodyLength != size) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            
+            // Verify the whole body before touching the store
+            CRC32 crc = new CRC32();
+            for (long offset = 0; offset < bodyLength; offset += MAP_WINDOW) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + offset,
+                    Math.min(MAP_WINDOW, bodyLength - offset)));
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Snapshot " + file + " failed its checksum");
+            }
+            
+            long windowStart = HEADER_LENGTH;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                Math.min(MAP_WINDOW, size - windowStart));
+            for (int i = 0; i < count; i++) {
+                if (window.remaining() < MAX_ENTRY_LENGTH && windowStart + window.limit() < size) {
+                    windowStart += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(MAP_WINDOW, size - windowStart));
+                }
+                long accountNo = window.getLong();
+                long balanceCents = window.getLong();
+                long createdAt = window.getLong();
+                Currency currency = Currency.fromByte(window.get());
+                String username = getString(window);
+                String password = getString(window);
+                store.restoreAccount(accountNo, username, password, currency, balanceCents, createdAt);
+            }
+            store.reserveAccountNumbers(lastAccountNo);
+            return new AccountSnapshot(List.of(), new long[0], count, logPosition, replyLogPosition,
+                lastAccountNo);
+        } catch (ProtocolException | BufferUnderflowException e) {
+            throw new IOException("Malformed snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private static void putString(MappedByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    
+    private static String getString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -3,25 +3,72 @@ package edu.ntu.ds.service;
 import edu.ntu.ds.protocol.Currency;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * In-memory storage for bank accounts.
  * 
- * Thread-safe implementation using ConcurrentHashMap.
+ * Thread-safe implementation. Accounts are indexed by their numeric account
+ * number in an AccountIndex (primitive long keys, no boxing or map nodes), since
+ * that index holds every account and dominates heap at large account counts.
+ * The String lookups parse the protocol form and delegate to the long ones.
  */
 public class AccountStore {
     
-    private final Map<String, Account> accountsByNo;
+    /** Longest account number accepted in string form (fits in a positive long) */
+    private static final int MAX_ACCOUNT_NO_DIGITS = 18;
+    
+    private final AccountIndex accountsByNo;
     private final Map<String, Account> accountsByUsername;
-    private final AtomicInteger accountCounter;
+    private final AtomicLong accountCounter;
+    private final AccountBalance.Kind balanceKind;
+    private final int stripeThreshold;
+    private volatile long snapshotEpoch;  // epoch of the latest snapshot cut
     
     public AccountStore() {
-        this.accountsByNo = new ConcurrentHashMap<>();
+        this(AccountBalance.Kind.CAS);
+    }
+    
+    /**
+     * Create a store whose new accounts use the given balance implementation
+     */
+    public AccountStore(AccountBalance.Kind balanceKind) {
+        this(balanceKind, 0);
+    }
+    
+    /**
+     * Create a store whose new accounts use the given balance implementation and
+     * switch to a striped balance when CAS contention reaches stripeThreshold
+     * failures per CasBalance.CONTENTION_WINDOW updates (0 = never)
+     */
+    public AccountStore(AccountBalance.Kind balanceKind, int stripeThreshold) {
+        this.balanceKind = balanceKind;
+        this.stripeThreshold = stripeThreshold;
+        this.accountsByNo = new AccountIndex();
         this.accountsByUsername = new ConcurrentHashMap<>();
-        this.accountCounter = new AtomicInteger(1000); // Start account numbers from 1001
+        this.accountCounter = new AtomicLong(1000); // Start account numbers from 1001
+    }
+    
+    /**
+     * Parse the protocol (decimal string) form of an account number
+     * @return the number, or -1 if null, empty, not all digits, too long or not positive
+     */
+    public static long parseAccountNo(String accountNo) {
+        if (accountNo == null || accountNo.isEmpty() || accountNo.length() > MAX_ACCOUNT_NO_DIGITS) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < accountNo.length(); i++) {
+            char c = accountNo.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value > 0 ? value : -1;
     }
     
     /**
@@ -33,16 +80,30 @@ public class AccountStore {
      * @return the created account, or null if username already exists
      */
     public Account createAccount(String username, String password, Currency currency, long initialBalance) {
+        return createAccount(username, password, currency, initialBalance, false);
+    }
+    
+    /**
+     * @param locked publish the account with its write lock already held, so no
+     *        change to it can run until the caller releases it (with
+     *        getLock().tryUnlockWrite())
+     */
+    Account createAccount(String username, String password, Currency currency, long initialBalance,
+                          boolean locked) {
         // Check if username already exists
         if (accountsByUsername.containsKey(username)) {
             return null;
         }
         
         // Generate unique account number (integer as per project requirement)
-        // Account number is an integer, stored as string for protocol compatibility
-        String accountNo = String.valueOf(accountCounter.incrementAndGet());
+        // The protocol carries it as a decimal string
+        long accountNo = accountCounter.incrementAndGet();
         
-        Account account = new Account(accountNo, username, password, currency, initialBalance);
+        Account account = newAccount(accountNo, username, password, currency, initialBalance,
+            System.currentTimeMillis());
+        if (locked) {
+            account.getLock().writeLock();
+        }
         
         // Use putIfAbsent for thread safety
         Account existing = accountsByUsername.putIfAbsent(username, account);
@@ -50,7 +111,34 @@ public class AccountStore {
             return null; // Race condition: another thread created account first
         }
         
-        accountsByNo.put(accountNo, account);
+        accountsByNo.putIfAbsent(accountNo, account);
+        return account;
+    }
+    
+    /**
+     * Re-create an account with a known number (recovery); later account numbers
+     * continue after the highest one restored
+     * @return the account, or null if the username or number is already taken
+     */
+    public Account restoreAccount(long accountNo, String username, String password, Currency currency,
+                                  long balanceCents, long createdAt) {
+        accountCounter.accumulateAndGet(accountNo, Math::max);
+        if (accountsByNo.get(accountNo) != null) {
+            return null;
+        }
+        Account account = newAccount(accountNo, username, password, currency, balanceCents, createdAt);
+        if (accountsByUsername.putIfAbsent(username, account) != null) {
+            return null;
+        }
+        accountsByNo.putIfAbsent(accountNo, account);
+        return account;
+    }
+    
+    private Account newAccount(long accountNo, String username, String password, Currency currency,
+                               long initialBalance, long createdAt) {
+        Account account = new Account(accountNo, username, password, currency, createdAt,
+            AccountBalance.create(balanceKind, initialBalance, stripeThreshold));
+        account.snapshotRecorded(snapshotEpoch);  // not part of any cut already taken
         return account;
     }
     
@@ -64,10 +152,49 @@ public class AccountStore {
     /**
      * Get account by account number
      */
-    public Account getByAccountNo(String accountNo) {
+    public Account getByAccountNo(long accountNo) {
         return accountsByNo.get(accountNo);
     }
     
+    /**
+     * Get account by account number in string form
+     */
+    public Account getByAccountNo(String accountNo) {
+        return accountsByNo.get(parseAccountNo(accountNo));
+    }
+    
+    /**
+     * Change one account's balance implementation, e.g. STRIPED for a merchant
+     * account that mostly receives deposits
+     * @return false if the account does not exist
+     * @throws IllegalStateException if the account is already STRIPED and kind is not
+     */
+    public boolean setBalanceKind(long accountNo, AccountBalance.Kind kind) {
+        Account account = accountsByNo.get(accountNo);
+        if (account == null) {
+            return false;
+        }
+        account.setBalanceKind(kind);
+        return true;
+    }
+    
+    public boolean setBalanceKind(String accountNo, AccountBalance.Kind kind) {
+        return setBalanceKind(parseAccountNo(accountNo), kind);
+    }
+    
+    /**
+     * Count accounts currently using the given balance implementation
+     */
+    public int countByBalanceKind(AccountBalance.Kind kind) {
+        int count = 0;
+        for (Account account : accountsByNo.values()) {
+            if (account.getBalanceKind() == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
     /**
      * Get account by username
      */
@@ -79,7 +206,7 @@ public class AccountStore {
      * Delete an account
      * @return the deleted account, or null if not found
      */
-    public Account deleteAccount(String accountNo) {
+    public Account deleteAccount(long accountNo) {
         Account account = accountsByNo.remove(accountNo);
         if (account != null) {
             accountsByUsername.remove(account.getUsername());
@@ -87,20 +214,60 @@ public class AccountStore {
         return account;
     }
     
+    public Account deleteAccount(String accountNo) {
+        return deleteAccount(parseAccountNo(accountNo));
+    }
+    
     /**
      * Check if account exists
      */
+    public boolean exists(long accountNo) {
+        return accountsByNo.get(accountNo) != null;
+    }
+    
     public boolean exists(String accountNo) {
-        return accountsByNo.containsKey(accountNo);
+        return exists(parseAccountNo(accountNo));
     }
     
     /**
-     * Get all accounts
+     * Get all accounts (a snapshot)
      */
     public Collection<Account> getAllAccounts() {
         return accountsByNo.values();
     }
     
+    /**
+     * All accounts as a list (a snapshot of the index)
+     */
+    List<Account> snapshotAccounts() {
+        return accountsByNo.values();
+    }
+    
+    /**
+     * Start the epoch of a new snapshot cut: accounts created from now on are
+     * left out of it. The caller must hold account creation off meanwhile.
+     */
+    long nextSnapshotEpoch() {
+        long epoch = snapshotEpoch + 1;
+        snapshotEpoch = epoch;
+        return epoch;
+    }
+    
+    /**
+     * Highest account number issued so far
+     */
+    long getLastAccountNo() {
+        return accountCounter.get();
+    }
+    
+    /**
+     * Make sure new accounts are numbered above upTo (e.g. after loading a snapshot
+     * taken when higher-numbered accounts had already been closed)
+     */
+    void reserveAccountNumbers(long upTo) {
+        accountCounter.accumulateAndGet(upTo, Math::max);
+    }
+    
     /**
      * Get total number of accounts
      */
@@ -1,7 +1,6 @@
 package edu.ntu.ds.service;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * At-Most-Once (AMO) Reply Cache for duplicate request suppression.
@@ -12,76 +11,123 @@ import java.util.concurrent.ConcurrentHashMap;
  * When a duplicate request arrives (same clientId + requestId), the server
  * returns the cached reply instead of re-executing the operation. This ensures
  * non-idempotent operations are executed at most once.
+ * 
+ * The cache is bounded by both an entry count and a total byte budget (reply
+ * bytes plus a fixed per-entry overhead estimate). Entries are spread over
+ * segments by clientId, each guarded by its own lock; when a put pushes the
+ * cache over either budget, entries are evicted according to the configured
+ * EvictionPolicy, starting with the segment that was written to. Expired
+ * entries are removed lazily on lookup and, once startExpiry is given a
+ * TimerWheel, by a timer per entry slot, so expiry costs O(1) per entry
+ * whatever the cache size. Watermarks of clients that stopped acknowledging
+ * are dropped the same way, with one timer per client.
+ * 
+ * Clients may also acknowledge replies (ackSeqNo TLV): acknowledge() raises the
+ * client's watermark and frees every entry with seqNo <= watermark at once, so
+ * a well-behaved client holds about one entry instead of one per request in
+ * the last maxAgeMs. Requests at or below the watermark are stale duplicates
+ * and must not be re-executed (isAcknowledged).
+ * 
+ * Segments (AmoSegment) keep entries in primitive arrays with an open-addressing
+ * index, so get/peek/put do not allocate key or entry objects.
  */
 public class AmoCache {
     
     /**
-     * Cache key combining clientId and requestId
+     * Which entry to give up when the cache is over budget
      */
-    private static class CacheKey {
-        final int clientId;
-        final long requestId;
-        
-        CacheKey(int clientId, long requestId) {
-            this.clientId = clientId;
-            this.requestId = requestId;
-        }
-        
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            CacheKey cacheKey = (CacheKey) o;
-            return clientId == cacheKey.clientId && requestId == cacheKey.requestId;
-        }
-        
-        @Override
-        public int hashCode() {
-            return 31 * clientId + Long.hashCode(requestId);
-        }
-        
-        @Override
-        public String toString() {
-            return "(" + clientId + ", " + requestId + ")";
-        }
+    public enum EvictionPolicy {
+        /** Least recently inserted or looked up */
+        LRU,
+        /** Oldest insertion, lookups do not refresh */
+        FIFO,
+        /** Largest reply among the oldest few entries (frees the most bytes per eviction) */
+        SIZE_AWARE
     }
     
-    /**
-     * Cache entry with reply bytes and timestamp
-     */
-    private static class CacheEntry {
-        final byte[] replyBytes;
-        final long timestamp;
-        
-        CacheEntry(byte[] replyBytes) {
-            this.replyBytes = replyBytes;
-            this.timestamp = System.currentTimeMillis();
-        }
-    }
+    public static final long DEFAULT_MAX_AGE_MS = 5 * 60 * 1000; // 5 minutes
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; // 64 MiB
     
-    private final Map<CacheKey, CacheEntry> cache;
+    /** Estimated cost of one entry besides its reply bytes (slot arrays, index at half load, array header) */
+    static final int ENTRY_OVERHEAD = 72;
+    
+    private static final int SEGMENT_COUNT = 16;
+    private static final int SIZE_AWARE_SAMPLE = 8;
+    
+    private final AmoSegment[] segments;
     private final long maxAgeMs;  // Maximum age of cache entries
+    private final int maxEntries;
+    private final long maxBytes;
+    private final EvictionPolicy policy;
+    
+    // Current totals across all segments
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
     
     // Statistics
-    private long hits;
-    private long misses;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    
+    private volatile TimerWheel timers;
+    private final TimerWheel.Handler entryExpiry = this::expireEntry;
+    private final TimerWheel.Handler clientExpiry = this::expireClient;
     
     /**
-     * Create AMO cache with default max age (5 minutes)
+     * Create AMO cache with default max age (5 minutes) and default bounds
      */
     public AmoCache() {
-        this(5 * 60 * 1000); // 5 minutes
+        this(DEFAULT_MAX_AGE_MS);
     }
     
     /**
-     * Create AMO cache with specified max age
+     * Create AMO cache with specified max age and default bounds
      * @param maxAgeMs maximum age of cache entries in milliseconds
      */
     public AmoCache(long maxAgeMs) {
-        this.cache = new ConcurrentHashMap<>();
+        this(maxAgeMs, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, EvictionPolicy.LRU);
+    }
+    
+    /**
+     * Create a bounded AMO cache
+     * @param maxAgeMs maximum age of cache entries in milliseconds
+     * @param maxEntries maximum number of cached replies
+     * @param maxBytes maximum estimated memory of cached replies, including per-entry overhead
+     * @param policy which entries to evict when either bound is exceeded
+     */
+    public AmoCache(long maxAgeMs, int maxEntries, long maxBytes, EvictionPolicy policy) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        }
         this.maxAgeMs = maxAgeMs;
-        this.hits = 0;
-        this.misses = 0;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.segments = new AmoSegment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new AmoSegment();
+        }
+    }
+    
+    private AmoSegment segmentFor(int clientId) {
+        return segments[segmentIndex(clientId)];
+    }
+    
+    private static int segmentIndex(int clientId) {
+        int h = clientId * 0x9E3779B9; // spread sequential clientIds
+        return (h ^ (h >>> 16)) & (SEGMENT_COUNT - 1);
+    }
+    
+    private static int cost(byte[] replyBytes) {
+        return replyBytes.length + ENTRY_OVERHEAD;
+    }
+    
+    private boolean isExpired(long timestamp, long now) {
+        return now - timestamp >= maxAgeMs;
     }
     
     /**
@@ -91,93 +137,441 @@ public class AmoCache {
      * @return cached reply bytes, or null if not found
      */
     public byte[] get(int clientId, long requestId) {
-        CacheKey key = new CacheKey(clientId, requestId);
-        CacheEntry entry = cache.get(key);
-        
-        if (entry != null) {
-            // Check if entry is still valid
-            if (System.currentTimeMillis() - entry.timestamp < maxAgeMs) {
-                hits++;
-                return entry.replyBytes;
-            } else {
+        byte[] reply = lookup(clientId, requestId);
+        if (reply != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return reply;
+    }
+    
+    /**
+     * Look up a cached reply without updating hit/miss statistics
+     * @return cached reply bytes, or null if not found or expired
+     */
+    public byte[] peek(int clientId, long requestId) {
+        return lookup(clientId, requestId);
+    }
+    
+    private byte[] lookup(int clientId, long requestId) {
+        AmoSegment segment = segmentFor(clientId);
+        synchronized (segment) {
+            int slot = segment.find(clientId, requestId);
+            if (slot == AmoSegment.NONE) {
+                return null;
+            }
+            if (isExpired(segment.timestamp(slot), System.currentTimeMillis())) {
                 // Entry expired, remove it
-                cache.remove(key);
+                release(segment, slot);
+                expirations.incrementAndGet();
+                return null;
+            }
+            if (policy == EvictionPolicy.LRU) {
+                segment.touch(slot);
             }
+            return segment.reply(slot);
         }
-        
-        misses++;
-        return null;
     }
     
     /**
-     * Store a reply in cache
+     * Store a reply in cache, taking the seqNo from the low 32 bits of the
+     * requestId (see Header.generateRequestId)
+     */
+    public void put(int clientId, long requestId, byte[] replyBytes) {
+        put(clientId, requestId, (int) requestId, replyBytes);
+    }
+    
+    /**
+     * Store a reply in cache, evicting other entries if a bound is exceeded.
+     * A reply that alone exceeds the byte budget, or whose seqNo is already
+     * acknowledged, is not cached.
      * @param clientId client identifier
      * @param requestId request identifier
+     * @param seqNo request sequence number, matched against acknowledgements
      * @param replyBytes the reply message bytes to cache
      */
-    public void put(int clientId, long requestId, byte[] replyBytes) {
-        CacheKey key = new CacheKey(clientId, requestId);
-        cache.put(key, new CacheEntry(replyBytes));
+    public void put(int clientId, long requestId, int seqNo, byte[] replyBytes) {
+        put(clientId, requestId, seqNo, replyBytes, System.currentTimeMillis());
+    }
+    
+    /**
+     * Re-cache a reply rebuilt at startup, aged from when it was first produced
+     * (one already past maxAgeMs is dropped)
+     * @param timestamp when the reply was produced, epoch ms
+     * @return false if it had expired
+     */
+    public boolean restore(int clientId, long requestId, int seqNo, byte[] replyBytes, long timestamp) {
+        if (isExpired(timestamp, System.currentTimeMillis())) {
+            return false;
+        }
+        put(clientId, requestId, seqNo, replyBytes, timestamp);
+        return true;
+    }
+    
+    private void put(int clientId, long requestId, int seqNo, byte[] replyBytes, long timestamp) {
+        int cost = cost(replyBytes);
+        if (cost > maxBytes) {
+            rejected.incrementAndGet();
+            return;
+        }
+        
+        int home = segmentIndex(clientId);
+        AmoSegment segment = segments[home];
+        synchronized (segment) {
+            if (seqNo <= segment.watermark(clientId)) {
+                return;
+            }
+            int previous = segment.find(clientId, requestId);
+            if (previous != AmoSegment.NONE) {
+                release(segment, previous);
+            }
+            int slot = segment.insert(clientId, requestId, seqNo, replyBytes, timestamp);
+            scheduleExpiry(home, segment, slot);
+            entryCount.incrementAndGet();
+            byteCount.addAndGet(cost);
+        }
+        
+        // Evict from the home segment first, then walk the others; the totals are
+        // shared, so concurrent writers may overshoot by at most one entry each
+        for (int i = 0; i < SEGMENT_COUNT && isOverBudget(); i++) {
+            AmoSegment victimSegment = segments[(home + i) & (SEGMENT_COUNT - 1)];
+            synchronized (victimSegment) {
+                while (isOverBudget() && evictOne(victimSegment)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    private boolean isOverBudget() {
+        return entryCount.get() > maxEntries || byteCount.get() > maxBytes;
+    }
+    
+    /**
+     * Remove one entry from a segment according to the policy (segment lock held)
+     * @return false if the segment is empty
+     */
+    private boolean evictOne(AmoSegment segment) {
+        int victim = segment.first();
+        if (victim == AmoSegment.NONE) {
+            return false;
+        }
+        
+        if (policy == EvictionPolicy.SIZE_AWARE) {
+            // Largest reply among the oldest few, so one eviction frees the most bytes
+            int candidate = segment.after(victim);
+            for (int i = 1; i < SIZE_AWARE_SAMPLE && candidate != AmoSegment.NONE; i++) {
+                if (segment.reply(candidate).length > segment.reply(victim).length) {
+                    victim = candidate;
+                }
+                candidate = segment.after(candidate);
+            }
+        }
+        
+        release(segment, victim);
+        return true;
+    }
+    
+    /**
+     * Remove an entry and update the totals (segment lock held)
+     */
+    private void release(AmoSegment segment, int slot) {
+        entryCount.decrementAndGet();
+        byteCount.addAndGet(-cost(segment.reply(slot)));
+        segment.remove(slot);
+    }
+    
+    /**
+     * Record that the client has received the replies to all its requests up to
+     * ackSeqNo, and drop their cached entries
+     * @return number of entries freed
+     */
+    public int acknowledge(int clientId, int ackSeqNo) {
+        if (ackSeqNo <= 0) {
+            return 0;
+        }
+        AmoSegment segment = segmentFor(clientId);
+        synchronized (segment) {
+            int watermark = segment.watermark(clientId);
+            long now = System.currentTimeMillis();
+            segment.acknowledge(clientId, ackSeqNo, now);
+            TimerWheel wheel = timers;
+            if (wheel != null && segment.clientTimer(clientId) == 0) {
+                segment.setClientTimer(clientId, now + maxAgeMs);
+                wheel.schedule(clientExpiry, timerKey(segmentIndex(clientId), clientId), now + maxAgeMs);
+            }
+            if (ackSeqNo <= watermark) {
+                return 0;
+            }
+            
+            int freed = 0;
+            int slot = segment.clientFirst(clientId);
+            while (slot != AmoSegment.NONE) {
+                int next = segment.clientAfter(slot);
+                if (segment.seqNo(slot) <= ackSeqNo) {
+                    release(segment, slot);
+                    freed++;
+                }
+                slot = next;
+            }
+            acknowledged.addAndGet(freed);
+            return freed;
+        }
+    }
+    
+    /**
+     * Check whether a request's seqNo is at or below the client's watermark,
+     * i.e. its reply was acknowledged and the request is a stale duplicate
+     */
+    public boolean isAcknowledged(int clientId, int seqNo) {
+        AmoSegment segment = segmentFor(clientId);
+        synchronized (segment) {
+            return seqNo <= segment.watermark(clientId);
+        }
     }
     
     /**
      * Check if a request exists in cache (without updating statistics)
      */
     public boolean contains(int clientId, long requestId) {
-        CacheKey key = new CacheKey(clientId, requestId);
-        CacheEntry entry = cache.get(key);
-        return entry != null && (System.currentTimeMillis() - entry.timestamp < maxAgeMs);
+        return lookup(clientId, requestId) != null;
     }
     
     /**
-     * Remove expired entries from cache
+     * Remove expired entries from cache, and the watermarks of clients that
+     * have not acknowledged anything for maxAgeMs. This is a full sweep; with
+     * startExpiry the timers do the same work incrementally.
      */
     public void cleanup() {
         long now = System.currentTimeMillis();
-        cache.entrySet().removeIf(e -> now - e.getValue().timestamp >= maxAgeMs);
+        for (AmoSegment segment : segments) {
+            synchronized (segment) {
+                int slot = segment.first();
+                while (slot != AmoSegment.NONE) {
+                    int next = segment.after(slot);
+                    if (isExpired(segment.timestamp(slot), now)) {
+                        release(segment, slot);
+                        expirations.incrementAndGet();
+                    }
+                    slot = next;
+                }
+                segment.expireClients(now - maxAgeMs);
+            }
+        }
+    }
+    
+    /**
+     * Expire entries and idle client watermarks with timers on the given wheel
+     * (which the caller starts and stops). Entries already cached get their
+     * timers now.
+     */
+    public void startExpiry(TimerWheel wheel) {
+        timers = wheel;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            AmoSegment segment = segments[i];
+            synchronized (segment) {
+                for (int slot = segment.first(); slot != AmoSegment.NONE; slot = segment.after(slot)) {
+                    scheduleExpiry(i, segment, slot);
+                }
+                long now = System.currentTimeMillis();
+                for (int clientId : segment.acknowledgingClients()) {
+                    if (segment.clientTimer(clientId) == 0) {
+                        segment.setClientTimer(clientId, now + maxAgeMs);
+                        wheel.schedule(clientExpiry, timerKey(i, clientId), now + maxAgeMs);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stop scheduling expiry timers; timers already scheduled still fire
+     */
+    public void stopExpiry() {
+        timers = null;
+    }
+    
+    private static long timerKey(int segmentIndex, int slotOrClientId) {
+        return ((long) segmentIndex << 32) | (slotOrClientId & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Give a slot's new entry an expiry timer, unless the slot still has one
+     * pending (it will reschedule for this entry when it fires) (segment lock held)
+     */
+    private void scheduleExpiry(int segmentIndex, AmoSegment segment, int slot) {
+        TimerWheel wheel = timers;
+        if (wheel != null && segment.timerDeadline(slot) == 0) {
+            long deadline = segment.timestamp(slot) + maxAgeMs;
+            segment.setTimerDeadline(slot, deadline);
+            wheel.schedule(entryExpiry, timerKey(segmentIndex, slot), deadline);
+        }
+    }
+    
+    /**
+     * Timer for an entry slot: remove its entry if expired, or wait for the
+     * entry now in the slot
+     */
+    private void expireEntry(long key, long deadline) {
+        int segmentIndex = (int) (key >>> 32);
+        int slot = (int) key;
+        AmoSegment segment = segments[segmentIndex];
+        synchronized (segment) {
+            if (segment.timerDeadline(slot) != deadline) {
+                return;
+            }
+            segment.setTimerDeadline(slot, 0);
+            if (!segment.isLive(slot)) {
+                return;
+            }
+            if (isExpired(segment.timestamp(slot), System.currentTimeMillis())) {
+                release(segment, slot);
+                expirations.incrementAndGet();
+            } else {
+                scheduleExpiry(segmentIndex, segment, slot);
+            }
+        }
+    }
+    
+    /**
+     * Timer for a client's watermark: drop it if the client has no entries and
+     * has not acknowledged for maxAgeMs, otherwise check again later
+     */
+    private void expireClient(long key, long deadline) {
+        AmoSegment segment = segments[(int) (key >>> 32)];
+        int clientId = (int) key;
+        synchronized (segment) {
+            if (segment.clientTimer(clientId) != deadline) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (segment.expireClient(clientId, now - maxAgeMs)) {
+                return;
+            }
+            TimerWheel wheel = timers;
+            if (wheel == null) {
+                segment.setClientTimer(clientId, 0);
+                return;
+            }
+            // Entries left expire within maxAgeMs; otherwise the last ack ages out
+            long next = segment.clientFirst(clientId) != AmoSegment.NONE
+                ? now + maxAgeMs : segment.lastAck(clientId) + maxAgeMs;
+            segment.setClientTimer(clientId, next);
+            wheel.schedule(clientExpiry, key, next);
+        }
     }
     
     /**
      * Clear all cache entries
      */
     public void clear() {
-        cache.clear();
-        hits = 0;
-        misses = 0;
+        for (AmoSegment segment : segments) {
+            synchronized (segment) {
+                // Uncount this segment's entries under its lock, so concurrent puts stay counted
+                long bytes = 0;
+                for (int slot = segment.first(); slot != AmoSegment.NONE; slot = segment.after(slot)) {
+                    bytes += cost(segment.reply(slot));
+                }
+                entryCount.addAndGet(-segment.size());
+                byteCount.addAndGet(-bytes);
+                segment.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+        rejected.set(0);
+        acknowledged.set(0);
     }
     
     /**
      * Get cache size
      */
     public int size() {
-        return cache.size();
+        return (int) entryCount.get();
+    }
+    
+    /**
+     * Get estimated memory held by cached entries (reply bytes plus overhead)
+     */
+    public long getSizeBytes() {
+        return byteCount.get();
+    }
+    
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+    
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
     }
     
     /**
      * Get cache hit count
      */
     public long getHits() {
-        return hits;
+        return hits.get();
     }
     
     /**
      * Get cache miss count
      */
     public long getMisses() {
-        return misses;
+        return misses.get();
+    }
+    
+    /**
+     * Get number of entries evicted to stay within the entry/byte bounds
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    /**
+     * Get number of entries removed because they exceeded the max age
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+    
+    /**
+     * Get number of replies not cached because they alone exceed the byte budget
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * Get number of entries freed by client acknowledgements
+     */
+    public long getAcknowledged() {
+        return acknowledged.get();
     }
     
     /**
      * Get cache hit ratio
      */
     public double getHitRatio() {
-        long total = hits + misses;
-        return total > 0 ? (double) hits / total : 0.0;
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0.0;
     }
     
     @Override
     public String toString() {
-        return String.format("AmoCache{size=%d, hits=%d, misses=%d, hitRatio=%.2f%%}",
-            size(), hits, misses, getHitRatio() * 100);
+        return String.format("AmoCache{size=%d/%d, bytes=%d/%d, policy=%s, hits=%d, misses=%d, " +
+            "hitRatio=%.2f%%, evictions=%d, expirations=%d, rejected=%d, acknowledged=%d}",
+            size(), maxEntries, byteCount.get(), maxBytes, policy, hits.get(), misses.get(),
+            getHitRatio() * 100, evictions.get(), expirations.get(), rejected.get(), acknowledged.get());
     }
 }
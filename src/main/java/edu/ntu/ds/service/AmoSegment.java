@@ -0,0 +1,520 @@
+package edu.ntu.ds.service;
+
+import java.util.Arrays;
+
+/**
+ * One slice of the AMO reply cache, stored without per-entry objects.
+ * 
+ * Entries live in parallel slot arrays (clientId, requestId, seqNo, timestamp,
+ * reply bytes). A power-of-two open-addressing index maps (clientId, requestId)
+ * to a slot by linear probing; removals use backward-shift deletion, so there
+ * are no tombstones. Each slot is threaded on two intrusive doubly linked
+ * lists: the eviction order (first() is the next victim) and its client's
+ * list, used to release acknowledged entries. Client watermarks live in a
+ * second primitive open-addressing table keyed by clientId.
+ * 
+ * Slots and clients also record the deadline of their pending expiry timer
+ * (AmoCache with a TimerWheel), 0 if none. A slot keeps its timer when its
+ * entry is removed, so a slot never has more than one timer in the wheel.
+ * 
+ * Lookups, inserts and removals allocate nothing unless an array has to grow.
+ * Not thread-safe: AmoCache synchronizes on the segment.
+ */
+final class AmoSegment {
+    
+    /** Slot value meaning "no entry" */
+    static final int NONE = -1;
+    
+    private static final int INITIAL_SLOTS = 64;
+    private static final int INITIAL_CLIENTS = 16;
+    
+    // Slot arrays, indexed by slot number
+    private int[] clientIds;
+    private long[] requestIds;
+    private int[] seqNos;
+    private long[] timestamps;
+    private long[] timerDeadlines;
+    private byte[][] replies;
+    private int[] prev;        // eviction list
+    private int[] next;        // eviction list, or free list for unused slots
+    private int[] clientPrev;  // per-client list
+    private int[] clientNext;
+    
+    private int head = NONE;   // oldest / least recently used
+    private int tail = NONE;
+    private int freeHead = NONE;
+    private int slotsUsed;     // slots handed out at least once
+    private int size;
+    
+    // (clientId, requestId) -> slot + 1, 0 = empty
+    private int[] index;
+    
+    // Client table, open addressing on clientId
+    private boolean[] clientUsed;
+    private int[] clientKeys;
+    private int[] watermarks;
+    private long[] lastAcks;
+    private long[] clientTimers;
+    private int[] clientHeads;
+    private int[] clientTails;
+    private int clientCount;
+    
+    AmoSegment() {
+        allocateSlots(INITIAL_SLOTS);
+        index = new int[INITIAL_SLOTS * 2];
+        allocateClients(INITIAL_CLIENTS);
+    }
+    
+    private void allocateSlots(int capacity) {
+        clientIds = new int[capacity];
+        requestIds = new long[capacity];
+        seqNos = new int[capacity];
+        timestamps = new long[capacity];
+        timerDeadlines = new long[capacity];
+        replies = new byte[capacity][];
+        prev = new int[capacity];
+        next = new int[capacity];
+        clientPrev = new int[capacity];
+        clientNext = new int[capacity];
+    }
+    
+    private void allocateClients(int capacity) {
+        clientUsed = new boolean[capacity];
+        clientKeys = new int[capacity];
+        watermarks = new int[capacity];
+        lastAcks = new long[capacity];
+        clientTimers = new long[capacity];
+        clientHeads = new int[capacity];
+        clientTails = new int[capacity];
+    }
+    
+    private static int hash(int clientId, long requestId) {
+        long h = (requestId ^ ((long) clientId << 17)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    private static int hash(int clientId) {
+        int h = clientId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    // Entries
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * @return slot holding (clientId, requestId), or NONE
+     */
+    int find(int clientId, long requestId) {
+        int mask = index.length - 1;
+        for (int i = hash(clientId, requestId) & mask; ; i = (i + 1) & mask) {
+            int slot = index[i] - 1;
+            if (slot == NONE) {
+                return NONE;
+            }
+            if (clientIds[slot] == clientId && requestIds[slot] == requestId) {
+                return slot;
+            }
+        }
+    }
+    
+    int clientId(int slot) {
+        return clientIds[slot];
+    }
+    
+    int seqNo(int slot) {
+        return seqNos[slot];
+    }
+    
+    long timestamp(int slot) {
+        return timestamps[slot];
+    }
+    
+    byte[] reply(int slot) {
+        return replies[slot];
+    }
+    
+    /**
+     * Whether the slot currently holds an entry
+     */
+    boolean isLive(int slot) {
+        return slot >= 0 && slot < slotsUsed && replies[slot] != null;
+    }
+    
+    /**
+     * @return deadline of the slot's pending expiry timer, or 0 if none
+     */
+    long timerDeadline(int slot) {
+        return timerDeadlines[slot];
+    }
+    
+    void setTimerDeadline(int slot, long deadline) {
+        timerDeadlines[slot] = deadline;
+    }
+    
+    /**
+     * Add an entry at the tail of the eviction order. The key must not be present.
+     * @return the new entry's slot
+     */
+    int insert(int clientId, long requestId, int seqNo, byte[] reply, long timestamp) {
+        if ((size + 1) * 2 > index.length) {
+            rehash(index.length * 2);
+        }
+        int slot = allocateSlot();
+        clientIds[slot] = clientId;
+        requestIds[slot] = requestId;
+        seqNos[slot] = seqNo;
+        timestamps[slot] = timestamp;
+        replies[slot] = reply;
+        
+        linkLast(slot);
+        
+        int c = clientIndex(clientId, true);
+        clientNext[slot] = NONE;
+        clientPrev[slot] = clientTails[c];
+        if (clientTails[c] == NONE) {
+            clientHeads[c] = slot;
+        } else {
+            clientNext[clientTails[c]] = slot;
+        }
+        clientTails[c] = slot;
+        
+        int mask = index.length - 1;
+        int i = hash(clientId, requestId) & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = slot + 1;
+        size++;
+        return slot;
+    }
+    
+    /**
+     * Remove an entry; a client record left with no entries and no watermark goes too
+     */
+    void remove(int slot) {
+        int clientId = clientIds[slot];
+        deleteFromIndex(slot);
+        unlink(slot);
+        
+        int c = clientIndex(clientId, false);
+        if (clientPrev[slot] == NONE) {
+            clientHeads[c] = clientNext[slot];
+        } else {
+            clientNext[clientPrev[slot]] = clientNext[slot];
+        }
+        if (clientNext[slot] == NONE) {
+            clientTails[c] = clientPrev[slot];
+        } else {
+            clientPrev[clientNext[slot]] = clientPrev[slot];
+        }
+        if (clientHeads[c] == NONE && watermarks[c] == 0) {
+            deleteClient(c);
+        }
+        
+        replies[slot] = null;
+        next[slot] = freeHead;
+        freeHead = slot;
+        size--;
+    }
+    
+    /**
+     * Move an entry to the tail of the eviction order (LRU access)
+     */
+    void touch(int slot) {
+        if (slot != tail) {
+            unlink(slot);
+            linkLast(slot);
+        }
+    }
+    
+    /**
+     * @return the entry at the head of the eviction order, or NONE
+     */
+    int first() {
+        return head;
+    }
+    
+    /**
+     * @return the entry after slot in eviction order, or NONE
+     */
+    int after(int slot) {
+        return next[slot];
+    }
+    
+    void clear() {
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            replies[slot] = null;
+        }
+        Arrays.fill(index, 0);
+        Arrays.fill(clientUsed, false);
+        head = tail = freeHead = NONE;
+        slotsUsed = 0;
+        size = 0;
+        clientCount = 0;
+    }
+    
+    private int allocateSlot() {
+        if (freeHead != NONE) {
+            int slot = freeHead;
+            freeHead = next[slot];
+            return slot;
+        }
+        if (slotsUsed == clientIds.length) {
+            int capacity = clientIds.length * 2;
+            clientIds = Arrays.copyOf(clientIds, capacity);
+            requestIds = Arrays.copyOf(requestIds, capacity);
+            seqNos = Arrays.copyOf(seqNos, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            timerDeadlines = Arrays.copyOf(timerDeadlines, capacity);
+            replies = Arrays.copyOf(replies, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+            clientPrev = Arrays.copyOf(clientPrev, capacity);
+            clientNext = Arrays.copyOf(clientNext, capacity);
+        }
+        return slotsUsed++;
+    }
+    
+    private void linkLast(int slot) {
+        prev[slot] = tail;
+        next[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+    }
+    
+    private void unlink(int slot) {
+        if (prev[slot] == NONE) {
+            head = next[slot];
+        } else {
+            next[prev[slot]] = next[slot];
+        }
+        if (next[slot] == NONE) {
+            tail = prev[slot];
+        } else {
+            prev[next[slot]] = prev[slot];
+        }
+    }
+    
+    private void deleteFromIndex(int slot) {
+        int mask = index.length - 1;
+        int i = hash(clientIds[slot], requestIds[slot]) & mask;
+        while (index[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        // Backward-shift: pull later entries of the probe run into the hole
+        for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+            int s = index[j] - 1;
+            int home = hash(clientIds[s], requestIds[s]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+    
+    private void rehash(int capacity) {
+        int[] newIndex = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            int i = hash(clientIds[slot], requestIds[slot]) & mask;
+            while (newIndex[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newIndex[i] = slot + 1;
+        }
+        index = newIndex;
+    }
+    
+    // Clients
+    
+    /**
+     * @return the client's acknowledged seqNo, or 0 if none
+     */
+    int watermark(int clientId) {
+        int c = clientIndex(clientId, false);
+        return c == NONE ? 0 : watermarks[c];
+    }
+    
+    /**
+     * Record an acknowledgement time and raise the watermark (never lowers it)
+     */
+    void acknowledge(int clientId, int watermark, long now) {
+        int c = clientIndex(clientId, true);
+        if (watermark > watermarks[c]) {
+            watermarks[c] = watermark;
+        }
+        lastAcks[c] = now;
+    }
+    
+    /**
+     * @return the client's oldest entry, or NONE
+     */
+    int clientFirst(int clientId) {
+        int c = clientIndex(clientId, false);
+        return c == NONE ? NONE : clientHeads[c];
+    }
+    
+    /**
+     * @return the next entry of the same client, or NONE
+     */
+    int clientAfter(int slot) {
+        return clientNext[slot];
+    }
+    
+    int clientCount() {
+        return clientCount;
+    }
+    
+    /**
+     * @return deadline of the client's pending expiry timer, or 0 if none (or no such client)
+     */
+    long clientTimer(int clientId) {
+        int c = clientIndex(clientId, false);
+        return c == NONE ? 0 : clientTimers[c];
+    }
+    
+    void setClientTimer(int clientId, long deadline) {
+        int c = clientIndex(clientId, false);
+        if (c != NONE) {
+            clientTimers[c] = deadline;
+        }
+    }
+    
+    /**
+     * @return when the client last acknowledged, or 0 if unknown
+     */
+    long lastAck(int clientId) {
+        int c = clientIndex(clientId, false);
+        return c == NONE ? 0 : lastAcks[c];
+    }
+    
+    /**
+     * @return the clients that have a watermark
+     */
+    int[] acknowledgingClients() {
+        int[] result = new int[clientCount];
+        int n = 0;
+        for (int c = 0; c < clientUsed.length; c++) {
+            if (clientUsed[c] && watermarks[c] > 0) {
+                result[n++] = clientKeys[c];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+    
+    /**
+     * Drop the client's watermark if it has no entries and has not acknowledged
+     * anything since before the cutoff
+     * @return true if the client record was dropped
+     */
+    boolean expireClient(int clientId, long cutoff) {
+        int c = clientIndex(clientId, false);
+        if (c == NONE || clientHeads[c] != NONE || lastAcks[c] > cutoff) {
+            return false;
+        }
+        deleteClient(c);
+        return true;
+    }
+    
+    /**
+     * Drop watermarks of clients with no entries that have not acknowledged
+     * anything since before the cutoff
+     */
+    void expireClients(long cutoff) {
+        for (int c = 0; c < clientUsed.length; ) {
+            if (clientUsed[c] && clientHeads[c] == NONE && lastAcks[c] <= cutoff) {
+                deleteClient(c); // may shift another client into c, so look at c again
+            } else {
+                c++;
+            }
+        }
+    }
+    
+    private int clientIndex(int clientId, boolean create) {
+        int mask = clientKeys.length - 1;
+        int i = hash(clientId) & mask;
+        while (clientUsed[i]) {
+            if (clientKeys[i] == clientId) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if (!create) {
+            return NONE;
+        }
+        if ((clientCount + 1) * 2 > clientKeys.length) {
+            growClients();
+            return clientIndex(clientId, true);
+        }
+        clientUsed[i] = true;
+        clientKeys[i] = clientId;
+        watermarks[i] = 0;
+        lastAcks[i] = 0;
+        clientTimers[i] = 0;
+        clientHeads[i] = NONE;
+        clientTails[i] = NONE;
+        clientCount++;
+        return i;
+    }
+    
+    private void deleteClient(int c) {
+        int mask = clientKeys.length - 1;
+        int i = c;
+        for (int j = (i + 1) & mask; clientUsed[j]; j = (j + 1) & mask) {
+            int home = hash(clientKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                copyClient(j, i);
+                i = j;
+            }
+        }
+        clientUsed[i] = false;
+        clientCount--;
+    }
+    
+    private void copyClient(int from, int to) {
+        clientUsed[to] = true;
+        clientKeys[to] = clientKeys[from];
+        watermarks[to] = watermarks[from];
+        lastAcks[to] = lastAcks[from];
+        clientTimers[to] = clientTimers[from];
+        clientHeads[to] = clientHeads[from];
+        clientTails[to] = clientTails[from];
+    }
+    
+    private void growClients() {
+        boolean[] oldUsed = clientUsed;
+        int[] oldKeys = clientKeys;
+        int[] oldWatermarks = watermarks;
+        long[] oldLastAcks = lastAcks;
+        long[] oldClientTimers = clientTimers;
+        int[] oldHeads = clientHeads;
+        int[] oldTails = clientTails;
+        
+        allocateClients(oldKeys.length * 2);
+        int mask = clientKeys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (!oldUsed[j]) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while (clientUsed[i]) {
+                i = (i + 1) & mask;
+            }
+            clientUsed[i] = true;
+            clientKeys[i] = oldKeys[j];
+            watermarks[i] = oldWatermarks[j];
+            lastAcks[i] = oldLastAcks[j];
+            clientTimers[i] = oldClientTimers[j];
+            clientHeads[i] = oldHeads[j];
+            clientTails[i] = oldTails[j];
+        }
+    }
+}
@@ -1,16 +1,83 @@
 package edu.ntu.ds.service;
 
+import edu.ntu.ds.persistence.WalRecord;
+import edu.ntu.ds.persistence.WriteAheadLog;
 import edu.ntu.ds.protocol.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Banking Service implementing core business logic.
  * 
  * This class handles the actual banking operations and returns appropriate
  * status codes and data. It is separated from networking and protocol concerns.
+ * 
+ * Operations take numeric account numbers (as parsed by Payload.getAccountNumber):
+ * Payload.NO_ACCOUNT means the field was missing (BAD_REQUEST) and any other
+ * non-positive value is an unknown account (NOT_FOUND). The String overloads
+ * parse and delegate.
+ * 
+ * With a write-ahead log attached, every successful state change is appended
+ * to it and the result carries the log position that must be durable before
+ * the reply is released; applyLogRecord replays such records at startup. A
+ * change is logged before the write locks of its accounts are released, so
+ * each account's records are in the order its changes were made.
+ * writeSnapshot cuts a consistent AccountSnapshot at a log position, so a
+ * restart only replays the records after it.
+ * 
+ * The Header-taking overloads are for AMO requests: the record then names the
+ * request and the balance its reply reports, so the reply can be rebuilt from
+ * the log after a restart instead of the retry executing again. Operations run
+ * between beginBatch and endBatch (a BATCH request) are logged together, as
+ * one record, when the batch ends.
  */
 public class BankingService {
     
     private final AccountStore accountStore;
+    private WriteAheadLog wal;
+    
+    // Entered by each logged state change, closed to cut a snapshot
+    private final CheckpointGate checkpointGate = new CheckpointGate();
+    private static final int OUTSIDE_GATE = -1;
+    
+    // Snapshot between its cut and the end of its walk (null otherwise); one at a time
+    private volatile AccountSnapshot.Capture capture;
+    private final Object snapshotWriter = new Object();
+    
+    // Batch running on each thread (between beginBatch and endBatch)
+    private final ThreadLocal<Batch> batches = new ThreadLocal<>();
+    
+    // Recent snapshot cuts, oldest first, for choosing each snapshot's reply log position
+    private final ArrayDeque<SnapshotCut> cuts = new ArrayDeque<>();
+    
+    private static final class Batch {
+        final List<WalRecord> records = new ArrayList<>();
+        final Map<Account, Long> locked = new HashMap<>();  // account -> write lock stamp
+        final int gateStripe;
+        
+        Batch(int gateStripe) {
+            this.gateStripe = gateStripe;
+        }
+    }
+    
+    private static final class SnapshotCut {
+        final long cutAt;
+        final long logPosition;
+        final long replyLogPosition;
+        
+        SnapshotCut(long cutAt, long logPosition, long replyLogPosition) {
+            this.cutAt = cutAt;
+            this.logPosition = logPosition;
+            this.replyLogPosition = replyLogPosition;
+        }
+    }
     
     /**
      * Result of a banking operation
@@ -20,32 +87,58 @@ public class BankingService {
         public final Account account;        // For operations that return account info
         public final Long balanceCents;      // For operations that return balance
         public final String accountNo;       // For open account
+        public final long logPosition;       // WAL position to await before replying (0 = nothing logged)
+        public final Long toBalanceCents;    // Destination balance after a transfer
         
-        private OperationResult(StatusCode status, Account account, Long balanceCents, String accountNo) {
+        private OperationResult(StatusCode status, Account account, Long balanceCents, String accountNo,
+                                long logPosition, Long toBalanceCents) {
             this.status = status;
             this.account = account;
             this.balanceCents = balanceCents;
             this.accountNo = accountNo;
+            this.logPosition = logPosition;
+            this.toBalanceCents = toBalanceCents;
         }
         
         public static OperationResult success() {
-            return new OperationResult(StatusCode.OK, null, null, null);
+            return new OperationResult(StatusCode.OK, null, null, null, 0, null);
         }
         
         public static OperationResult success(Account account) {
-            return new OperationResult(StatusCode.OK, account, account.getBalanceCents(), account.getAccountNo());
+            return success(account, account.getBalanceCents());
+        }
+        
+        /**
+         * Success reporting a balance read earlier (e.g. the one that was logged)
+         */
+        static OperationResult success(Account account, long balanceCents) {
+            return new OperationResult(StatusCode.OK, account, balanceCents, account.getAccountNo(), 0, null);
         }
         
         public static OperationResult successWithBalance(long balanceCents) {
-            return new OperationResult(StatusCode.OK, null, balanceCents, null);
+            return new OperationResult(StatusCode.OK, null, balanceCents, null, 0, null);
         }
         
         public static OperationResult successWithAccountNo(String accountNo) {
-            return new OperationResult(StatusCode.OK, null, null, accountNo);
+            return new OperationResult(StatusCode.OK, null, null, accountNo, 0, null);
         }
         
         public static OperationResult error(StatusCode status) {
-            return new OperationResult(status, null, null, null);
+            return new OperationResult(status, null, null, null, 0, null);
+        }
+        
+        /**
+         * Same result, tagged with the log position of its WAL record
+         */
+        OperationResult logged(long logPosition) {
+            return new OperationResult(status, account, balanceCents, accountNo, logPosition, toBalanceCents);
+        }
+        
+        /**
+         * Successful transfer, with both balances as they were logged
+         */
+        static OperationResult transferred(Account from, long balanceCents, long toBalanceCents) {
+            return new OperationResult(StatusCode.OK, from, balanceCents, from.getAccountNo(), 0, toBalanceCents);
         }
     }
     
@@ -53,10 +146,29 @@ public class BankingService {
         this.accountStore = accountStore;
     }
     
+    /**
+     * Log every successful state change to the given WAL (null = no logging)
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+    
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+    
     /**
      * Open a new account with initial balance
      */
     public OperationResult openAccount(String username, String password, Currency currency, long initialBalance) {
+        return openAccount(username, password, currency, initialBalance, null);
+    }
+    
+    /**
+     * @param amoRequest header of the AMO request being executed, or null
+     */
+    public OperationResult openAccount(String username, String password, Currency currency, long initialBalance,
+                                       Header amoRequest) {
         if (username == null || password == null || currency == null) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
@@ -64,12 +176,29 @@ public class BankingService {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         
-        Account account = accountStore.createAccount(username, password, currency, initialBalance);
-        if (account == null) {
-            return OperationResult.error(StatusCode.ALREADY_EXISTS);
+        Account account;
+        long balance;
+        long logPosition;
+        int change = beginChange();
+        try {
+            // Logged: nothing may change the new account before its creation is logged
+            account = accountStore.createAccount(username, password, currency, initialBalance, wal != null);
+            if (account == null) {
+                return OperationResult.error(StatusCode.ALREADY_EXISTS);
+            }
+            try {
+                balance = account.getBalanceCents();
+                logPosition = log(WalRecord.openAccount(account.getAccountNumber(), username, password,
+                    currency, initialBalance, account.getCreatedAt()), amoRequest, balance);
+            } finally {
+                if (wal != null) {
+                    account.getLock().tryUnlockWrite();
+                }
+            }
+        } finally {
+            endChange(change);
         }
-        
-        return OperationResult.success(account);
+        return OperationResult.success(account, balance).logged(logPosition);
     }
     
     /**
@@ -84,7 +213,18 @@ public class BankingService {
      * Required TLVs: username, password, accountNo
      */
     public OperationResult closeAccount(String username, String password, String accountNo) {
-        if (username == null || password == null || accountNo == null) {
+        return closeAccount(username, password, accountNumber(accountNo));
+    }
+    
+    public OperationResult closeAccount(String username, String password, long accountNo) {
+        return closeAccount(username, password, accountNo, null);
+    }
+    
+    /**
+     * @param amoRequest header of the AMO request being executed, or null
+     */
+    public OperationResult closeAccount(String username, String password, long accountNo, Header amoRequest) {
+        if (username == null || password == null || accountNo == Payload.NO_ACCOUNT) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         
@@ -101,11 +241,22 @@ public class BankingService {
             return OperationResult.error(StatusCode.AUTH_FAIL);
         }
         
-        // Get final balance before closing
-        long finalBalance = account.getBalanceCents();
-        
-        accountStore.deleteAccount(accountNo);
-        return OperationResult.successWithBalance(finalBalance);
+        long finalBalance;
+        long logPosition;
+        int change = beginChange();
+        long stamp = lockLogged(account);
+        try {
+            preserve(account);
+            finalBalance = account.getBalanceCents();
+            if (accountStore.deleteAccount(accountNo) == null) {
+                return OperationResult.error(StatusCode.NOT_FOUND);  // closed concurrently
+            }
+            logPosition = log(WalRecord.closeAccount(accountNo), amoRequest, finalBalance);
+        } finally {
+            unlock(account, stamp);
+            endChange(change);
+        }
+        return OperationResult.successWithBalance(finalBalance).logged(logPosition);
     }
     
     /**
@@ -113,7 +264,20 @@ public class BankingService {
      */
     public OperationResult deposit(String username, String password, String accountNo, 
             Currency currency, long amountCents) {
-        if (username == null || password == null || accountNo == null) {
+        return deposit(username, password, accountNumber(accountNo), currency, amountCents);
+    }
+    
+    public OperationResult deposit(String username, String password, long accountNo, 
+            Currency currency, long amountCents) {
+        return deposit(username, password, accountNo, currency, amountCents, null);
+    }
+    
+    /**
+     * @param amoRequest header of the AMO request being executed, or null
+     */
+    public OperationResult deposit(String username, String password, long accountNo, 
+            Currency currency, long amountCents, Header amoRequest) {
+        if (username == null || password == null || accountNo == Payload.NO_ACCOUNT) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         if (amountCents <= 0) {
@@ -138,8 +302,23 @@ public class BankingService {
             return OperationResult.error(StatusCode.CURRENCY_MISMATCH);
         }
         
-        account.deposit(amountCents);
-        return OperationResult.success(account);
+        long balance;
+        long logPosition;
+        int change = beginChange();
+        long stamp = lockLogged(account);
+        try {
+            if (!changeable(account)) {
+                return OperationResult.error(StatusCode.NOT_FOUND);
+            }
+            preserve(account);
+            account.deposit(amountCents);
+            balance = account.getBalanceCents();
+            logPosition = log(WalRecord.deposit(accountNo, amountCents), amoRequest, balance);
+        } finally {
+            unlock(account, stamp);
+            endChange(change);
+        }
+        return OperationResult.success(account, balance).logged(logPosition);
     }
     
     /**
@@ -154,7 +333,20 @@ public class BankingService {
      */
     public OperationResult withdraw(String username, String password, String accountNo, 
             Currency currency, long amountCents) {
-        if (username == null || password == null || accountNo == null) {
+        return withdraw(username, password, accountNumber(accountNo), currency, amountCents);
+    }
+    
+    public OperationResult withdraw(String username, String password, long accountNo, 
+            Currency currency, long amountCents) {
+        return withdraw(username, password, accountNo, currency, amountCents, null);
+    }
+    
+    /**
+     * @param amoRequest header of the AMO request being executed, or null
+     */
+    public OperationResult withdraw(String username, String password, long accountNo, 
+            Currency currency, long amountCents, Header amoRequest) {
+        if (username == null || password == null || accountNo == Payload.NO_ACCOUNT) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         if (amountCents <= 0) {
@@ -179,11 +371,25 @@ public class BankingService {
             return OperationResult.error(StatusCode.CURRENCY_MISMATCH);
         }
         
-        if (!account.withdraw(amountCents)) {
-            return OperationResult.error(StatusCode.INSUFFICIENT_FUNDS);
+        long balance;
+        long logPosition;
+        int change = beginChange();
+        long stamp = lockLogged(account);
+        try {
+            if (!changeable(account)) {
+                return OperationResult.error(StatusCode.NOT_FOUND);
+            }
+            preserve(account);
+            if (!account.withdraw(amountCents)) {
+                return OperationResult.error(StatusCode.INSUFFICIENT_FUNDS);
+            }
+            balance = account.getBalanceCents();
+            logPosition = log(WalRecord.withdraw(accountNo, amountCents), amoRequest, balance);
+        } finally {
+            unlock(account, stamp);
+            endChange(change);
         }
-        
-        return OperationResult.success(account);
+        return OperationResult.success(account, balance).logged(logPosition);
     }
     
     /**
@@ -198,7 +404,11 @@ public class BankingService {
      * Required TLVs: username, password, accountNo
      */
     public OperationResult queryBalance(String username, String password, String accountNo) {
-        if (username == null || password == null || accountNo == null) {
+        return queryBalance(username, password, accountNumber(accountNo));
+    }
+    
+    public OperationResult queryBalance(String username, String password, long accountNo) {
+        if (username == null || password == null || accountNo == Payload.NO_ACCOUNT) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         
@@ -224,14 +434,28 @@ public class BankingService {
      */
     public OperationResult transfer(String username, String password, 
             String fromAccountNo, String toAccountNo, long amountCents) {
-        if (username == null || password == null || fromAccountNo == null || 
-            toAccountNo == null) {
+        return transfer(username, password, accountNumber(fromAccountNo), accountNumber(toAccountNo),
+            amountCents);
+    }
+    
+    public OperationResult transfer(String username, String password, 
+            long fromAccountNo, long toAccountNo, long amountCents) {
+        return transfer(username, password, fromAccountNo, toAccountNo, amountCents, null);
+    }
+    
+    /**
+     * @param amoRequest header of the AMO request being executed, or null
+     */
+    public OperationResult transfer(String username, String password, 
+            long fromAccountNo, long toAccountNo, long amountCents, Header amoRequest) {
+        if (username == null || password == null || fromAccountNo == Payload.NO_ACCOUNT || 
+            toAccountNo == Payload.NO_ACCOUNT) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         if (amountCents <= 0) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
-        if (fromAccountNo.equals(toAccountNo)) {
+        if (fromAccountNo == toAccountNo && fromAccountNo > 0) {
             return OperationResult.error(StatusCode.BAD_REQUEST);
         }
         
@@ -258,17 +482,304 @@ public class BankingService {
             return OperationResult.error(StatusCode.CURRENCY_MISMATCH);
         }
         
-        // Perform transfer (withdraw + deposit atomically)
-        synchronized (fromAccount) {
-            synchronized (toAccount) {
-                if (!fromAccount.withdraw(amountCents)) {
-                    return OperationResult.error(StatusCode.INSUFFICIENT_FUNDS);
-                }
-                toAccount.deposit(amountCents);
+        // Perform transfer (withdraw + deposit atomically) under both write locks,
+        // taken in Account.lockOrder so opposing A->B and B->A transfers cannot deadlock
+        Account first = Account.lockOrder(fromAccount, toAccount) < 0 ? fromAccount : toAccount;
+        Account second = first == fromAccount ? toAccount : fromAccount;
+        long balance;
+        long toBalance;
+        long logPosition;
+        int change = beginChange();
+        long firstStamp = lock(first);
+        long secondStamp = lock(second);
+        try {
+            if (!changeable(fromAccount) || !changeable(toAccount)) {
+                return OperationResult.error(StatusCode.NOT_FOUND);
             }
+            preserve(fromAccount);
+            preserve(toAccount);
+            if (!fromAccount.withdraw(amountCents)) {
+                return OperationResult.error(StatusCode.INSUFFICIENT_FUNDS);
+            }
+            toAccount.deposit(amountCents);
+            balance = fromAccount.getBalanceCents();
+            toBalance = toAccount.getBalanceCents();
+            logPosition = log(WalRecord.transfer(fromAccountNo, toAccountNo, amountCents), amoRequest, balance);
+        } finally {
+            unlock(second, secondStamp);
+            unlock(first, firstStamp);
+            endChange(change);
+        }
+        return OperationResult.transferred(fromAccount, balance, toBalance).logged(logPosition);
+    }
+    
+    /**
+     * Start a state change that will be logged: with a WAL attached, holds
+     * snapshots off until endChange so every change is either wholly before or
+     * wholly after a snapshot's cut (both the state and its log record)
+     * @return the stripe to pass to endChange, or OUTSIDE_GATE without a WAL or
+     *         inside a batch (which entered the gate in beginBatch)
+     */
+    private int beginChange() {
+        if (wal == null || batches.get() != null) {
+            return OUTSIDE_GATE;
         }
-        
-        return OperationResult.success(fromAccount);
+        return checkpointGate.enter();
+    }
+    
+    private void endChange(int stripe) {
+        if (stripe != OUTSIDE_GATE) {
+            checkpointGate.exit(stripe);
+        }
+    }
+    
+    /**
+     * Take an account's write lock for a change, unless the batch running on
+     * this thread already holds it (from beginBatch until endBatch)
+     * @return the stamp to pass to unlock, or 0 if there is nothing to unlock
+     */
+    private long lock(Account account) {
+        return batches.get() != null ? 0 : account.getLock().writeLock();
+    }
+    
+    /**
+     * Lock an account for a change that will be logged, holding it until the
+     * record is appended: the log must replay one account's changes in the order
+     * they were applied, or a crash could keep a logged withdrawal whose funds
+     * came from an earlier change still missing from the log. Without a WAL,
+     * single-account changes stay lock-free.
+     * @return the stamp to pass to unlock, or 0 if there is nothing to unlock
+     */
+    private long lockLogged(Account account) {
+        return wal != null ? lock(account) : 0;
+    }
+    
+    private static void unlock(Account account, long stamp) {
+        if (stamp != 0) {
+            account.getLock().unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Whether the batch running on this thread, if any, may change the account:
+     * only one it locked in beginBatch, since locking more later could deadlock
+     */
+    private boolean changeable(Account account) {
+        Batch batch = batches.get();
+        return batch == null || batch.locked.containsKey(account);
+    }
+    
+    /**
+     * Before changing an account (inside beginChange/endChange), let the
+     * snapshot being captured, if any, record its state as of the cut
+     */
+    private void preserve(Account account) {
+        AccountSnapshot.Capture c = capture;
+        if (c != null) {
+            c.preserve(account);
+        }
+    }
+    
+    /**
+     * Start a batch of operations on this thread: until endBatch, their changes
+     * are collected instead of logged, snapshots are held off so that the whole
+     * batch falls on one side of a cut, and the accounts it may change are
+     * locked (in Account.lockOrder) so no other change to them can be logged
+     * between the batch's change and its record. An account that does not exist
+     * yet cannot be changed by the batch (NOT_FOUND). Without a WAL this does
+     * nothing; the operations are never atomic as a group for other requests.
+     * @param accountNos numbers of the accounts the batch's operations name
+     */
+    public void beginBatch(long... accountNos) {
+        if (wal == null) {
+            return;
+        }
+        Batch batch = new Batch(checkpointGate.enter());
+        long[] ordered = accountNos.clone();
+        Arrays.sort(ordered);  // Account.lockOrder
+        for (long accountNo : ordered) {
+            Account account = accountNo > 0 ? accountStore.getByAccountNo(accountNo) : null;
+            if (account != null && !batch.locked.containsKey(account)) {
+                batch.locked.put(account, account.getLock().writeLock());
+            }
+        }
+        batches.set(batch);
+    }
+    
+    /**
+     * End the batch started on this thread, logging its changes as one BATCH record
+     * @param amoRequest header of the batch request if it is AMO, or null
+     * @param reply the batch's encoded reply, kept in the record of an AMO batch
+     * @return the record's log position, or 0 if nothing was logged
+     */
+    public long endBatch(Header amoRequest, byte[] reply) {
+        Batch batch = batches.get();
+        if (batch == null) {
+            return 0;
+        }
+        batches.remove();
+        try {
+            if (batch.records.isEmpty()) {
+                return 0;
+            }
+            return log(WalRecord.batch(batch.records, amoRequest != null ? reply : new byte[0]), amoRequest, 0);
+        } finally {
+            for (Map.Entry<Account, Long> locked : batch.locked.entrySet()) {
+                locked.getKey().getLock().unlockWrite(locked.getValue());
+            }
+            checkpointGate.exit(batch.gateStripe);
+        }
+    }
+    
+    /**
+     * Write a snapshot of all accounts, cut at the current log position. Request
+     * processing pauses only while the cut is taken, which does not depend on
+     * the number of accounts; the balances are collected, encoded and written
+     * afterwards. Concurrent calls run one after the other.
+     * @param replyRetentionMs how long AMO replies stay cached; records this
+     *        recent are re-read on restart to rebuild their replies
+     * @return the snapshot (its log position is where replay will resume)
+     * @throws IllegalStateException if no write-ahead log is attached
+     */
+    public AccountSnapshot writeSnapshot(Path file, long replyRetentionMs) throws IOException {
+        WriteAheadLog log = wal;
+        if (log == null) {
+            throw new IllegalStateException("Snapshots need a write-ahead log");
+        }
+        synchronized (snapshotWriter) {
+            AccountSnapshot.Capture started;
+            checkpointGate.close();
+            try {
+                long logPosition = log.getAppendedPosition();
+                started = AccountSnapshot.begin(accountStore, logPosition,
+                    replyLogPosition(System.currentTimeMillis(), logPosition, replyRetentionMs));
+                capture = started;
+            } finally {
+                checkpointGate.open();
+            }
+            AccountSnapshot snapshot;
+            try {
+                snapshot = started.finish();
+            } finally {
+                capture = null;
+            }
+            // The log must reach the cut before a snapshot that depends on it exists,
+            // even under ASYNC, where replies do not wait for it
+            log.flushAndAwait(snapshot.getLogPosition());
+            snapshot.writeTo(file);
+            return snapshot;
+        }
+    }
+    
+    /**
+     * Remember a cut and choose where its snapshot's replies start: the log
+     * position of the newest earlier cut made at least replyRetentionMs ago
+     * (anything older has expired from the AMO cache), or, while there is
+     * none, the reply position the oldest remembered cut already needed
+     */
+    private long replyLogPosition(long cutAt, long logPosition, long replyRetentionMs) {
+        synchronized (cuts) {
+            SnapshotCut base = null;
+            while (!cuts.isEmpty() && cuts.peekFirst().cutAt <= cutAt - replyRetentionMs) {
+                base = cuts.pollFirst();
+            }
+            long replyPosition;
+            if (base != null) {
+                cuts.addFirst(base);  // still the base for the next few cuts
+                replyPosition = base.logPosition;
+            } else {
+                replyPosition = cuts.isEmpty() ? 0 : cuts.peekFirst().replyLogPosition;
+            }
+            cuts.addLast(new SnapshotCut(cutAt, logPosition, replyPosition));
+            return replyPosition;
+        }
+    }
+    
+    /**
+     * Load a snapshot into the (empty) account store at startup. The log must
+     * then be replayed from the snapshot's reply position, applying account
+     * changes only after its log position.
+     * @throws IOException if the file is unreadable, truncated or fails its checksum
+     */
+    public AccountSnapshot loadSnapshot(Path file) throws IOException {
+        AccountSnapshot snapshot = AccountSnapshot.load(file, accountStore);
+        synchronized (cuts) {
+            // Its real cut time is unknown but earlier, so this only keeps replies longer
+            cuts.clear();
+            cuts.add(new SnapshotCut(System.currentTimeMillis(), snapshot.getLogPosition(),
+                snapshot.getReplyLogPosition()));
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Append a record to the WAL, if one is attached, naming the AMO request
+     * that made the change (if any); within a batch, collect it for endBatch
+     * @param replyCents the balance the request's reply reports
+     * @return the record's log position, or 0
+     */
+    private long log(WalRecord record, Header amoRequest, long replyCents) {
+        WriteAheadLog log = wal;
+        if (log == null) {
+            return 0;
+        }
+        Batch batch = batches.get();
+        if (batch != null) {
+            batch.records.add(record);  // Logged by endBatch
+            return 0;
+        }
+        if (amoRequest != null) {
+            record = record.forRequest(amoRequest.getClientId(), amoRequest.getSeqNo(),
+                amoRequest.getRequestId(), replyCents, System.currentTimeMillis());
+        }
+        return log.append(record);
+    }
+    
+    /**
+     * Re-apply a logged state change during recovery (before requests are served).
+     * Balance records are applied as unchecked deltas; records for accounts that
+     * no longer exist are skipped.
+     */
+    public void applyLogRecord(WalRecord record) {
+        switch (record.getType()) {
+            case OPEN_ACCOUNT:
+                accountStore.restoreAccount(record.getAccountNo(), record.getUsername(), record.getPassword(),
+                    record.getCurrency(), record.getAmountCents(), record.getCreatedAt());
+                break;
+            case CLOSE_ACCOUNT:
+                accountStore.deleteAccount(record.getAccountNo());
+                break;
+            case DEPOSIT:
+                applyDelta(record.getAccountNo(), record.getAmountCents());
+                break;
+            case WITHDRAW:
+                applyDelta(record.getAccountNo(), -record.getAmountCents());
+                break;
+            case TRANSFER:
+                applyDelta(record.getAccountNo(), -record.getAmountCents());
+                applyDelta(record.getToAccountNo(), record.getAmountCents());
+                break;
+            case BATCH:
+                for (WalRecord item : record.getItems()) {
+                    applyLogRecord(item);
+                }
+                break;
+        }
+    }
+    
+    private void applyDelta(long accountNo, long deltaCents) {
+        Account account = accountStore.getByAccountNo(accountNo);
+        if (account != null) {
+            account.applyLoggedDelta(deltaCents);
+        }
+    }
+    
+    /**
+     * Map the string form to the numeric one: null is a missing field, anything
+     * unparseable becomes -1 (not found)
+     */
+    private static long accountNumber(String accountNo) {
+        return accountNo == null ? Payload.NO_ACCOUNT : AccountStore.parseAccountNo(accountNo);
     }
     
     /**
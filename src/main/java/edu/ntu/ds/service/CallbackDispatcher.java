@@ -0,0 +1,333 @@
+package edu.ntu.ds.service;
+
+import edu.ntu.ds.network.Logger;
+import edu.ntu.ds.network.UdpServer;
+import edu.ntu.ds.protocol.Message;
+import edu.ntu.ds.protocol.OpCode;
+import edu.ntu.ds.protocol.TlvField;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends ACCOUNT_UPDATE callbacks off the request path.
+ * 
+ * Request threads only enqueue (account, balance) updates, and only for
+ * accounts someone is watching. A single daemon thread ("callback-dispatcher")
+ * takes everything queued, looks up each update's subscribers and packs each
+ * recipient's updates into as few ACCOUNT_UPDATE datagrams as fit
+ * MAX_DATAGRAM_BYTES (one updateEntry TLV per account; a lone update keeps the
+ * plain accountNo/amountCents form). Recipients that get the same updates share
+ * the messages, which are encoded once and sent as the same bytes to each
+ * (UdpServer.broadcastCallback), so request latency no longer grows with the
+ * number of monitors and busy accounts cost far fewer packets.
+ * 
+ * The queue is bounded. When it is full, an update for an account that
+ * already has one pending replaces that update's balance (monitors only need
+ * the latest balance); any other update is dropped. Callbacks are best-effort
+ * either way.
+ * 
+ * With a coalescing interval, every update for an account that already has one
+ * pending is merged into it, and the queue is flushed at most once per
+ * interval (one interval after the first update since the last flush). A
+ * monitor then gets at most one update per account per interval, carrying
+ * the latest balance and, if it stands for more than one change, the number
+ * of changes (the coalescedCount TLV, or the count in its updateEntry). A
+ * merged update skips the client that made the changes only if one client
+ * made all of them.
+ * 
+ * Updates can be published out of order (concurrent requests, WAL release
+ * order), so the last balance published for an account is not necessarily
+ * its newest. A logged change is published with the log position of its WAL
+ * record, and changes to an account are logged in the order they are
+ * applied, so a merged update keeps the balance with the highest position.
+ * The live balance could include changes whose records are not durable yet,
+ * so it is only read for unlogged changes (no WAL): with an AccountStore the
+ * dispatcher then sends each account's current balance, read when the update
+ * is flushed, and the published one only for an account that no longer
+ * exists.
+ */
+public class CallbackDispatcher {
+    
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    
+    /** Largest callback datagram: Ethernet MTU minus IPv4 and UDP headers */
+    public static final int MAX_DATAGRAM_BYTES = 1500 - 20 - 8;
+    
+    private static final int ENTRY_TLV_LENGTH = 4 + TlvField.UPDATE_ENTRY_LENGTH;
+    
+    /**
+     * A pending callback
+     */
+    private static final class Update {
+        final long accountNo;
+        final long queuedAt;
+        long balanceCents;
+        long logPosition;  // of the change balanceCents comes from (0 = not logged)
+        int excludeClientId;
+        boolean excludeNone;  // merged changes came from different clients
+        int changes = 1;
+        
+        Update(long accountNo, long balanceCents, long logPosition, int excludeClientId, long queuedAt) {
+            this.accountNo = accountNo;
+            this.balanceCents = balanceCents;
+            this.logPosition = logPosition;
+            this.excludeClientId = excludeClientId;
+            this.queuedAt = queuedAt;
+        }
+        
+        void merge(long balanceCents, long logPosition, int excludeClientId) {
+            if (logPosition >= this.logPosition) {  // the later change
+                this.balanceCents = balanceCents;
+                this.logPosition = logPosition;
+            }
+            if (excludeClientId != this.excludeClientId) {
+                excludeNone = true;
+            }
+            changes++;
+        }
+    }
+    
+    private final CallbackRegistry registry;
+    private final UdpServer server;
+    private final AccountStore accounts;  // null = send balances as published
+    private final int capacity;
+    private final long coalesceIntervalMs;
+    private final Logger logger;
+    private final Thread thread;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ArrayDeque<Update> queue = new ArrayDeque<>();
+    private final Map<Long, Update> pendingByAccount = new HashMap<>();
+    private boolean stopped;
+    
+    // Statistics (guarded by lock, except messages/datagrams which only the dispatcher writes)
+    private long enqueued;
+    private long coalesced;
+    private long dropped;
+    private volatile long messages;
+    private volatile long datagrams;
+    
+    /**
+     * @param capacity maximum number of pending updates
+     */
+    public CallbackDispatcher(CallbackRegistry registry, UdpServer server, int capacity) {
+        this(registry, server, capacity, 0);
+    }
+    
+    /**
+     * @param capacity maximum number of pending updates (accounts, when coalescing)
+     * @param coalesceIntervalMs minimum time between two callbacks for the same
+     *        account, or 0 to send every update as soon as possible
+     */
+    public CallbackDispatcher(CallbackRegistry registry, UdpServer server, int capacity, long coalesceIntervalMs) {
+        this(registry, server, null, capacity, coalesceIntervalMs);
+    }
+    
+    /**
+     * @param accounts store to read each flushed account's current balance from
+     *        (for unlogged changes), or null to send the balances as published
+     */
+    public CallbackDispatcher(CallbackRegistry registry, UdpServer server, AccountStore accounts, int capacity,
+                              long coalesceIntervalMs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        if (coalesceIntervalMs < 0) {
+            throw new IllegalArgumentException("Coalescing interval must not be negative");
+        }
+        this.registry = registry;
+        this.server = server;
+        this.accounts = accounts;
+        this.capacity = capacity;
+        this.coalesceIntervalMs = coalesceIntervalMs;
+        this.logger = new Logger("CALLBACK");
+        this.thread = new Thread(this::dispatchLoop, "callback-dispatcher");
+        this.thread.setDaemon(true);
+    }
+    
+    public void start() {
+        thread.start();
+    }
+    
+    /**
+     * Queue an update for the account's subscribers (other than the client
+     * that made the change) after an unlogged change; returns at once
+     */
+    public void publish(long accountNo, long balanceCents, int excludeClientId) {
+        publish(accountNo, balanceCents, 0, excludeClientId);
+    }
+    
+    /**
+     * Same, for a change logged at logPosition (0 = not logged). The balance is
+     * the one the change left, and is never replaced by a live read.
+     */
+    public void publish(long accountNo, long balanceCents, long logPosition, int excludeClientId) {
+        if (!registry.hasSubscribers(accountNo)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (stopped) {
+                return;
+            }
+            Update pending = pendingByAccount.get(accountNo);
+            if (pending != null && (coalesceIntervalMs > 0 || queue.size() >= capacity)) {
+                pending.merge(balanceCents, logPosition, excludeClientId);
+                coalesced++;
+            } else if (queue.size() < capacity) {
+                Update update = new Update(accountNo, balanceCents, logPosition, excludeClientId,
+                    System.currentTimeMillis());
+                queue.addLast(update);
+                pendingByAccount.put(accountNo, update);
+                enqueued++;
+                available.signal();
+            } else {
+                dropped++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stop the dispatcher thread; pending updates are discarded
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            queue.clear();
+            pendingByAccount.clear();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void dispatchLoop() {
+        List<Update> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (!stopped && !flushDue()) {
+                    if (queue.isEmpty()) {
+                        available.awaitUninterruptibly();
+                    } else {
+                        long waitMs = queue.peekFirst().queuedAt + coalesceIntervalMs - System.currentTimeMillis();
+                        try {
+                            available.await(Math.max(1, waitMs), TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            // Only stop() ends the loop
+                        }
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                batch.addAll(queue);
+                queue.clear();
+                pendingByAccount.clear();
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                send(batch);
+            } catch (RuntimeException e) {
+                logger.error("Error dispatching " + batch.size() + " account updates", e);
+            }
+            batch.clear();
+        }
+    }
+    
+    /**
+     * Whether the oldest queued update is ready to send (lock held)
+     */
+    private boolean flushDue() {
+        Update oldest = queue.peekFirst();
+        return oldest != null && System.currentTimeMillis() - oldest.queuedAt >= coalesceIntervalMs;
+    }
+    
+    /**
+     * Send a batch of updates, each recipient getting only its own
+     */
+    private void send(List<Update> batch) {
+        Map<InetSocketAddress, List<Update>> byRecipient = new LinkedHashMap<>();
+        for (Update update : batch) {
+            Account account = accounts != null && update.logPosition == 0
+                ? accounts.getByAccountNo(update.accountNo) : null;
+            if (account != null) {
+                update.balanceCents = account.getBalanceCents();  // The newest, whatever order updates came in
+            }
+            List<InetSocketAddress> addresses = update.excludeNone
+                ? registry.getSubscriberAddresses(update.accountNo)
+                : registry.getSubscriberAddresses(update.accountNo, update.excludeClientId);
+            for (InetSocketAddress address : addresses) {
+                byRecipient.computeIfAbsent(address, a -> new ArrayList<>()).add(update);
+            }
+        }
+        
+        // Typically every monitor watches the same accounts: one group
+        Map<List<Update>, List<InetSocketAddress>> byUpdates = new LinkedHashMap<>();
+        for (Map.Entry<InetSocketAddress, List<Update>> e : byRecipient.entrySet()) {
+            byUpdates.computeIfAbsent(e.getValue(), u -> new ArrayList<>()).add(e.getKey());
+        }
+        for (Map.Entry<List<Update>, List<InetSocketAddress>> e : byUpdates.entrySet()) {
+            List<Update> updates = e.getKey();
+            List<InetSocketAddress> addresses = e.getValue();
+            int next = 0;
+            while (next < updates.size()) {
+                Message callback = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
+                next = pack(callback, updates, next);
+                server.broadcastCallback(callback, addresses);
+                messages++;
+                datagrams += addresses.size();
+            }
+        }
+    }
+    
+    /**
+     * Add updates from index first on to the callback until it is full
+     * @return the index of the first update not added
+     */
+    private static int pack(Message callback, List<Update> updates, int first) {
+        if (first == updates.size() - 1) {
+            Update update = updates.get(first);
+            callback.addField(TlvField.accountNo(Long.toString(update.accountNo)));
+            callback.addField(TlvField.amountCents(update.balanceCents));
+            if (update.changes > 1) {
+                callback.addField(TlvField.coalescedCount(update.changes));
+            }
+            return first + 1;
+        }
+        int length = callback.getEncodedLength();
+        int next = first;
+        do {
+            Update update = updates.get(next++);
+            callback.addField(TlvField.updateEntry(update.accountNo, update.balanceCents, update.changes));
+            length += ENTRY_TLV_LENGTH;
+        } while (next < updates.size() && length + ENTRY_TLV_LENGTH <= MAX_DATAGRAM_BYTES);
+        return next;
+    }
+    
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("CallbackDispatcher{pending=%d/%d, enqueued=%d, messages=%d, datagrams=%d, " +
+                "coalesced=%d, dropped=%d}", queue.size(), capacity, enqueued, messages, datagrams, coalesced, dropped);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
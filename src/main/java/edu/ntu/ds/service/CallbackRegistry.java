@@ -1,6 +1,9 @@
 package edu.ntu.ds.service;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -11,9 +14,22 @@ import java.util.stream.Collectors;
  * 
  * Clients can register to receive ACCOUNT_UPDATE notifications for a specified TTL.
  * When state-changing operations occur, registered clients are notified.
+ * 
+ * A registration covers either every account or a list of account numbers
+ * (the watchAccounts TLV). Updates look their recipients up in a subscriber
+ * index: an open-addressing table from account number to the registrations
+ * watching it, plus the registrations watching everything. The index is
+ * immutable and rebuilt on every (rare) register/unregister/expiry, so the
+ * per-update lookup takes no lock, allocates nothing when nobody is
+ * interested, and touches only the interested registrations. Expired
+ * registrations are skipped on lookup; with a TimerWheel (startExpiry) each
+ * registration is removed by its own timer, otherwise a sweep runs when a
+ * lookup sees an expired one.
  */
 public class CallbackRegistry {
     
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+    
     /**
      * Callback registration entry
      */
@@ -21,33 +37,143 @@ public class CallbackRegistry {
         final int clientId;
         final InetSocketAddress address;
         final long expiresAt;
+        final long[] accountNos;  // null = every account
         
-        Registration(int clientId, InetSocketAddress address, int ttlSeconds) {
+        Registration(int clientId, InetSocketAddress address, int ttlSeconds, long[] accountNos) {
             this.clientId = clientId;
             this.address = address;
             this.expiresAt = System.currentTimeMillis() + (ttlSeconds * 1000L);
+            this.accountNos = accountNos;
         }
         
         boolean isExpired() {
-            return System.currentTimeMillis() >= expiresAt;
+            return isExpired(System.currentTimeMillis());
+        }
+        
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+    
+    /**
+     * Immutable account number -> subscribers table (linear probing, 0 = empty slot)
+     */
+    private static final class SubscriberIndex {
+        static final SubscriberIndex EMPTY = new SubscriberIndex(new long[1], new Registration[1][], NO_REGISTRATIONS);
+        
+        final long[] keys;
+        final Registration[][] subscribers;
+        final Registration[] allAccounts;
+        
+        SubscriberIndex(long[] keys, Registration[][] subscribers, Registration[] allAccounts) {
+            this.keys = keys;
+            this.subscribers = subscribers;
+            this.allAccounts = allAccounts;
+        }
+        
+        Registration[] get(long accountNo) {
+            int mask = keys.length - 1;
+            for (int i = slot(accountNo, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == accountNo) {
+                    return subscribers[i];
+                }
+            }
+            return NO_REGISTRATIONS;
+        }
+        
+        static int slot(long accountNo, int mask) {
+            long h = accountNo * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+        
+        static SubscriberIndex build(Iterable<Registration> registrations) {
+            Map<Long, List<Registration>> byAccount = new HashMap<>();
+            List<Registration> all = new ArrayList<>();
+            for (Registration reg : registrations) {
+                if (reg.accountNos == null) {
+                    all.add(reg);
+                    continue;
+                }
+                for (long accountNo : reg.accountNos) {
+                    if (accountNo <= 0) {
+                        continue;  // never an account (and 0 marks empty slots)
+                    }
+                    List<Registration> watchers = byAccount.computeIfAbsent(accountNo, k -> new ArrayList<>(1));
+                    if (watchers.isEmpty() || watchers.get(watchers.size() - 1) != reg) {
+                        watchers.add(reg);  // a number repeated in one list is added once
+                    }
+                }
+            }
+            int capacity = Integer.highestOneBit(Math.max(1, byAccount.size()) * 2) * 2;
+            long[] keys = new long[capacity];
+            Registration[][] subscribers = new Registration[capacity][];
+            for (Map.Entry<Long, List<Registration>> e : byAccount.entrySet()) {
+                int i = slot(e.getKey(), capacity - 1);
+                while (keys[i] != 0) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                keys[i] = e.getKey();
+                subscribers[i] = e.getValue().toArray(NO_REGISTRATIONS);
+            }
+            return new SubscriberIndex(keys, subscribers, all.toArray(NO_REGISTRATIONS));
         }
     }
     
     private final Map<Integer, Registration> registrations;  // clientId -> registration
+    private volatile SubscriberIndex index = SubscriberIndex.EMPTY;
+    private volatile TimerWheel timers;
+    private final TimerWheel.Handler expiry = this::expire;
     
     public CallbackRegistry() {
         this.registrations = new ConcurrentHashMap<>();
     }
     
     /**
-     * Register a client for callbacks
+     * Register a client for callbacks on every account
      * @param clientId client identifier
      * @param address client's address for sending callbacks
      * @param ttlSeconds time-to-live in seconds
      */
     public void register(int clientId, InetSocketAddress address, int ttlSeconds) {
-        Registration reg = new Registration(clientId, address, ttlSeconds);
+        register(clientId, address, ttlSeconds, null);
+    }
+    
+    /**
+     * Register a client for callbacks on the given accounts, replacing any
+     * earlier registration of the client
+     * @param accountNos accounts to watch, or null for every account
+     */
+    public synchronized void register(int clientId, InetSocketAddress address, int ttlSeconds, long[] accountNos) {
+        Registration reg = new Registration(clientId, address, ttlSeconds,
+            accountNos != null ? accountNos.clone() : null);
         registrations.put(clientId, reg);
+        index = SubscriberIndex.build(registrations.values());
+        TimerWheel wheel = timers;
+        if (wheel != null) {
+            wheel.schedule(expiry, clientId, reg.expiresAt);
+        }
+    }
+    
+    /**
+     * Remove registrations with timers on the given wheel (which the caller
+     * starts and stops) instead of sweeping
+     */
+    public synchronized void startExpiry(TimerWheel wheel) {
+        timers = wheel;
+        for (Registration reg : registrations.values()) {
+            wheel.schedule(expiry, reg.clientId, reg.expiresAt);
+        }
+    }
+    
+    /**
+     * Timer for a registration: remove it unless the client registered again since
+     */
+    private synchronized void expire(long clientId, long deadline) {
+        Registration reg = registrations.get((int) clientId);
+        if (reg != null && reg.expiresAt == deadline && reg.isExpired()) {
+            registrations.remove((int) clientId);
+            index = SubscriberIndex.build(registrations.values());
+        }
     }
     
     /**
@@ -55,8 +181,12 @@ public class CallbackRegistry {
      * @param clientId client identifier
      * @return true if client was registered
      */
-    public boolean unregister(int clientId) {
-        return registrations.remove(clientId) != null;
+    public synchronized boolean unregister(int clientId) {
+        if (registrations.remove(clientId) == null) {
+            return false;
+        }
+        index = SubscriberIndex.build(registrations.values());
+        return true;
     }
     
     /**
@@ -64,24 +194,80 @@ public class CallbackRegistry {
      */
     public boolean isRegistered(int clientId) {
         Registration reg = registrations.get(clientId);
-        if (reg != null && !reg.isExpired()) {
-            return true;
+        return reg != null && !reg.isExpired();
+    }
+    
+    /**
+     * Check, without allocating, whether any registration (possibly expired)
+     * covers the account
+     */
+    public boolean hasSubscribers(long accountNo) {
+        SubscriberIndex current = index;
+        return current.allAccounts.length > 0 || current.get(accountNo).length > 0;
+    }
+    
+    /**
+     * Get addresses of the (non-expired) clients watching an account, except
+     * the specified one. Only the account's subscribers and the clients
+     * watching every account are examined.
+     * 
+     * @param accountNo account whose balance changed
+     * @param excludeClientId client to exclude (typically the one who made the change)
+     * @return addresses to notify (an empty, immutable list if there are none)
+     */
+    public List<InetSocketAddress> getSubscriberAddresses(long accountNo, int excludeClientId) {
+        return subscriberAddresses(accountNo, true, excludeClientId);
+    }
+    
+    /**
+     * Get addresses of all the (non-expired) clients watching an account
+     */
+    public List<InetSocketAddress> getSubscriberAddresses(long accountNo) {
+        return subscriberAddresses(accountNo, false, 0);
+    }
+    
+    private List<InetSocketAddress> subscriberAddresses(long accountNo, boolean exclude, int excludeClientId) {
+        SubscriberIndex current = index;
+        Registration[] watching = current.get(accountNo);
+        Registration[] all = current.allAccounts;
+        if (watching.length == 0 && all.length == 0) {
+            return List.of();
         }
-        if (reg != null && reg.isExpired()) {
-            registrations.remove(clientId);
+        long now = System.currentTimeMillis();
+        List<InetSocketAddress> addresses = new ArrayList<>(watching.length + all.length);
+        boolean sawExpired = collectAddresses(watching, exclude, excludeClientId, now, addresses);
+        sawExpired |= collectAddresses(all, exclude, excludeClientId, now, addresses);
+        if (sawExpired && timers == null) {
+            cleanupExpired();
         }
-        return false;
+        return addresses;
     }
     
     /**
-     * Get addresses of all registered (non-expired) clients except the specified one.
-     * This is used to send notifications to other clients about account updates.
+     * Add the addresses of live registrations (other than excludeClientId, if exclude)
+     * @return true if an expired registration was seen
+     */
+    private static boolean collectAddresses(Registration[] group, boolean exclude, int excludeClientId,
+                                            long now, List<InetSocketAddress> addresses) {
+        boolean sawExpired = false;
+        for (Registration reg : group) {
+            if (reg.isExpired(now)) {
+                sawExpired = true;
+            } else if (!exclude || reg.clientId != excludeClientId) {
+                addresses.add(reg.address);
+            }
+        }
+        return sawExpired;
+    }
+    
+    /**
+     * Get addresses of all registered (non-expired) clients except the specified one,
+     * whatever accounts they watch.
      * 
      * @param excludeClientId client to exclude (typically the one who made the change)
      * @return set of addresses to notify
      */
     public Set<InetSocketAddress> getRegisteredAddresses(int excludeClientId) {
-        cleanupExpired();
         return registrations.values().stream()
             .filter(r -> r.clientId != excludeClientId && !r.isExpired())
             .map(r -> r.address)
@@ -92,7 +278,6 @@ public class CallbackRegistry {
      * Get all registered addresses (including the specified client)
      */
     public Set<InetSocketAddress> getAllRegisteredAddresses() {
-        cleanupExpired();
         return registrations.values().stream()
             .filter(r -> !r.isExpired())
             .map(r -> r.address)
@@ -111,30 +296,39 @@ public class CallbackRegistry {
     }
     
     /**
-     * Remove expired registrations
+     * Remove expired registrations (a full sweep)
      */
-    public void cleanupExpired() {
-        registrations.entrySet().removeIf(e -> e.getValue().isExpired());
+    public synchronized void cleanupExpired() {
+        long now = System.currentTimeMillis();
+        if (registrations.values().removeIf(r -> r.isExpired(now))) {
+            index = SubscriberIndex.build(registrations.values());
+        }
     }
     
     /**
      * Get number of active registrations
      */
     public int size() {
-        cleanupExpired();
-        return registrations.size();
+        long now = System.currentTimeMillis();
+        int live = 0;
+        for (Registration reg : registrations.values()) {
+            if (!reg.isExpired(now)) {
+                live++;
+            }
+        }
+        return live;
     }
     
     /**
      * Clear all registrations
      */
-    public void clear() {
+    public synchronized void clear() {
         registrations.clear();
+        index = SubscriberIndex.EMPTY;
     }
     
     @Override
     public String toString() {
-        cleanupExpired();
-        return "CallbackRegistry{registered=" + registrations.size() + " clients}";
+        return "CallbackRegistry{registered=" + size() + " clients}";
     }
 }
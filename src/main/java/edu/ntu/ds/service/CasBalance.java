@@ -0,0 +1,111 @@
+package edu.ntu.ds.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock-free balance: a volatile long updated through a VarHandle. Deposits and
+ * withdrawals retry a compare-and-exchange; withdrawals re-check the funds
+ * against the latest value on every attempt. Sealing swaps in the SEALED
+ * sentinel, which no real balance can equal.
+ * 
+ * Failed exchanges are counted over windows of CONTENTION_WINDOW updates; a
+ * window with at least contentionThreshold failures marks the balance as
+ * contended. The counters are plain fields: lost increments under a race only
+ * make the estimate slightly low.
+ */
+final class CasBalance implements AccountBalance {
+    
+    static final int CONTENTION_WINDOW = 1024;
+    
+    private static final VarHandle BALANCE;
+    
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(CasBalance.class, "balanceCents", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private volatile long balanceCents;
+    
+    private final int contentionThreshold;  // 0 = contention tracking off
+    private int windowUpdates;
+    private int windowFailures;
+    private volatile boolean contended;
+    
+    CasBalance(long initialCents, int contentionThreshold) {
+        this.balanceCents = initialCents;
+        this.contentionThreshold = contentionThreshold;
+    }
+    
+    @Override
+    public Kind kind() {
+        return Kind.CAS;
+    }
+    
+    @Override
+    public long get() {
+        return balanceCents;
+    }
+    
+    @Override
+    public boolean add(long amountCents) {
+        long current = balanceCents;
+        int failures = 0;
+        while (current != SEALED) {
+            long witness = (long) BALANCE.compareAndExchange(this, current, current + amountCents);
+            if (witness == current) {
+                recordUpdate(failures);
+                return true;
+            }
+            current = witness;
+            failures++;
+        }
+        return false;
+    }
+    
+    @Override
+    public int tryWithdraw(long amountCents) {
+        long current = balanceCents;
+        int failures = 0;
+        while (current != SEALED) {
+            if (current < amountCents) {
+                return INSUFFICIENT_FUNDS;
+            }
+            long witness = (long) BALANCE.compareAndExchange(this, current, current - amountCents);
+            if (witness == current) {
+                recordUpdate(failures);
+                return WITHDRAWN;
+            }
+            current = witness;
+            failures++;
+        }
+        return SEALED_RESULT;
+    }
+    
+    @Override
+    public long seal() {
+        return (long) BALANCE.getAndSet(this, SEALED);
+    }
+    
+    @Override
+    public boolean isContended() {
+        return contended;
+    }
+    
+    private void recordUpdate(int failures) {
+        if (contentionThreshold <= 0) {
+            return;
+        }
+        windowFailures += failures;
+        if (++windowUpdates >= CONTENTION_WINDOW) {
+            if (windowFailures >= contentionThreshold) {
+                contended = true;
+            }
+            windowUpdates = 0;
+            windowFailures = 0;
+        }
+    }
+}
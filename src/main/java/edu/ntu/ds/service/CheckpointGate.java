@@ -0,0 +1,82 @@
+package edu.ntu.ds.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Gate between logged state changes and snapshot cuts, with a striped read
+ * indicator.
+ * 
+ * Every logged change enters and exits the gate; a cut closes it and waits for
+ * the changes inside to drain. A ReentrantReadWriteLock would have every change
+ * CAS the same read-count word, so changes on different cores would bounce one
+ * cache line even though they never exclude each other. Here a thread counts
+ * itself into one of several padded stripes (chosen by thread id) and only a
+ * cut reads them all.
+ * 
+ * enter() increments its stripe and then reads the closed flag; close() sets
+ * the flag and then reads the stripes. All of these are volatile accesses, so
+ * either the change sees the gate closed (and backs out until it reopens) or
+ * the cut sees the change counted (and waits for its exit). Cuts are rare and
+ * short, so both sides wait by yielding. The gate is not reentrant, and only
+ * one thread may close it at a time.
+ */
+final class CheckpointGate {
+    
+    private static final int PADDING = 16;  // longs per stripe: 128 bytes, two cache lines
+    
+    private final AtomicLongArray counts;
+    private final int mask;
+    private volatile boolean closed;
+    
+    CheckpointGate() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param minStripes rounded up to a power of two
+     */
+    CheckpointGate(int minStripes) {
+        int stripes = minStripes <= 1 ? 1 : Integer.highestOneBit(minStripes - 1) << 1;
+        this.counts = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+    
+    /**
+     * Count the calling thread in, waiting while the gate is closed
+     * @return the stripe to pass to exit
+     */
+    int enter() {
+        int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        int index = stripe * PADDING;
+        while (true) {
+            counts.incrementAndGet(index);
+            if (!closed) {
+                return stripe;
+            }
+            counts.decrementAndGet(index);
+            while (closed) {
+                Thread.yield();
+            }
+        }
+    }
+    
+    void exit(int stripe) {
+        counts.decrementAndGet(stripe * PADDING);
+    }
+    
+    /**
+     * Keep new changes out and wait until every change inside has exited
+     */
+    void close() {
+        closed = true;
+        for (int index = 0; index < counts.length(); index += PADDING) {
+            while (counts.get(index) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+    
+    void open() {
+        closed = false;
+    }
+}
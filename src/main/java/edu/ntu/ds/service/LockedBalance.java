@@ -0,0 +1,80 @@
+package edu.ntu.ds.service;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Balance guarded by a StampedLock: updates take the write lock, reads are
+ * optimistic and only fall back to the read lock if a write intervened.
+ */
+final class LockedBalance implements AccountBalance {
+    
+    private final StampedLock lock = new StampedLock();
+    private long balanceCents;
+    private boolean sealed;
+    
+    LockedBalance(long initialCents) {
+        this.balanceCents = initialCents;
+    }
+    
+    @Override
+    public Kind kind() {
+        return Kind.LOCKED;
+    }
+    
+    @Override
+    public long get() {
+        long stamp = lock.tryOptimisticRead();
+        long balance = sealed ? SEALED : balanceCents;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                balance = sealed ? SEALED : balanceCents;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return balance;
+    }
+    
+    @Override
+    public boolean add(long amountCents) {
+        long stamp = lock.writeLock();
+        try {
+            if (sealed) {
+                return false;
+            }
+            balanceCents += amountCents;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    @Override
+    public int tryWithdraw(long amountCents) {
+        long stamp = lock.writeLock();
+        try {
+            if (sealed) {
+                return SEALED_RESULT;
+            }
+            if (balanceCents < amountCents) {
+                return INSUFFICIENT_FUNDS;
+            }
+            balanceCents -= amountCents;
+            return WITHDRAWN;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    @Override
+    public long seal() {
+        long stamp = lock.writeLock();
+        try {
+            sealed = true;
+            return balanceCents;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
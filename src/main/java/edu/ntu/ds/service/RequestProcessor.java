@@ -2,10 +2,17 @@ package edu.ntu.ds.service;
 
 import edu.ntu.ds.network.Logger;
 import edu.ntu.ds.network.UdpServer;
+import edu.ntu.ds.persistence.WalRecord;
+import edu.ntu.ds.persistence.WriteAheadLog;
 import edu.ntu.ds.protocol.*;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Request Processor that integrates banking service with protocol handling.
@@ -16,6 +23,24 @@ import java.util.Set;
  * 
  * For demonstration, both semantics are supported and can be controlled per-request
  * via the header.semantics field.
+ * 
+ * With a concurrent execution mode a retry can arrive while the original is
+ * still executing, before its reply reaches the AMO cache. AMO requests are
+ * therefore registered in an in-flight table for the duration of execution; a
+ * duplicate that finds its request there does not execute, and the original's
+ * reply is sent to it as well once ready.
+ * 
+ * With a write-ahead log, AMO state changes are logged together with their
+ * request (see WalRecord.forRequest), and restoreReply puts the rebuilt
+ * replies back into the AMO cache at startup, so at-most-once also holds for
+ * a retry that arrives after a crash and restart.
+ * 
+ * A BATCH request carries DEPOSIT, WITHDRAW, QUERY_BALANCE and TRANSFER
+ * sub-requests (batchItem TLVs). They run in order, each validated and
+ * executed like the single request, and the reply holds one result item per
+ * sub-request with its own status. The batch is the unit of at-most-once: it
+ * has one AMO cache entry and one WAL record, so a retry returns the whole
+ * reply and none of its items runs twice.
  */
 public class RequestProcessor implements UdpServer.RequestHandler {
     
@@ -24,31 +49,155 @@ public class RequestProcessor implements UdpServer.RequestHandler {
     private final AmoCache amoCache;
     private final Logger logger;
     
+    // AMO requests currently executing, keyed by (clientId, requestId)
+    private final ConcurrentHashMap<InFlightKey, InFlight> inFlight = new ConcurrentHashMap<>();
+    
     // Reference to server for sending callbacks
     private UdpServer server;
+    private CallbackDispatcher callbackDispatcher;
+    
+    private static final class InFlightKey {
+        final int clientId;
+        final long requestId;
+        
+        InFlightKey(int clientId, long requestId) {
+            this.clientId = clientId;
+            this.requestId = requestId;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof InFlightKey)) return false;
+            InFlightKey other = (InFlightKey) o;
+            return clientId == other.clientId && requestId == other.requestId;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * clientId + Long.hashCode(requestId);
+        }
+    }
+    
+    /**
+     * Reply and changes of an executed BATCH request
+     */
+    private static final class BatchOutcome {
+        final Message reply;
+        final long logPosition;
+        final long[] changedAccounts;
+        final long[] changedBalances;  // as the batch left them, in changedAccounts' order
+        
+        BatchOutcome(Message reply, long logPosition, long[] changedAccounts, long[] changedBalances) {
+            this.reply = reply;
+            this.logPosition = logPosition;
+            this.changedAccounts = changedAccounts;
+            this.changedBalances = changedBalances;
+        }
+    }
+    
+    /**
+     * An executing AMO request and the addresses of duplicates waiting for its reply
+     */
+    private static final class InFlight {
+        private final List<InetSocketAddress> waiters = new ArrayList<>(1);
+        private byte[] replyBytes;
+        
+        /**
+         * Wait for the reply, unless it is already available
+         * @return the reply bytes if the request has completed, otherwise null
+         */
+        synchronized byte[] join(InetSocketAddress address) {
+            if (replyBytes == null && !waiters.contains(address)) {
+                waiters.add(address);
+            }
+            return replyBytes;
+        }
+        
+        /**
+         * Publish the reply
+         * @return the waiters to send it to
+         */
+        synchronized List<InetSocketAddress> complete(byte[] replyBytes) {
+            this.replyBytes = replyBytes;
+            return new ArrayList<>(waiters);
+        }
+    }
     
     public RequestProcessor(BankingService bankingService) {
+        this(bankingService, new AmoCache());
+    }
+    
+    /**
+     * Create a processor using a caller-configured AMO cache (bounds, eviction policy)
+     */
+    public RequestProcessor(BankingService bankingService, AmoCache amoCache) {
         this.bankingService = bankingService;
         this.callbackRegistry = new CallbackRegistry();
-        this.amoCache = new AmoCache();
+        this.amoCache = amoCache;
         this.logger = new Logger("PROCESSOR");
     }
     
     /**
-     * Set server reference for sending callbacks
+     * Set server reference for sending replies and callbacks, and start the
+     * callback dispatcher thread
      */
     public void setServer(UdpServer server) {
+        setServer(server, 0);
+    }
+    
+    /**
+     * Same, sending at most one callback per account every callbackIntervalMs
+     * (0 = every update)
+     */
+    public void setServer(UdpServer server, long callbackIntervalMs) {
         this.server = server;
+        if (callbackDispatcher != null) {
+            callbackDispatcher.stop();
+        }
+        callbackDispatcher = new CallbackDispatcher(callbackRegistry, server, bankingService.getAccountStore(),
+            CallbackDispatcher.DEFAULT_QUEUE_CAPACITY, callbackIntervalMs);
+        callbackDispatcher.start();
     }
     
     public CallbackRegistry getCallbackRegistry() {
         return callbackRegistry;
     }
     
+    /**
+     * @return the callback dispatcher, or null before setServer
+     */
+    public CallbackDispatcher getCallbackDispatcher() {
+        return callbackDispatcher;
+    }
+    
     public AmoCache getAmoCache() {
         return amoCache;
     }
     
+    /**
+     * AMO duplicate check straight off the request header: on a hit the cached
+     * reply bytes are sent as-is, so a retry costs neither a payload decode nor
+     * a reply decode/re-encode.
+     */
+    @Override
+    public boolean handleCachedReply(HeaderView header, InetSocketAddress clientAddress) {
+        if (!header.isAmo()) {
+            return false;
+        }
+        int clientId = header.getClientId();
+        long requestId = header.getRequestId();
+        byte[] cachedReply = amoCache.get(clientId, requestId);
+        if (cachedReply == null) {
+            return false;
+        }
+        logger.info("AMO cache hit for clientId=" + clientId + ", requestId=" + requestId);
+        if (server != null) {
+            server.sendRawReply(cachedReply, clientAddress, true);
+        }
+        return true;
+    }
+    
     @Override
     public Message handleRequest(Message request, InetSocketAddress clientAddress) {
         Header reqHeader = request.getHeader();
@@ -57,29 +206,81 @@ public class RequestProcessor implements UdpServer.RequestHandler {
         Semantics semantics = reqHeader.getSemantics();
         OpCode opCode = reqHeader.getOpCode();
         
-        // Check for duplicate request (AMO semantics)
+        // Check for duplicate request (AMO semantics). UdpServer normally answers
+        // duplicates in handleCachedReply before decoding; this catches a retry
+        // whose original completed in the meantime (without counting a second miss).
         if (semantics == Semantics.AMO) {
-            byte[] cachedReply = amoCache.get(clientId, requestId);
+            byte[] cachedReply = amoCache.peek(clientId, requestId);
             if (cachedReply != null) {
                 logger.info("AMO cache hit for clientId=" + clientId + ", requestId=" + requestId);
-                // Return cached reply (decode it to Message for logging, but send original bytes)
-                try {
-                    Message cachedMsg = Message.decode(cachedReply);
+                if (server != null) {
+                    server.sendRawReply(cachedReply, clientAddress, true);
+                }
+                return null; // Already sent via server.sendRawReply
+            }
+            
+            // A request the client has already acknowledged is a delayed duplicate
+            // whose cached reply was dropped; it must not run a second time
+            if (amoCache.isAcknowledged(clientId, reqHeader.getSeqNo())) {
+                logger.warn("Rejecting stale AMO request: clientId=" + clientId +
+                    ", seqNo=" + reqHeader.getSeqNo() + " is already acknowledged");
+                Message reply = Message.createReply(request, StatusCode.BAD_REQUEST);
+                reply.addField(TlvField.note("stale request: seqNo already acknowledged"));
+                return reply;
+            }
+        }
+        
+        // Free the cached replies the client has acknowledged
+        Integer ackSeqNo = request.getPayload().getAckSeqNo();
+        if (ackSeqNo != null) {
+            int freed = amoCache.acknowledge(clientId, ackSeqNo);
+            if (freed > 0) {
+                logger.debug("Acknowledged up to seqNo=" + ackSeqNo + " for clientId=" + clientId +
+                    ", freed " + freed + " cached replies");
+            }
+        }
+        
+        // Register as in flight, or wait for the copy of this request that already is
+        InFlightKey flightKey = null;
+        InFlight flight = null;
+        if (semantics == Semantics.AMO) {
+            flightKey = new InFlightKey(clientId, requestId);
+            flight = new InFlight();
+            InFlight original = inFlight.putIfAbsent(flightKey, flight);
+            if (original != null) {
+                byte[] replyBytes = original.join(clientAddress);
+                if (replyBytes != null) {
                     if (server != null) {
-                        server.sendReply(cachedMsg, clientAddress, true);
+                        server.sendRawReply(replyBytes, clientAddress, true);
                     }
-                    return null; // Already sent via server.sendReply
-                } catch (ProtocolException e) {
-                    logger.error("Failed to decode cached reply", e);
+                } else {
+                    logger.info("AMO request in flight, duplicate will get its reply: clientId=" +
+                        clientId + ", requestId=" + requestId);
                 }
+                return null;
+            }
+            
+            // The original may have completed between the cache check and registering
+            byte[] cachedReply = amoCache.peek(clientId, requestId);
+            if (cachedReply != null) {
+                completeInFlight(flightKey, flight, cachedReply, null);
+                if (server != null) {
+                    server.sendRawReply(cachedReply, clientAddress, true);
+                }
+                return null;
             }
         }
         
-        // Execute the requested operation
+        // Execute the requested operation; AMO changes are logged with their request
+        Header amoRequest = semantics == Semantics.AMO ? reqHeader : null;
         Message reply;
         boolean stateChanged = false;
-        String affectedAccountNo = null;
+        long affectedAccountNo = Payload.NO_ACCOUNT;
         Long newBalance = null;
+        long counterpartAccountNo = Payload.NO_ACCOUNT;
+        Long counterpartBalance = null;
+        BatchOutcome batchOutcome = null;
+        long logPosition = 0;
         
         try {
             Payload payload = request.getPayload();
@@ -97,71 +298,79 @@ public class RequestProcessor implements UdpServer.RequestHandler {
                         payload.getUsername(),
                         payload.getPassword(),
                         payload.getCurrency(),
-                        initialBalance != null ? initialBalance : 0L
+                        initialBalance != null ? initialBalance : 0L,
+                        amoRequest
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
                         reply.addField(TlvField.accountNo(result.accountNo));
                         reply.addField(TlvField.amountCents(result.balanceCents)); // Return initial balance
                         stateChanged = true;
-                        affectedAccountNo = result.accountNo;
+                        logPosition = result.logPosition;
+                        affectedAccountNo = result.account.getAccountNumber();
                         newBalance = result.balanceCents;
                     }
                     break;
-                    
+                
                 case CLOSE_ACCOUNT:
                     result = bankingService.closeAccount(
                         payload.getUsername(),
                         payload.getPassword(),
-                        payload.getAccountNo()
+                        payload.getAccountNumber(),
+                        amoRequest
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
                         reply.addField(TlvField.amountCents(result.balanceCents)); // Final balance returned
                         stateChanged = true;
-                        affectedAccountNo = payload.getAccountNo();
+                        logPosition = result.logPosition;
+                        affectedAccountNo = payload.getAccountNumber();
                     }
                     break;
-                    
+                
                 case DEPOSIT:
                     result = bankingService.deposit(
                         payload.getUsername(),
                         payload.getPassword(),
-                        payload.getAccountNo(),
+                        payload.getAccountNumber(),
                         payload.getCurrency(),  // Currency type for validation
-                        payload.getAmountCents()
+                        payload.getAmountCents(),
+                        amoRequest
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
                         reply.addField(TlvField.amountCents(result.balanceCents)); // New balance
                         stateChanged = true;
-                        affectedAccountNo = payload.getAccountNo();
+                        logPosition = result.logPosition;
+                        affectedAccountNo = payload.getAccountNumber();
                         newBalance = result.balanceCents;
                     }
                     break;
-                    
+                
                 case WITHDRAW:
                     result = bankingService.withdraw(
                         payload.getUsername(),
                         payload.getPassword(),
-                        payload.getAccountNo(),
+                        payload.getAccountNumber(),
                         payload.getCurrency(),  // Currency type for validation
-                        payload.getAmountCents()
+                        payload.getAmountCents(),
+                        amoRequest
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
                         reply.addField(TlvField.amountCents(result.balanceCents)); // New balance
                         stateChanged = true;
-                        affectedAccountNo = payload.getAccountNo();
+                        logPosition = result.logPosition;
+                        affectedAccountNo = payload.getAccountNumber();
                         newBalance = result.balanceCents;
                     }
                     break;
-                    
+                
                 case QUERY_BALANCE:
                     result = bankingService.queryBalance(
                         payload.getUsername(),
                         payload.getPassword(),
-                        payload.getAccountNo()
+                        payload.getAccountNumber()
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
@@ -170,7 +379,7 @@ public class RequestProcessor implements UdpServer.RequestHandler {
                     }
                     // Query is idempotent, no state change
                     break;
-                    
+                
                 case TRANSFER:
                     logger.info("Processing TRANSFER: from=" + payload.getAccountNo() + 
                         " to=" + payload.getToAccountNo() + 
@@ -179,44 +388,48 @@ public class RequestProcessor implements UdpServer.RequestHandler {
                     result = bankingService.transfer(
                         payload.getUsername(),
                         payload.getPassword(),
-                        payload.getAccountNo(),
-                        payload.getToAccountNo(),
-                        payload.getAmountCents()
+                        payload.getAccountNumber(),
+                        payload.getToAccountNumber(),
+                        payload.getAmountCents(),
+                        amoRequest
                     );
                     reply = createReply(request, result);
                     if (result.status == StatusCode.OK) {
                         reply.addField(TlvField.amountCents(result.balanceCents)); // New balance of source
                         stateChanged = true;
-                        affectedAccountNo = payload.getAccountNo();
+                        logPosition = result.logPosition;
+                        affectedAccountNo = payload.getAccountNumber();
                         newBalance = result.balanceCents;
-                        
-                        // Also notify about destination account update
-                        Account toAccount = bankingService.getAccountStore()
-                            .getByAccountNo(payload.getToAccountNo());
-                        if (toAccount != null) {
-                            sendAccountUpdateCallback(payload.getToAccountNo(), 
-                                toAccount.getBalanceCents(), clientId);
-                        }
+                        counterpartAccountNo = payload.getToAccountNumber();  // Also notify about destination
+                        counterpartBalance = result.toBalanceCents;
                     }
                     break;
-                    
+                
+                case BATCH:
+                    batchOutcome = executeBatch(request, payload.getBatchItems(), amoRequest);
+                    reply = batchOutcome.reply;
+                    logPosition = batchOutcome.logPosition;
+                    break;
+                
                 case REGISTER_CALLBACK:
                     Integer ttl = payload.getTtlSeconds();
+                    long[] watchAccounts = payload.getWatchAccountNumbers();
                     if (ttl == null || ttl <= 0) {
                         reply = createReply(request, BankingService.OperationResult.error(StatusCode.BAD_REQUEST));
                     } else {
-                        callbackRegistry.register(clientId, clientAddress, ttl);
-                        logger.info("Client " + clientId + " registered for callbacks, TTL=" + ttl + "s");
+                        callbackRegistry.register(clientId, clientAddress, ttl, watchAccounts);
+                        logger.info("Client " + clientId + " registered for callbacks, TTL=" + ttl + "s, accounts=" +
+                            (watchAccounts != null ? Arrays.toString(watchAccounts) : "all"));
                         reply = createReply(request, BankingService.OperationResult.success());
                     }
                     break;
-                    
+                
                 case UNREGISTER_CALLBACK:
                     boolean wasRegistered = callbackRegistry.unregister(clientId);
                     logger.info("Client " + clientId + " unregistered from callbacks (was registered: " + wasRegistered + ")");
                     reply = createReply(request, BankingService.OperationResult.success());
                     break;
-                    
+                
                 default:
                     logger.warn("Unsupported operation: " + opCode);
                     reply = createReply(request, BankingService.OperationResult.error(StatusCode.BAD_REQUEST));
@@ -230,49 +443,269 @@ public class RequestProcessor implements UdpServer.RequestHandler {
             reply = Message.createReply(request, StatusCode.INTERNAL_ERROR);
         }
         
+        // Balances to tell monitors about, as this change left them
+        long[] changedAccounts = null;
+        long[] changedBalances = null;
+        if (batchOutcome != null) {
+            changedAccounts = batchOutcome.changedAccounts;
+            changedBalances = batchOutcome.changedBalances;
+        } else if (stateChanged && newBalance != null) {
+            if (counterpartBalance != null) {
+                changedAccounts = new long[] {affectedAccountNo, counterpartAccountNo};
+                changedBalances = new long[] {newBalance, counterpartBalance};
+            } else {
+                changedAccounts = new long[] {affectedAccountNo};
+                changedBalances = new long[] {newBalance};
+            }
+        }
+        
+        // A logged state change is only made visible (reply, AMO cache, callbacks)
+        // once its WAL record is durable
+        WriteAheadLog wal = bankingService.getWriteAheadLog();
+        if (logPosition > 0 && wal != null && wal.getSyncPolicy() != WriteAheadLog.SyncPolicy.ASYNC) {
+            if (server != null) {
+                Message durableReply = reply;
+                InFlightKey durableKey = flightKey;
+                InFlight durableFlight = flight;
+                long[] durableAccounts = changedAccounts;
+                long[] durableBalances = changedBalances;
+                long durablePosition = logPosition;
+                // The WAL writer only hands the release back to the server, so
+                // the next fsync does not wait for cache updates and sends
+                wal.whenDurable(logPosition, () -> server.execute(clientId, () -> {
+                    publishReply(request, durableReply, durableKey, durableFlight, clientAddress,
+                        durableAccounts, durableBalances, durablePosition);
+                    server.sendReply(durableReply, clientAddress, false);
+                }));
+                return null; // Sent once the fsync covering it completes
+            }
+            wal.awaitDurable(logPosition);
+        }
+        
+        publishReply(request, reply, flightKey, flight, clientAddress, changedAccounts, changedBalances,
+            logPosition);
+        return reply;
+    }
+    
+    /**
+     * Execute the sub-requests of a BATCH request in order. Malformed items
+     * reject the whole batch before anything runs; otherwise each item gets a
+     * result item with its own status (and balance), whatever the other items'
+     * outcome. The changes are logged as one WAL record, together with the
+     * reply of an AMO batch.
+     * @throws ProtocolException if there are too many items or one is malformed
+     */
+    private BatchOutcome executeBatch(Message request, List<TlvField> items, Header amoRequest)
+            throws ProtocolException {
+        if (items.size() > Constants.MAX_BATCH_ITEMS) {
+            throw new ProtocolException("Too many batch items: " + items.size() + " (max " +
+                Constants.MAX_BATCH_ITEMS + ")");
+        }
+        OpCode[] opCodes = new OpCode[items.size()];
+        Payload[] payloads = new Payload[items.size()];
+        long[] accountNos = new long[2 * items.size()];
+        for (int i = 0; i < opCodes.length; i++) {
+            opCodes[i] = items.get(i).getItemOpCode();
+            payloads[i] = items.get(i).getItemPayload();
+            accountNos[2 * i] = payloads[i].getAccountNumber();
+            accountNos[2 * i + 1] = payloads[i].getToAccountNumber();
+        }
+        logger.info("Processing BATCH: " + opCodes.length + " items");
+        
+        Set<Long> changed = new LinkedHashSet<>();
+        Message reply = Message.createReply(request, StatusCode.OK);
+        long[] changedAccounts = null;
+        long[] changedBalances = null;
+        boolean completed = false;
+        long logPosition;
+        bankingService.beginBatch(accountNos);
+        try {
+            for (int i = 0; i < opCodes.length; i++) {
+                Payload result = new Payload();
+                StatusCode status = executeBatchItem(opCodes[i], payloads[i], result, changed);
+                reply.addField(TlvField.batchItem(opCodes[i], status, result));
+            }
+            
+            // Read while the batch still holds its accounts (with a WAL), so no
+            // later change is mixed into the balances its record makes durable
+            AccountStore store = bankingService.getAccountStore();
+            changedAccounts = new long[changed.size()];
+            changedBalances = new long[changed.size()];
+            int n = 0;
+            for (long accountNo : changed) {
+                Account account = store.getByAccountNo(accountNo);
+                changedAccounts[n] = accountNo;
+                changedBalances[n++] = account != null ? account.getBalanceCents() : 0;
+            }
+            completed = true;
+        } finally {
+            // Changes already made are logged even if an item failed unexpectedly
+            Message logged = completed ? reply : Message.createReply(request, StatusCode.INTERNAL_ERROR);
+            logPosition = bankingService.endBatch(amoRequest, logged.encode());
+        }
+        return new BatchOutcome(reply, logPosition, changedAccounts, changedBalances);
+    }
+    
+    /**
+     * Execute one sub-request of a batch
+     * @param result receives the result item's fields
+     * @param changed receives the accounts whose balance changed
+     * @return the item's status
+     */
+    private StatusCode executeBatchItem(OpCode opCode, Payload payload, Payload result, Set<Long> changed) {
+        BankingService.OperationResult outcome;
+        try {
+            payload.validateRequired(opCode);
+            switch (opCode) {
+                case DEPOSIT:
+                    outcome = bankingService.deposit(payload.getUsername(), payload.getPassword(),
+                        payload.getAccountNumber(), payload.getCurrency(), payload.getAmountCents(), null);
+                    break;
+                case WITHDRAW:
+                    outcome = bankingService.withdraw(payload.getUsername(), payload.getPassword(),
+                        payload.getAccountNumber(), payload.getCurrency(), payload.getAmountCents(), null);
+                    break;
+                case QUERY_BALANCE:
+                    outcome = bankingService.queryBalance(payload.getUsername(), payload.getPassword(),
+                        payload.getAccountNumber());
+                    break;
+                case TRANSFER:
+                    outcome = bankingService.transfer(payload.getUsername(), payload.getPassword(),
+                        payload.getAccountNumber(), payload.getToAccountNumber(), payload.getAmountCents(), null);
+                    break;
+                default:
+                    return StatusCode.BAD_REQUEST;  // Not allowed in a batch
+            }
+        } catch (ProtocolException e) {
+            return StatusCode.BAD_REQUEST;
+        }
+        if (outcome.status != StatusCode.OK) {
+            return outcome.status;
+        }
+        result.addField(TlvField.amountCents(outcome.balanceCents));
+        if (opCode == OpCode.QUERY_BALANCE) {
+            result.addField(TlvField.currency(outcome.account.getCurrency()));
+        } else {
+            changed.add(payload.getAccountNumber());
+            if (opCode == OpCode.TRANSFER) {
+                changed.add(payload.getToAccountNumber());
+            }
+        }
+        return StatusCode.OK;
+    }
+    
+    /**
+     * Make a reply visible beyond its requester: cache it for AMO retries, hand
+     * it to duplicates waiting in flight, and send callbacks for a state change
+     * @param changedAccounts accounts whose balance changed, or null
+     * @param changedBalances their balances right after the change
+     * @param logPosition log position of the change's WAL record (0 = not logged)
+     */
+    private void publishReply(Message request, Message reply, InFlightKey flightKey, InFlight flight,
+                              InetSocketAddress clientAddress, long[] changedAccounts, long[] changedBalances,
+                              long logPosition) {
+        Header reqHeader = request.getHeader();
+        int clientId = reqHeader.getClientId();
+        
         // Cache reply for AMO semantics
-        if (semantics == Semantics.AMO) {
+        if (flight != null) {
+            long requestId = reqHeader.getRequestId();
             byte[] replyBytes = reply.encode();
-            amoCache.put(clientId, requestId, replyBytes);
+            amoCache.put(clientId, requestId, reqHeader.getSeqNo(), replyBytes);
             logger.debug("Cached reply for AMO: clientId=" + clientId + ", requestId=" + requestId);
+            completeInFlight(flightKey, flight, replyBytes, clientAddress);
         }
         
         // Send callbacks to registered monitors
-        if (stateChanged && affectedAccountNo != null && newBalance != null) {
-            sendAccountUpdateCallback(affectedAccountNo, newBalance, clientId);
+        if (changedAccounts != null) {
+            for (int i = 0; i < changedAccounts.length; i++) {
+                sendAccountUpdateCallback(changedAccounts[i], changedBalances[i], logPosition, clientId);
+            }
         }
-        
-        return reply;
     }
     
     /**
-     * Create a reply message from operation result
+     * Rebuild the reply of a logged AMO request during recovery and cache it,
+     * aged from when the change was logged. The reply is the one handleRequest
+     * produced: status OK, the request's identity, and the logged balance (plus
+     * the account number for OPEN_ACCOUNT). A BATCH record keeps its reply as is.
+     * @return false if the record names no request or its reply has expired
      */
-    private Message createReply(Message request, BankingService.OperationResult result) {
-        return Message.createReply(request, result.status);
+    public boolean restoreReply(WalRecord record) {
+        if (!record.hasRequest()) {
+            return false;
+        }
+        if (record.getType() == WalRecord.Type.BATCH) {
+            return amoCache.restore(record.getClientId(), record.getRequestId(), record.getSeqNo(),
+                record.getReply(), record.getLoggedAt());
+        }
+        Message reply = new Message();
+        Header header = reply.getHeader();
+        header.setMsgType(MessageType.REP);
+        header.setClientId(record.getClientId());
+        header.setSeqNo(record.getSeqNo());
+        header.setRequestId(record.getRequestId());
+        header.setSemantics(Semantics.AMO);
+        header.setStatus(StatusCode.OK);
+        switch (record.getType()) {
+            case OPEN_ACCOUNT:
+                header.setOpCode(OpCode.OPEN_ACCOUNT);
+                reply.addField(TlvField.accountNo(Long.toString(record.getAccountNo())));
+                break;
+            case CLOSE_ACCOUNT:
+                header.setOpCode(OpCode.CLOSE_ACCOUNT);
+                break;
+            case DEPOSIT:
+                header.setOpCode(OpCode.DEPOSIT);
+                break;
+            case WITHDRAW:
+                header.setOpCode(OpCode.WITHDRAW);
+                break;
+            case TRANSFER:
+                header.setOpCode(OpCode.TRANSFER);
+                break;
+        }
+        reply.addField(TlvField.amountCents(record.getReplyCents()));
+        return amoCache.restore(record.getClientId(), record.getRequestId(), record.getSeqNo(),
+            reply.encode(), record.getLoggedAt());
     }
     
     /**
-     * Send ACCOUNT_UPDATE callback to registered clients
+     * Publish an in-flight request's reply, remove it from the table and send the
+     * reply to duplicates that arrived during execution (other than the original
+     * sender, who gets the normal reply). The reply is cached beforehand, so a
+     * duplicate arriving after removal finds it in the AMO cache.
      */
-    private void sendAccountUpdateCallback(String accountNo, long newBalance, int excludeClientId) {
+    private void completeInFlight(InFlightKey key, InFlight flight, byte[] replyBytes,
+                                  InetSocketAddress originalAddress) {
+        List<InetSocketAddress> waiters = flight.complete(replyBytes);
+        inFlight.remove(key, flight);
         if (server == null) {
             return;
         }
-        
-        Set<InetSocketAddress> recipients = callbackRegistry.getRegisteredAddresses(excludeClientId);
-        if (recipients.isEmpty()) {
-            return;
+        for (InetSocketAddress waiter : waiters) {
+            if (!waiter.equals(originalAddress)) {
+                server.sendRawReply(replyBytes, waiter, true);
+            }
         }
-        
-        // Create callback message
-        Message callback = Message.createCallback(OpCode.ACCOUNT_UPDATE, 0);
-        callback.addField(TlvField.accountNo(accountNo));
-        callback.addField(TlvField.amountCents(newBalance));
-        
-        // Send to all registered clients (best-effort)
-        for (InetSocketAddress addr : recipients) {
-            server.sendCallback(callback, addr);
+    }
+    
+    /**
+     * Create a reply message from operation result
+     */
+    private Message createReply(Message request, BankingService.OperationResult result) {
+        return Message.createReply(request, result.status);
+    }
+    
+    /**
+     * Queue an ACCOUNT_UPDATE callback for the clients watching the account;
+     * the dispatcher thread sends it
+     * @param logPosition log position of the change's WAL record (0 = not logged)
+     */
+    private void sendAccountUpdateCallback(long accountNo, long newBalance, long logPosition, int excludeClientId) {
+        CallbackDispatcher dispatcher = callbackDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(accountNo, newBalance, logPosition, excludeClientId);
         }
     }
 }
@@ -0,0 +1,65 @@
+package edu.ntu.ds.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Balance for receive-heavy accounts: deposits go to LongAdder cells, so
+ * concurrent depositors on different cores do not contend; withdrawals are
+ * serialized and reconcile the cells.
+ * 
+ * balance = credits - debits. credits only grows (negative amounts, from log
+ * replay, are debits), so credits.sum() is never above the true total; a
+ * withdrawal checked against it cannot overdraw.
+ * Reads take debits before credits for the same reason.
+ * 
+ * Deposits cannot be fenced off without reintroducing a shared hot spot, so a
+ * striped balance cannot be sealed: STRIPED is the final kind for an account.
+ */
+final class StripedBalance implements AccountBalance {
+    
+    private final LongAdder credits = new LongAdder();
+    private volatile long debits;  // written under this
+    
+    StripedBalance(long initialCents) {
+        credits.add(initialCents);
+    }
+    
+    @Override
+    public Kind kind() {
+        return Kind.STRIPED;
+    }
+    
+    @Override
+    public long get() {
+        long d = debits;
+        return credits.sum() - d;
+    }
+    
+    @Override
+    public boolean add(long amountCents) {
+        if (amountCents < 0) {
+            debit(-amountCents);  // A replayed withdrawal; credits must only grow
+        } else {
+            credits.add(amountCents);
+        }
+        return true;
+    }
+    
+    private synchronized void debit(long amountCents) {
+        debits += amountCents;
+    }
+    
+    @Override
+    public synchronized int tryWithdraw(long amountCents) {
+        if (credits.sum() - debits < amountCents) {
+            return INSUFFICIENT_FUNDS;
+        }
+        debits += amountCents;
+        return WITHDRAWN;
+    }
+    
+    @Override
+    public long seal() {
+        throw new UnsupportedOperationException("A striped balance cannot be migrated");
+    }
+}
@@ -0,0 +1,239 @@
+package edu.ntu.ds.service;
+
+import edu.ntu.ds.network.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timer wheel shared by the server's expiring state (AMO cache
+ * entries, callback registrations).
+ * 
+ * Time is cut into ticks of tickMs. LEVELS wheels of SLOTS slots each cover
+ * 64, 64^2, 64^3 and 64^4 ticks ahead (about 19 days at the default 100 ms
+ * tick); a timer goes into the lowest level whose range covers its deadline.
+ * Whenever the current tick crosses the start of a higher-level slot, that
+ * slot's timers are re-placed in lower levels, and each tick fires the timers
+ * of one level-0 slot. Scheduling and firing are O(1), and each timer is moved
+ * at most LEVELS - 1 times, so the cost of expiry does not depend on how many
+ * timers are pending. Later deadlines are parked in the farthest slot and
+ * re-placed when it comes round.
+ * 
+ * A timer is a (handler, key, deadline) triple stored in primitive slot
+ * arrays, so scheduling allocates nothing unless a slot has to grow. Timers
+ * cannot be cancelled: handlers receive the deadline they were scheduled with
+ * and ignore timers whose entry has since been removed or rescheduled. Timers
+ * fire on the "timer-wheel" daemon thread, never before their deadline and
+ * about one tick after it; handlers may schedule new timers.
+ */
+public final class TimerWheel {
+    
+    /**
+     * Called when a timer is due
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param key the key the timer was scheduled with
+         * @param deadline the deadline it was scheduled with (epoch ms)
+         */
+        void expire(long key, long deadline);
+    }
+    
+    public static final long DEFAULT_TICK_MS = 100;
+    
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);  // ticks covered by all levels
+    
+    /**
+     * Timers of one slot, in parallel arrays
+     */
+    private static final class Bucket {
+        long[] keys = new long[4];
+        long[] deadlines = new long[4];
+        Handler[] handlers = new Handler[4];
+        int size;
+        
+        void add(Handler handler, long key, long deadline) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+                handlers = Arrays.copyOf(handlers, size * 2);
+            }
+            keys[size] = key;
+            deadlines[size] = deadline;
+            handlers[size] = handler;
+            size++;
+        }
+        
+        void clear() {
+            Arrays.fill(handlers, 0, size, null);
+            size = 0;
+        }
+    }
+    
+    private final long tickMs;
+    private final long startMs;
+    private final Bucket[][] wheels = new Bucket[LEVELS][SLOTS];
+    private final Logger logger = new Logger("TIMER");
+    private final Thread thread;
+    
+    // Guarded by this
+    private long currentTick;
+    private int pending;
+    private long scheduled;
+    private long fired;
+    private Bucket due = new Bucket();  // timers collected for the next firing round
+    private Bucket spare = new Bucket();  // empty bucket swapped in for one being cascaded
+    private volatile boolean stopped;
+    
+    public TimerWheel() {
+        this(DEFAULT_TICK_MS);
+    }
+    
+    /**
+     * @param tickMs timer resolution in milliseconds
+     */
+    public TimerWheel(long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMs = tickMs;
+        this.startMs = System.currentTimeMillis();
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        this.thread = new Thread(this::run, "timer-wheel");
+        this.thread.setDaemon(true);
+    }
+    
+    public void start() {
+        thread.start();
+    }
+    
+    /**
+     * Stop the wheel thread; pending timers never fire
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+    
+    /**
+     * Call handler.expire(key, deadline) once deadline (epoch ms) has passed
+     */
+    public synchronized void schedule(Handler handler, long key, long deadline) {
+        place(handler, key, deadline);
+        pending++;
+        scheduled++;
+    }
+    
+    /**
+     * First tick at or after the deadline
+     */
+    private long tickOf(long deadline) {
+        long elapsed = deadline - startMs;
+        return elapsed <= 0 ? 0 : (elapsed + tickMs - 1) / tickMs;
+    }
+    
+    /**
+     * Put a timer in the slot for its deadline (lock held)
+     */
+    private void place(Handler handler, long key, long deadline) {
+        long tick = Math.max(tickOf(deadline), currentTick + 1);
+        long delta = tick - currentTick;
+        if (delta >= MAX_SPAN) {
+            tick = currentTick + MAX_SPAN - 1;  // Parked; re-placed when its slot comes round
+            delta = MAX_SPAN - 1;
+        }
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        wheels[level][(int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)].add(handler, key, deadline);
+    }
+    
+    /**
+     * Advance to the given tick, collecting due timers into the due bucket (lock held)
+     */
+    private void advanceTo(long targetTick) {
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Higher levels first, so cascaded timers are not left behind in a lower slot
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                }
+            }
+            Bucket bucket = wheels[0][(int) currentTick & (SLOTS - 1)];
+            for (int i = 0; i < bucket.size; i++) {
+                if (tickOf(bucket.deadlines[i]) > currentTick) {
+                    place(bucket.handlers[i], bucket.keys[i], bucket.deadlines[i]);  // Was parked
+                } else {
+                    due.add(bucket.handlers[i], bucket.keys[i], bucket.deadlines[i]);
+                }
+            }
+            bucket.clear();
+        }
+    }
+    
+    /**
+     * Re-place the timers of a higher-level slot whose range has begun (lock held)
+     */
+    private void cascade(int level, int slot) {
+        Bucket bucket = wheels[level][slot];
+        if (bucket.size == 0) {
+            return;
+        }
+        // Swap in an empty bucket first, so place() never appends to the one being read
+        wheels[level][slot] = spare;
+        for (int i = 0; i < bucket.size; i++) {
+            place(bucket.handlers[i], bucket.keys[i], bucket.deadlines[i]);
+        }
+        bucket.clear();
+        spare = bucket;
+    }
+    
+    private void run() {
+        Bucket firing = new Bucket();
+        while (!stopped) {
+            try {
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                continue;  // stop() interrupts; the loop condition decides
+            }
+            synchronized (this) {
+                advanceTo((System.currentTimeMillis() - startMs) / tickMs);
+                Bucket collected = due;
+                due = firing;
+                firing = collected;
+                pending -= firing.size;
+                fired += firing.size;
+            }
+            for (int i = 0; i < firing.size; i++) {
+                try {
+                    firing.handlers[i].expire(firing.keys[i], firing.deadlines[i]);
+                } catch (RuntimeException e) {
+                    logger.error("Timer for key " + firing.keys[i] + " failed", e);
+                }
+            }
+            firing.clear();
+        }
+    }
+    
+    /**
+     * Number of timers not yet fired (including ones whose entry is gone)
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("TimerWheel{tick=%d ms, pending=%d, scheduled=%d, fired=%d}",
+            tickMs, pending, scheduled, fired);
+    }
+}